@@ -0,0 +1,569 @@
+package com.vonhof.webi.client;
+
+import com.vonhof.babelshark.BabelSharkInstance;
+import com.vonhof.babelshark.Input;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of GET responses for a RESTClient. Responses are cached according to their Cache-Control header and
+ * revalidated with If-None-Match and If-Modified-Since when they expire. Expired responses within their
+ * stale-while-revalidate window are returned right away while being revalidated in the background.
+ *
+ * The least recently used responses are evicted when the cache grows beyond its max size - to disk if a directory
+ * is set. Deserialized responses are kept with the bytes so cache hits skip deserialization - callers share the
+ * returned objects and must not modify them.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class HttpCache {
+    private static final String SUFFIX = ".cache";
+    private static final int FORMAT_VERSION = 2;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long size = 0;
+    private long diskSize = 0;
+
+    private long maxSize = 8 * 1024 * 1024;
+    private long maxDiskSize = 256 * 1024 * 1024;
+    private File directory;
+    private int staleWhileRevalidate = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Max bytes of responses kept in memory
+     * @param maxSize
+     */
+    public void setMaxSize(long maxSize) {
+        final List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            this.maxSize = maxSize;
+            evicted = evict();
+        }
+        writeToDisk(evicted);
+    }
+
+    public long getMaxDiskSize() {
+        return maxDiskSize;
+    }
+
+    /**
+     * Max bytes of responses kept on disk
+     * @param maxDiskSize
+     */
+    public void setMaxDiskSize(long maxDiskSize) {
+        final List<String> deleted;
+        synchronized (this) {
+            this.maxDiskSize = maxDiskSize;
+            deleted = evictDisk();
+        }
+        delete(deleted);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Keep responses evicted from memory in directory. Responses already in the directory are used as well.
+     * @param directory
+     */
+    public synchronized void setDirectory(File directory) {
+        this.directory = directory;
+        diskEntries.clear();
+        diskSize = 0;
+        if (directory == null) {
+            return;
+        }
+        directory.mkdirs();
+
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        //Oldest first - so they are evicted first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : (a.lastModified() == b.lastModified() ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                diskEntries.put(file.getName(), file.length());
+                diskSize += file.length();
+            }
+        }
+        delete(evictDisk());
+    }
+
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * Seconds expired responses are returned while revalidating - unless the response specifies it
+     * @param staleWhileRevalidate
+     */
+    public void setStaleWhileRevalidate(int staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return expired responses returned while revalidating
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return responses the server confirmed were not modified
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Share of lookups answered without downloading the response - including revalidated responses
+     * @return
+     */
+    public double getHitRate() {
+        final long served = hits.get() + staleHits.get() + revalidations.get();
+        final long total = served + misses.get();
+        return total > 0 ? (double) served / total : 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        final List<String> deleted;
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+            deleted = new ArrayList<String>(diskEntries.keySet());
+            diskEntries.clear();
+            diskSize = 0;
+        }
+        delete(deleted);
+    }
+
+    /**
+     * Get cached response - from disk if it is no longer in memory
+     * @param key
+     * @return null if not cached
+     */
+    Entry get(String key) {
+        final String name;
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null || directory == null) {
+                return entry;
+            }
+            name = fileName(key);
+            final Long length = diskEntries.remove(name);
+            if (length == null) {
+                return null;
+            }
+            diskSize -= length;
+        }
+
+        //Entries are moved back to memory
+        final Entry entry = readFromDisk(name);
+        if (entry == null) {
+            return null;
+        }
+        final List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            final Entry current = entries.get(key);
+            if (current != null) {
+                //Put while reading
+                return current;
+            }
+            add(key, entry);
+            evicted = evict();
+        }
+        writeToDisk(evicted);
+        return entry;
+    }
+
+    void put(String key, Entry entry) {
+        final List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            remove(key);
+            add(key, entry);
+            evicted = evict();
+        }
+        writeToDisk(evicted);
+    }
+
+    /**
+     * Check if response can be cached - it must be allowed and either not expire right away or be revalidatable
+     * @param cacheControl
+     * @param etag
+     * @param lastModified
+     * @return
+     */
+    boolean isCacheable(String cacheControl, String etag, String lastModified) {
+        final CacheControl control = new CacheControl(cacheControl, staleWhileRevalidate);
+        return !control.noStore && (control.maxAge > 0 || etag != null || lastModified != null);
+    }
+
+    Entry newEntry(byte[] body, String contentType, String cacheControl, String etag, String lastModified) {
+        final CacheControl control = new CacheControl(cacheControl, staleWhileRevalidate);
+        return new Entry(body, contentType, etag, lastModified, control.expiresAt(), control.staleUntil());
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void staleHit() {
+        staleHits.incrementAndGet();
+    }
+
+    void revalidated() {
+        revalidations.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    private void add(String key, Entry entry) {
+        entries.put(key, entry);
+        size += entry.body.length;
+    }
+
+    private void remove(String key) {
+        final Entry old = entries.remove(key);
+        if (old != null) {
+            size -= old.body.length;
+        }
+    }
+
+    /**
+     * Remove least recently used entries until the cache is within its max size - must hold the lock
+     * @return evicted entries to write to disk
+     */
+    private List<Map.Entry<String, Entry>> evict() {
+        List<Map.Entry<String, Entry>> out = Collections.emptyList();
+        while (size > maxSize && !entries.isEmpty()) {
+            final Map.Entry<String, Entry> eldest = entries.entrySet().iterator().next();
+            remove(eldest.getKey());
+            evictions.incrementAndGet();
+            if (directory != null) {
+                if (out.isEmpty()) {
+                    out = new ArrayList<Map.Entry<String, Entry>>();
+                }
+                out.add(new AbstractMap.SimpleImmutableEntry<String, Entry>(eldest));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Remove least recently used files until the disk tier is within its max size - must hold the lock
+     * @return names of files to delete
+     */
+    private List<String> evictDisk() {
+        List<String> out = Collections.emptyList();
+        while (diskSize > maxDiskSize && !diskEntries.isEmpty()) {
+            final String name = diskEntries.keySet().iterator().next();
+            diskSize -= diskEntries.remove(name);
+            if (out.isEmpty()) {
+                out = new ArrayList<String>();
+            }
+            out.add(name);
+        }
+        return out;
+    }
+
+    private void delete(List<String> names) {
+        final File dir = directory;
+        if (dir == null) {
+            return;
+        }
+        for (String name : names) {
+            new File(dir, name).delete();
+        }
+    }
+
+    /**
+     * Write evicted entries to disk. Only a hash of the key is written - keys include request headers such as
+     * Authorization. Files are written under a temporary name and renamed so they are never read half written.
+     * @param evicted
+     */
+    private void writeToDisk(List<Map.Entry<String, Entry>> evicted) {
+        final File dir = directory;
+        if (dir == null) {
+            return;
+        }
+        for (Map.Entry<String, Entry> evictedEntry : evicted) {
+            final String name = fileName(evictedEntry.getKey());
+            final Entry entry = evictedEntry.getValue();
+            final File tmp = new File(dir, name + ".tmp");
+            final File file = new File(dir, name);
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeUTF(name);
+                    writeNullable(out, entry.contentType);
+                    writeNullable(out, entry.etag);
+                    writeNullable(out, entry.lastModified);
+                    out.writeLong(entry.expiresAt);
+                    out.writeLong(entry.staleUntil);
+                    out.writeInt(entry.body.length);
+                    out.write(entry.body);
+                } finally {
+                    out.close();
+                }
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmp);
+                }
+            } catch (IOException ex) {
+                tmp.delete();
+                continue;
+            }
+
+            final List<String> deleted;
+            synchronized (this) {
+                if (directory != dir) {
+                    continue;
+                }
+                final Long old = diskEntries.put(name, file.length());
+                diskSize += file.length() - (old != null ? old : 0);
+                deleted = evictDisk();
+            }
+            delete(deleted);
+        }
+    }
+
+    private Entry readFromDisk(String name) {
+        final File file = new File(directory, name);
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FORMAT_VERSION || !name.equals(in.readUTF())) {
+                    return null;
+                }
+                final String contentType = readNullable(in);
+                final String etag = readNullable(in);
+                final String lastModified = readNullable(in);
+                final long expiresAt = in.readLong();
+                final long staleUntil = in.readLong();
+                final byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                return new Entry(body, contentType, etag, lastModified, expiresAt, staleUntil);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static String fileName(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Cached response
+     */
+    static final class Entry {
+        private final byte[] body;
+        private final String contentType;
+        private final String etag;
+        private final String lastModified;
+        private final long expiresAt;
+        private final long staleUntil;
+        private final ConcurrentHashMap<Class<?>, Object> values = new ConcurrentHashMap<Class<?>, Object>(2);
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        private Entry(byte[] body, String contentType, String etag, String lastModified,
+                      long expiresAt, long staleUntil) {
+            this.body = body;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+
+        /**
+         * Copy of entry with the expiry of a not modified response - keeps the deserialized values
+         * @param cache
+         * @param cacheControl
+         * @return
+         */
+        Entry refresh(HttpCache cache, String cacheControl) {
+            final CacheControl control = new CacheControl(cacheControl, cache.staleWhileRevalidate);
+            final Entry out = new Entry(body, contentType, etag, lastModified, control.expiresAt(), control.staleUntil());
+            out.values.putAll(values);
+            return out;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        boolean isStaleUsable(long now) {
+            return now < staleUntil;
+        }
+
+        /**
+         * @return true if the caller should revalidate - only one caller does at a time
+         */
+        boolean startRevalidation() {
+            return revalidating.compareAndSet(false, true);
+        }
+
+        void endRevalidation() {
+            revalidating.set(false);
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Get response as type - deserialized once per type
+         * @param type response class - null for the response as a string
+         * @param bs
+         * @return
+         * @throws IOException
+         */
+        <T> T getValue(Class<T> type, BabelSharkInstance bs) throws IOException {
+            if (type == null) {
+                return (T) new String(body, "UTF-8");
+            }
+            Object out = values.get(type);
+            if (out == null) {
+                out = bs.read(new Input(new ByteArrayInputStream(body), contentType), type);
+                if (out != null) {
+                    values.put(type, out);
+                }
+            }
+            return (T) out;
+        }
+    }
+
+    private static final class CacheControl {
+        private boolean noStore;
+        private boolean noCache;
+        private long maxAge = 0;
+        private long staleWhileRevalidate;
+
+        private CacheControl(String header, int defaultStaleWhileRevalidate) {
+            staleWhileRevalidate = defaultStaleWhileRevalidate;
+            if (header == null) {
+                return;
+            }
+            for (String directive : header.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store")) {
+                    noStore = true;
+                } else if (directive.equals("no-cache")) {
+                    noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    maxAge = seconds(directive.substring(8));
+                } else if (directive.startsWith("stale-while-revalidate=")) {
+                    staleWhileRevalidate = seconds(directive.substring(23));
+                }
+            }
+            if (noCache) {
+                //Always revalidate
+                maxAge = 0;
+            }
+        }
+
+        private long seconds(String value) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+
+        private long expiresAt() {
+            return System.currentTimeMillis() + maxAge * 1000L;
+        }
+
+        private long staleUntil() {
+            return expiresAt() + staleWhileRevalidate * 1000L;
+        }
+    }
+}
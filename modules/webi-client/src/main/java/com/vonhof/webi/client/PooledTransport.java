@@ -0,0 +1,192 @@
+package com.vonhof.webi.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Default transport. Connections are kept alive and reused by the JVM's HTTP keep-alive cache - responses are read
+ * to the end and closed instead of disconnected so the connection goes back to the cache.
+ *
+ * Concurrent requests are limited per host. The JVM keeps at most http.maxConnections (default 5) idle connections
+ * per host - set the system property to at least the per host limit to reuse all connections.
+ *
+ * HttpURLConnection does not support HTTP/2 - implement a Transport on top of another HTTP client for that.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class PooledTransport implements Transport {
+    /**
+     * Max bytes drained from an unread response to reuse the connection - larger responses close the connection
+     */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final ConcurrentHashMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+
+    private int maxConnectionsPerHost = 20;
+    private int connectTimeout = 10000;
+    private int readTimeout = 60000;
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Max concurrent requests per host - only applies to hosts not yet connected to
+     * @param maxConnectionsPerHost
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Max milliseconds to wait for a connection - both for a free connection slot and for connecting
+     * @param connectTimeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Max milliseconds to wait for data from the server
+     * @param readTimeout
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public Response send(String method, String url, Map<String, String> headers, Body body) throws IOException {
+        final URL target = new URL(url);
+        final Semaphore connections = connections(target);
+        try {
+            if (!connections.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a connection to " + target.getHost());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + target.getHost());
+        }
+
+        try {
+            final HttpURLConnection conn = (HttpURLConnection) target.openConnection();
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            conn.setUseCaches(false);
+            conn.setRequestMethod(method);
+            conn.setInstanceFollowRedirects(true);
+
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.addRequestProperty(header.getKey(), header.getValue());
+            }
+
+            if (body != null) {
+                conn.setRequestProperty("Content-Type", body.getContentType());
+                conn.setDoOutput(true);
+                final OutputStream out = conn.getOutputStream();
+                try {
+                    body.writeTo(out);
+                } finally {
+                    out.close();
+                }
+            }
+
+            return new PooledResponse(conn, conn.getResponseCode(), connections);
+        } catch (IOException ex) {
+            connections.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            connections.release();
+            throw ex;
+        }
+    }
+
+    private Semaphore connections(URL url) {
+        final String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+        Semaphore out = hosts.get(host);
+        if (out == null) {
+            out = new Semaphore(maxConnectionsPerHost);
+            final Semaphore existing = hosts.putIfAbsent(host, out);
+            if (existing != null) {
+                out = existing;
+            }
+        }
+        return out;
+    }
+
+    private static final class PooledResponse implements Response {
+        private final HttpURLConnection conn;
+        private final int status;
+        private final Semaphore connections;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private InputStream body;
+
+        private PooledResponse(HttpURLConnection conn, int status, Semaphore connections) {
+            this.conn = conn;
+            this.status = status;
+            this.connections = connections;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+                if (body == null) {
+                    body = new ByteArrayInputStream(new byte[0]);
+                }
+            }
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                final InputStream in = getBody();
+                final byte[] buffer = new byte[4096];
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN && (read = in.read(buffer)) > -1) {
+                    drained += read;
+                }
+                if (drained >= MAX_DRAIN) {
+                    //Cheaper to reconnect than reading the rest
+                    conn.disconnect();
+                } else {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                conn.disconnect();
+            } finally {
+                connections.release();
+            }
+        }
+    }
+}
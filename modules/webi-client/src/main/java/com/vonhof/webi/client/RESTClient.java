@@ -4,20 +4,33 @@ import com.vonhof.babelshark.BabelShark;
 import com.vonhof.babelshark.BabelSharkInstance;
 import com.vonhof.babelshark.Input;
 import com.vonhof.babelshark.Output;
+import com.vonhof.babelshark.node.SharkNode;
+import com.vonhof.babelshark.node.ValueNode;
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Client for REST services. Requests are sent by a transport - a PooledTransport unless another is given.
  *
+ * Asynchronous requests return a ResponseFuture right away and are sent by an executor that limits how many
+ * requests are in flight. Identical GET requests in flight at the same time are only sent once unless coalescing
+ * is disabled.
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public class RESTClient {
@@ -26,9 +39,89 @@ public class RESTClient {
     private String contentType = "application/json";
     
     private final String baseUrl;
+    private Transport transport;
+
+    private final ConcurrentHashMap<String, ResponseFuture<?>> inFlight = new ConcurrentHashMap<String, ResponseFuture<?>>();
+    private ExecutorService executor;
+    private int maxConcurrentRequests = 20;
+    private boolean coalesceGets = true;
+    private HttpCache cache;
 
     public RESTClient(String baseUrl) {
+        this(baseUrl, new PooledTransport());
+    }
+
+    public RESTClient(String baseUrl, Transport transport) {
         this.baseUrl = baseUrl;
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Max asynchronous requests in flight - others wait in line. Must be set before the first asynchronous request.
+     * @param maxConcurrentRequests
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Use executor for asynchronous requests instead of a pool of max concurrent requests threads
+     * @param executor
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public HttpCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Cache GET responses - null to disable caching
+     * @param cache
+     */
+    public void setCache(HttpCache cache) {
+        this.cache = cache;
+    }
+
+    public boolean isCoalesceGets() {
+        return coalesceGets;
+    }
+
+    /**
+     * Share the response of identical GET requests in flight at the same time
+     * @param coalesceGets
+     */
+    public void setCoalesceGets(boolean coalesceGets) {
+        this.coalesceGets = coalesceGets;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(maxConcurrentRequests, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread out = new Thread(r, "webi-client-" + count.incrementAndGet());
+                    out.setDaemon(true);
+                    return out;
+                }
+            });
+        }
+        return executor;
     }
     
     public Request req() {
@@ -36,43 +129,191 @@ public class RESTClient {
     }
     
     protected <T> T send(Request req,String method,Object body,Class<T> responseClass) throws MalformedURLException, IOException {
-        URL url = new URL(req.toURL());
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        
-        conn.setRequestMethod(method.toUpperCase());
-        conn.setInstanceFollowRedirects(true);
-        if (body != null) {
-            conn.setRequestProperty("Content-Type", contentType);
+        return send(method, req.toURL(), req.headers, body, responseClass);
+    }
+
+    /**
+     * Send request using the executor
+     * @param req
+     * @param method
+     * @param body
+     * @param responseClass
+     * @return
+     */
+    protected <T> ResponseFuture<T> sendAsync(Request req, final String method, final Object body, final Class<T> responseClass) {
+        //Requests are mutable - copy what is sent
+        return sendAsync(req.toURL(), new HashMap<String, String>(req.headers), method, body, responseClass);
+    }
+
+    private <T> ResponseFuture<T> sendAsync(final String url, final Map<String, String> headers, final String method,
+                                            final Object body, final Class<T> responseClass) {
+        final Callable<T> call = new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return send(method, url, headers, body, responseClass);
+            }
+        };
+
+        if (!coalesceGets || !"GET".equalsIgnoreCase(method)) {
+            final ResponseFuture<T> future = new ResponseFuture<T>(call);
+            getExecutor().execute(future);
+            return future;
         }
 
-        if (!req.headers.isEmpty()) {
+        final String key = url + '\n' + new TreeMap<String, String>(headers) + '\n'
+                + (responseClass != null ? responseClass.getName() : "");
+        final ResponseFuture<T> existing = (ResponseFuture<T>) inFlight.get(key);
+        if (existing != null) {
+            return existing;
+        }
 
-            for(Entry<String,String> header:req.headers.entrySet()) {
-                conn.addRequestProperty(header.getKey(), header.getValue());
+        final ResponseFuture<T> future = new ResponseFuture<T>(call) {
+            @Override
+            protected void done() {
+                inFlight.remove(key, this);
+                super.done();
             }
+        };
+        final ResponseFuture<T> other = (ResponseFuture<T>) inFlight.putIfAbsent(key, future);
+        if (other != null) {
+            return other;
         }
-        
-        if (body != null) {
+        getExecutor().execute(future);
+        return future;
+    }
 
-            conn.setDoOutput(true);
-            bs.write(new Output(conn.getOutputStream(),contentType), body);
+    private <T> T send(String method, String url, Map<String, String> headers, Object body, Class<T> responseClass) throws IOException {
+        final HttpCache cache = this.cache;
+        if (cache != null && body == null && "GET".equalsIgnoreCase(method)) {
+            return sendCached(cache, url, headers, responseClass);
         }
-        
-        if (responseClass != null) {
-            String responseType = conn.getHeaderField("Content-type");
-            T out = bs.read(new Input(conn.getInputStream(), responseType), responseClass);
-            conn.disconnect();
-            return out;
-        } else {
-            String out = IOUtils.toString(conn.getInputStream());
-            conn.disconnect();
-            return (T) out;
+
+        final Transport.Response response = transport.send(method.toUpperCase(), url, headers,
+                body != null ? new EntityBody(body) : null);
+        try {
+            if (response.getStatus() >= 400) {
+                throw new RESTClientException(response.getStatus(), IOUtils.toString(response.getBody(), "UTF-8"));
+            }
+
+            if (responseClass != null) {
+                //Read response directly from the connection
+                String responseType = response.getHeader("Content-type");
+                return bs.read(new Input(response.getBody(), responseType), responseClass);
+            } else {
+                return (T) IOUtils.toString(response.getBody(), "UTF-8");
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private <T> T sendCached(final HttpCache cache, final String url, final Map<String, String> headers,
+                             final Class<T> responseClass) throws IOException {
+        final String key = url + '\n' + new TreeMap<String, String>(headers);
+        final HttpCache.Entry cached = cache.get(key);
+        if (cached != null) {
+            final long now = System.currentTimeMillis();
+            if (cached.isFresh(now)) {
+                cache.hit();
+                return cached.getValue(responseClass, bs);
+            }
+            if (cached.isStaleUsable(now)) {
+                cache.staleHit();
+                if (cached.startRevalidation()) {
+                    getExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                revalidate(cache, key, cached, url, headers);
+                            } catch (IOException ex) {
+                                //The stale response is used until it can be revalidated
+                            } finally {
+                                cached.endRevalidation();
+                            }
+                        }
+                    });
+                }
+                return cached.getValue(responseClass, bs);
+            }
+        }
+
+        return revalidate(cache, key, cached, url, headers).getValue(responseClass, bs);
+    }
+
+    /**
+     * Send conditional request for a cached response - or a plain request if it is not cached
+     * @return the response - only cached if allowed
+     */
+    private HttpCache.Entry revalidate(HttpCache cache, String key, HttpCache.Entry cached,
+                                       String url, Map<String, String> headers) throws IOException {
+        Map<String, String> requestHeaders = headers;
+        if (cached != null) {
+            requestHeaders = new HashMap<String, String>(headers);
+            if (cached.getEtag() != null) {
+                requestHeaders.put("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                requestHeaders.put("If-Modified-Since", cached.getLastModified());
+            }
+        }
+
+        final Transport.Response response = transport.send("GET", url, requestHeaders, null);
+        try {
+            if (response.getStatus() == 304 && cached != null) {
+                cache.revalidated();
+                final HttpCache.Entry refreshed = cached.refresh(cache, response.getHeader("Cache-Control"));
+                cache.put(key, refreshed);
+                return refreshed;
+            }
+            if (response.getStatus() >= 400) {
+                throw new RESTClientException(response.getStatus(), IOUtils.toString(response.getBody(), "UTF-8"));
+            }
+
+            cache.miss();
+            final String cacheControl = response.getHeader("Cache-Control");
+            final String etag = response.getHeader("ETag");
+            final String lastModified = response.getHeader("Last-Modified");
+            final HttpCache.Entry entry = cache.newEntry(IOUtils.toByteArray(response.getBody()),
+                    response.getHeader("Content-type"), cacheControl, etag, lastModified);
+            if (cache.isCacheable(cacheControl, etag, lastModified)) {
+                cache.put(key, entry);
+            }
+            return entry;
+        } finally {
+            response.close();
+        }
+    }
+
+    private final class EntityBody implements Transport.Body {
+        private final Object body;
+
+        private EntityBody(Object body) {
+            this.body = body;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            bs.write(new Output(out, contentType), body);
         }
     }
     
     public static Request from(String baseUrl) {
         return new RESTClient(baseUrl).req();
     }
+
+    /**
+     * Batch calls into a single request to a Webi batch endpoint
+     * @param batchUrl url of the batch endpoint - its calls are relative to the base url of this client
+     * @return
+     */
+    public Batch batch(String batchUrl) {
+        return new Batch(batchUrl);
+    }
     
     public final class Request {
         private List<String> paths = new LinkedList<String>();
@@ -99,8 +340,15 @@ public class RESTClient {
         }
         
         private String toURL() {
+            return baseUrl + toPath();
+        }
+
+        /**
+         * Path and query relative to the base url
+         * @return
+         */
+        private String toPath() {
             StringBuilder sb = new StringBuilder();
-            sb.append(baseUrl);
             sb.append("/");
             
             for(String path:paths) {
@@ -185,7 +433,289 @@ public class RESTClient {
         public void patch() throws IOException {
             post(null);
         }
-        
-        
+
+        public <T> ResponseFuture<T> getAsync(Class<T> responseType) {
+            return sendAsync(this, "GET", null, responseType);
+        }
+
+        public ResponseFuture<String> getAsync() {
+            return getAsync(null);
+        }
+
+        public <T> ResponseFuture<T> deleteAsync(Class<T> responseType) {
+            return sendAsync(this, "DELETE", null, responseType);
+        }
+
+        public ResponseFuture<String> deleteAsync() {
+            return deleteAsync(null);
+        }
+
+        public <T> ResponseFuture<T> putAsync(Object body,Class<T> responseType) {
+            return sendAsync(this, "PUT", body, responseType);
+        }
+
+        public ResponseFuture<String> putAsync(Object body) {
+            return putAsync(body, null);
+        }
+
+        public <T> ResponseFuture<T> postAsync(Object body,Class<T> responseType) {
+            return sendAsync(this, "POST", body, responseType);
+        }
+
+        public ResponseFuture<String> postAsync(Object body) {
+            return postAsync(body, null);
+        }
+
+        public <T> ResponseFuture<T> patchAsync(Object body,Class<T> responseType) {
+            return sendAsync(this, "PATCH", body, responseType);
+        }
+
+        public ResponseFuture<String> patchAsync(Object body) {
+            return patchAsync(body, null);
+        }
+    }
+
+    /**
+     * Calls sent as a single request to a Webi batch endpoint. Add calls and send the batch - the future of each call
+     * is done when the batch response is received.
+     *
+     * Calls share the headers of the batch - headers of the requests added are not sent. If the server has no batch
+     * endpoint the calls are sent one by one instead - with the headers of both the batch and the request.
+     *
+     * Batches with more calls than the server accepts are split into several requests.
+     */
+    public final class Batch {
+        private final String url;
+        private final Map<String,String> headers = new HashMap<String, String>();
+        private final List<BatchCall> calls = new ArrayList<BatchCall>();
+        private int maxCalls = 50;
+
+        private Batch(String url) {
+            this.url = url;
+        }
+
+        public Batch h(String name,String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public int getMaxCalls() {
+            return maxCalls;
+        }
+
+        /**
+         * Max calls sent in one request - must not exceed the max calls of the batch endpoint. Defaults to 50 like
+         * the Webi batch endpoint.
+         * @param maxCalls
+         */
+        public Batch setMaxCalls(int maxCalls) {
+            if (maxCalls < 1) {
+                throw new IllegalArgumentException("Max calls must be at least 1");
+            }
+            this.maxCalls = maxCalls;
+            return this;
+        }
+
+        public <T> ResponseFuture<T> get(Request req, Class<T> responseType) {
+            return add(req, "GET", null, responseType);
+        }
+
+        public <T> ResponseFuture<T> delete(Request req, Class<T> responseType) {
+            return add(req, "DELETE", null, responseType);
+        }
+
+        public <T> ResponseFuture<T> put(Request req, Object body, Class<T> responseType) {
+            return add(req, "PUT", body, responseType);
+        }
+
+        public <T> ResponseFuture<T> post(Request req, Object body, Class<T> responseType) {
+            return add(req, "POST", body, responseType);
+        }
+
+        public <T> ResponseFuture<T> patch(Request req, Object body, Class<T> responseType) {
+            return add(req, "PATCH", body, responseType);
+        }
+
+        private <T> ResponseFuture<T> add(Request req, String method, Object body, Class<T> responseType) {
+            final BatchCall<T> call = new BatchCall<T>(req, method, body, responseType);
+            calls.add(call);
+            return call.future;
+        }
+
+        public int size() {
+            return calls.size();
+        }
+
+        /**
+         * Send batch and wait for the response - in requests of at most max calls
+         * @throws IOException if a batch request failed - the futures of its calls and all following calls fail as well
+         */
+        public void send() throws IOException {
+            boolean batched = true;
+            for (int start = 0; start < calls.size(); start += maxCalls) {
+                final List<BatchCall> chunk = calls.subList(start, Math.min(start + maxCalls, calls.size()));
+                if (!batched) {
+                    sendEach(chunk);
+                    continue;
+                }
+                try {
+                    batched = send(chunk);
+                } catch (IOException ex) {
+                    fail(calls.subList(start, calls.size()), ex);
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Send calls as a single request
+         * @return false if the server has no batch endpoint - the calls are sent one by one instead
+         */
+        private boolean send(List<BatchCall> chunk) throws IOException {
+            final List<Map<String, Object>> body = new ArrayList<Map<String, Object>>(chunk.size());
+            for (BatchCall call : chunk) {
+                final Map<String, Object> callNode = new HashMap<String, Object>();
+                callNode.put("method", call.method);
+                callNode.put("path", call.req.toPath());
+                if (call.body != null) {
+                    callNode.put("body", call.body);
+                }
+                body.add(callNode);
+            }
+
+            final BatchResult[] results;
+            try {
+                results = RESTClient.this.send("POST", url, headers, body, BatchResult[].class);
+            } catch (RESTClientException ex) {
+                if (ex.getStatus() == 404 || ex.getStatus() == 405) {
+                    //No batch endpoint - send calls one by one
+                    sendEach(chunk);
+                    return false;
+                }
+                throw ex;
+            }
+
+            for (int i = 0; i < chunk.size(); i++) {
+                if (results == null || i >= results.length) {
+                    chunk.get(i).future.fail(new IOException("Missing response of batched call " + i));
+                    continue;
+                }
+                complete(chunk.get(i), results[i]);
+            }
+            return true;
+        }
+
+        /**
+         * Send batch using the executor
+         * @return future that is done when the batch response is received
+         */
+        public ResponseFuture<Void> sendAsync() {
+            final ResponseFuture<Void> out = new ResponseFuture<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    send();
+                    return null;
+                }
+            });
+            getExecutor().execute(out);
+            return out;
+        }
+
+        private void sendEach(List<BatchCall> chunk) {
+            for (final BatchCall call : chunk) {
+                final Map<String, String> callHeaders = new HashMap<String, String>(call.req.headers);
+                callHeaders.putAll(headers);
+                final ResponseFuture<Object> single = RESTClient.this.sendAsync(call.req.toURL(), callHeaders,
+                        call.method, call.body, call.responseType);
+                single.onDone(new ResponseFuture.Callback<Object>() {
+                    @Override
+                    public void done(Object value, Throwable error) {
+                        if (error != null) {
+                            call.future.fail(error);
+                        } else {
+                            call.future.complete(value);
+                        }
+                    }
+                });
+            }
+        }
+
+        private void fail(List<BatchCall> failed, Throwable error) {
+            for (BatchCall call : failed) {
+                call.future.fail(error);
+            }
+        }
+
+        private void complete(BatchCall call, BatchResult result) {
+            try {
+                if (result.getStatus() >= 400) {
+                    call.future.fail(new RESTClientException(result.getStatus(), toString(result.getBody())));
+                } else if (call.responseType == null) {
+                    call.future.complete(toString(result.getBody()));
+                } else {
+                    call.future.complete(result.getBody() != null ? bs.read(result.getBody(), call.responseType) : null);
+                }
+            } catch (IOException ex) {
+                call.future.fail(ex);
+            }
+        }
+
+        private String toString(SharkNode node) throws IOException {
+            if (node == null) {
+                return null;
+            }
+            if (node instanceof ValueNode) {
+                return String.valueOf(((ValueNode) node).getValue());
+            }
+            return bs.writeToString(node, "json");
+        }
+    }
+
+    private static final class BatchCall<T> {
+        private final Request req;
+        private final String method;
+        private final Object body;
+        private final Class<T> responseType;
+        private final ResponseFuture<T> future = new ResponseFuture<T>();
+
+        private BatchCall(Request req, String method, Object body, Class<T> responseType) {
+            this.req = req;
+            this.method = method;
+            this.body = body;
+            this.responseType = responseType;
+        }
+    }
+
+    /**
+     * Response of a call in a batch
+     */
+    public static class BatchResult {
+        private int status;
+        private String type;
+        private SharkNode body;
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public SharkNode getBody() {
+            return body;
+        }
+
+        public void setBody(SharkNode body) {
+            this.body = body;
+        }
     }
 }
@@ -0,0 +1,29 @@
+package com.vonhof.webi.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server responds with an error status
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class RESTClientException extends IOException {
+    private final int status;
+    private final String body;
+
+    public RESTClientException(int status, String body) {
+        super("Server returned HTTP response code: " + status);
+        this.status = status;
+        this.body = body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return body of the error response
+     */
+    public String getBody() {
+        return body;
+    }
+}
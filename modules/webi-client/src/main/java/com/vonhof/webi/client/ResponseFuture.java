@@ -0,0 +1,93 @@
+package com.vonhof.webi.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Response of an asynchronous request. Wait for it with get or register a callback with onDone.
+ *
+ * Identical GET requests in flight at the same time share the same future - and so the same response object.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class ResponseFuture<T> extends FutureTask<T> {
+    private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>(1);
+
+    ResponseFuture(Callable<T> request) {
+        super(request);
+    }
+
+    /**
+     * Future completed with complete or fail
+     */
+    ResponseFuture() {
+        super(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                throw new IllegalStateException("Response is set when it is received");
+            }
+        });
+    }
+
+    void complete(T value) {
+        set(value);
+    }
+
+    void fail(Throwable error) {
+        setException(error);
+    }
+
+    /**
+     * Call callback when the response is received or the request failed - right away if it already is done
+     * @param callback
+     */
+    public void onDone(Callback<? super T> callback) {
+        synchronized (callbacks) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    @Override
+    protected void done() {
+        final List<Callback<? super T>> out;
+        synchronized (callbacks) {
+            out = new ArrayList<Callback<? super T>>(callbacks);
+            callbacks.clear();
+        }
+        for (Callback<? super T> callback : out) {
+            notify(callback);
+        }
+    }
+
+    private void notify(Callback<? super T> callback) {
+        T value = null;
+        Throwable error = null;
+        try {
+            value = get();
+        } catch (ExecutionException ex) {
+            error = ex.getCause();
+        } catch (CancellationException ex) {
+            error = ex;
+        } catch (InterruptedException ex) {
+            //Can not happen - the future is done
+            Thread.currentThread().interrupt();
+            error = ex;
+        }
+        callback.done(value, error);
+    }
+
+    public static interface Callback<T> {
+        /**
+         * @param value response - null if failed
+         * @param error cause of failure - null if the request succeeded
+         */
+        public void done(T value, Throwable error);
+    }
+}
@@ -0,0 +1,47 @@
+package com.vonhof.webi.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Sends the HTTP requests of a RESTClient. Implement to use another HTTP client - e.g. one supporting HTTP/2.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface Transport {
+
+    /**
+     * Send request and return once the response headers are read
+     * @param method HTTP method in upper case
+     * @param url
+     * @param headers request headers
+     * @param body request body or null
+     * @return the response - must be closed by the caller
+     * @throws IOException
+     */
+    public Response send(String method, String url, Map<String, String> headers, Body body) throws IOException;
+
+    public static interface Body {
+        public String getContentType();
+
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Response of a request. Closing it releases the connection to be reused for other requests.
+     */
+    public static interface Response extends Closeable {
+        public int getStatus();
+
+        public String getHeader(String name);
+
+        /**
+         * Response body - read it as a stream to avoid holding the full response in memory
+         * @return
+         * @throws IOException
+         */
+        public InputStream getBody() throws IOException;
+    }
+}
@@ -0,0 +1,97 @@
+package com.vonhof.webi.client;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+public class HttpCacheTest extends TestCase {
+
+    private HttpCache.Entry entry(HttpCache cache, String body, String cacheControl) {
+        return cache.newEntry(body.getBytes(), "text/plain", cacheControl, "\"etag\"", null);
+    }
+
+    public void testReadsCacheControl() {
+        final HttpCache cache = new HttpCache();
+        final long now = System.currentTimeMillis();
+
+        assertTrue(entry(cache, "a", "private, max-age=60").isFresh(now));
+        assertFalse(entry(cache, "a", "max-age=60, no-cache").isFresh(now + 1000));
+        assertTrue(entry(cache, "a", "max-age=0, stale-while-revalidate=30").isStaleUsable(now + 1000));
+        assertFalse(entry(cache, "a", "max-age=0").isStaleUsable(now + 1000));
+
+        assertFalse(cache.isCacheable("no-store", "\"etag\"", null));
+        assertFalse(cache.isCacheable(null, null, null));
+        assertTrue(cache.isCacheable(null, null, "Tue, 15 Nov 1994 12:45:26 GMT"));
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final HttpCache cache = new HttpCache();
+        cache.setMaxSize(10);
+        cache.put("a", entry(cache, "aaaa", "max-age=60"));
+        cache.put("b", entry(cache, "bbbb", "max-age=60"));
+        cache.get("a");
+        cache.put("c", entry(cache, "cccc", "max-age=60"));
+
+        assertEquals("aaaa", cache.get("a").getValue(null, null));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testMovesEvictedEntriesToDisk() throws Exception {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "webi-http-cache-" + System.nanoTime());
+        final HttpCache cache = new HttpCache();
+        cache.setDirectory(dir);
+        cache.setMaxSize(10);
+        try {
+            cache.put("a", entry(cache, "aaaa", "max-age=60"));
+            cache.put("b", entry(cache, "bbbbbbbb", "max-age=60"));
+            assertEquals(1, cache.size());
+
+            final HttpCache.Entry a = cache.get("a");
+            assertEquals("aaaa", a.getValue(null, null));
+            assertEquals("\"etag\"", a.getEtag());
+            assertTrue(a.isFresh(System.currentTimeMillis()));
+
+            //Other caches using the directory see the entries on disk
+            final HttpCache other = new HttpCache();
+            other.setDirectory(dir);
+            assertEquals("bbbbbbbb", other.get("b").getValue(null, null));
+        } finally {
+            cache.clear();
+            dir.delete();
+        }
+    }
+
+    public void testKeepsKeysOffDisk() throws Exception {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "webi-http-cache-" + System.nanoTime());
+        final HttpCache cache = new HttpCache();
+        cache.setDirectory(dir);
+        cache.setMaxSize(1);
+        try {
+            final String key = "GET http://localhost/api\nAuthorization: Bearer secret-token";
+            cache.put(key, entry(cache, "aaaa", "max-age=60"));
+
+            final File[] files = dir.listFiles();
+            assertEquals(1, files.length);
+            final String contents = FileUtils.readFileToString(files[0], "ISO-8859-1");
+            assertFalse(contents.contains("secret-token"));
+            assertFalse(files[0].getName().contains("secret-token"));
+
+            assertEquals("aaaa", cache.get(key).getValue(null, null));
+        } finally {
+            cache.clear();
+            dir.delete();
+        }
+    }
+
+    public void testCountsHitRate() {
+        final HttpCache cache = new HttpCache();
+        cache.hit();
+        cache.hit();
+        cache.revalidated();
+        cache.miss();
+        assertEquals(0.75, cache.getHitRate(), 0.001);
+    }
+}
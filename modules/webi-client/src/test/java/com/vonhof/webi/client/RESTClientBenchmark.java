@@ -0,0 +1,161 @@
+package com.vonhof.webi.client;
+
+import com.vonhof.babelshark.BabelShark;
+import com.vonhof.babelshark.language.JsonLanguage;
+import com.vonhof.webi.Webi;
+import com.vonhof.webi.annotation.Path;
+import com.vonhof.webi.rest.RESTServiceHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the pooled transport with opening and disconnecting a connection per request like RESTClient used to -
+ * against a local Webi server. Run as a plain java program.
+ */
+public class RESTClientBenchmark {
+    private static final int PORT = 8090;
+    private static final int THREADS = 16;
+    private static final int REQUESTS_PER_THREAD = 2000;
+
+    public static void main(String[] args) throws Exception {
+        BabelShark.register(new JsonLanguage());
+        System.setProperty("http.maxConnections", String.valueOf(THREADS));
+
+        final Webi webi = new Webi(PORT, 100, 0, 200);
+        webi.add("/rest/", new RESTServiceHandler()).expose(new BenchmarkService());
+
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    webi.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.start();
+        Thread.sleep(1000);
+
+        final PooledTransport pooled = new PooledTransport();
+        pooled.setMaxConnectionsPerHost(THREADS);
+
+        run("connection per request", new RESTClient("http://localhost:" + PORT + "/rest", new ConnectionPerRequestTransport()));
+        run("pooled", new RESTClient("http://localhost:" + PORT + "/rest", pooled));
+
+        webi.stop();
+        server.join();
+    }
+
+    private static void run(String name, RESTClient client) throws Exception {
+        //Warm up
+        load(client, REQUESTS_PER_THREAD / 4);
+
+        long start = System.nanoTime();
+        long[] latencies = load(client, REQUESTS_PER_THREAD);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-24s %6d req/s, p50 %5.2f ms, p99 %6.2f ms",
+                name,
+                latencies.length * 1000L / Math.max(1, elapsedMs),
+                latencies[latencies.length / 2] / 1000000.0,
+                latencies[(int) (latencies.length * 0.99)] / 1000000.0));
+    }
+
+    private static long[] load(final RESTClient client, final int requests) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long[] out = new long[requests];
+                    for (int r = 0; r < requests; r++) {
+                        long start = System.nanoTime();
+                        client.req().p("bench").p("item").q("id", String.valueOf(r)).get(Map.class);
+                        out[r] = System.nanoTime() - start;
+                    }
+                    return out;
+                }
+            }));
+        }
+
+        long[] latencies = new long[THREADS * requests];
+        int offset = 0;
+        for (Future<long[]> future : futures) {
+            long[] result = future.get();
+            System.arraycopy(result, 0, latencies, offset, result.length);
+            offset += result.length;
+        }
+        executor.shutdown();
+        return latencies;
+    }
+
+    @Path("bench")
+    public static class BenchmarkService {
+        public Map<String, Object> item(int id) {
+            Map<String, Object> out = new HashMap<String, Object>();
+            out.put("id", id);
+            out.put("name", "Item " + id);
+            out.put("price", id * 1.25);
+            return out;
+        }
+    }
+
+    /**
+     * How RESTClient sent requests before transports were added
+     */
+    private static class ConnectionPerRequestTransport implements Transport {
+        @Override
+        public Response send(String method, String url, Map<String, String> headers, Body body) throws IOException {
+            final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod(method);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.addRequestProperty(header.getKey(), header.getValue());
+            }
+            if (body != null) {
+                conn.setRequestProperty("Content-Type", body.getContentType());
+                conn.setDoOutput(true);
+                final OutputStream out = conn.getOutputStream();
+                body.writeTo(out);
+                out.close();
+            }
+            final int status = conn.getResponseCode();
+            return new Response() {
+                @Override
+                public int getStatus() {
+                    return status;
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return conn.getHeaderField(name);
+                }
+
+                @Override
+                public InputStream getBody() throws IOException {
+                    return status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    conn.disconnect();
+                }
+            };
+        }
+    }
+}
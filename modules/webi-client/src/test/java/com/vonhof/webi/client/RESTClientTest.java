@@ -0,0 +1,116 @@
+package com.vonhof.webi.client;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class RESTClientTest extends TestCase {
+
+    public void testSplitsBatchesOverMaxCalls() throws Exception {
+        final FakeTransport transport = new FakeTransport(true);
+        final RESTClient client = new RESTClient("http://localhost", transport);
+
+        final RESTClient.Batch batch = client.batch("http://localhost/webi/batch").setMaxCalls(2);
+        final List<ResponseFuture<String>> futures = new ArrayList<ResponseFuture<String>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(batch.get(client.req().p("item").q("id", String.valueOf(i)), null));
+        }
+        batch.send();
+
+        assertEquals(3, transport.requests.size());
+        for (ResponseFuture<String> future : futures) {
+            assertEquals("ok", future.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    public void testSendsBatchHeadersWithEachCallWithoutBatchEndpoint() throws Exception {
+        final FakeTransport transport = new FakeTransport(false);
+        final RESTClient client = new RESTClient("http://localhost", transport);
+
+        final RESTClient.Batch batch = client.batch("http://localhost/webi/batch").h("Authorization", "secret");
+        final ResponseFuture<String> first = batch.get(client.req().p("first").h("X-Call", "1"), null);
+        final ResponseFuture<String> second = batch.get(client.req().p("second"), null);
+        batch.send();
+
+        assertEquals("ok", first.get(1, TimeUnit.SECONDS));
+        assertEquals("ok", second.get(1, TimeUnit.SECONDS));
+
+        //Batch request and one request per call
+        assertEquals(3, transport.requests.size());
+        int withCallHeader = 0;
+        for (Map<String, String> headers : transport.requests.subList(1, 3)) {
+            assertEquals("secret", headers.get("Authorization"));
+            if ("1".equals(headers.get("X-Call"))) {
+                withCallHeader++;
+            }
+        }
+        assertEquals(1, withCallHeader);
+    }
+
+    /**
+     * Records request headers and answers batch requests with a result per call
+     */
+    private static class FakeTransport implements Transport {
+        private final boolean batchEndpoint;
+        private final List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+
+        private FakeTransport(boolean batchEndpoint) {
+            this.batchEndpoint = batchEndpoint;
+        }
+
+        @Override
+        public synchronized Response send(String method, String url, Map<String, String> headers, Body body) throws IOException {
+            requests.add(new HashMap<String, String>(headers));
+            if (!url.endsWith("/webi/batch")) {
+                return response(200, "text/plain", "ok");
+            }
+            if (!batchEndpoint) {
+                return response(404, "text/plain", "Not found");
+            }
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.writeTo(out);
+            final String calls = out.toString("UTF-8");
+            final StringBuilder sb = new StringBuilder("[");
+            for (int i = calls.indexOf("\"path\""); i > -1; i = calls.indexOf("\"path\"", i + 1)) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append("{\"status\":200,\"type\":\"text/plain\",\"body\":\"ok\"}");
+            }
+            return response(200, "application/json", sb.append(']').toString());
+        }
+
+        private Response response(final int status, final String type, final String body) {
+            return new Response() {
+                @Override
+                public int getStatus() {
+                    return status;
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return "Content-type".equalsIgnoreCase(name) ? type : null;
+                }
+
+                @Override
+                public InputStream getBody() throws IOException {
+                    return new ByteArrayInputStream(body.getBytes("UTF-8"));
+                }
+
+                @Override
+                public void close() {
+
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.vonhof.webi.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Task store backed by an append-only journal of memory mapped segment files. Tasks are written as put records and
+ * removed by appending remove records - the index of live tasks is rebuilt from the journal when the store is opened.
+ * Call recover to submit the tasks that were never removed to a queue again.
+ *
+ * Puts return when the record is on disk. Concurrent puts share one fsync. Removes are not synced - a remove lost
+ * in a crash means the task is processed again.
+ *
+ * Segments are deleted oldest first once all their tasks are removed. The live tasks of a mostly removed oldest
+ * segment are copied to the newest segment in the background so the segment can be deleted.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class JournalTaskStore<T extends Task<?>> implements TaskStore<T>, Closeable {
+    private static final Logger log = Logger.getLogger(JournalTaskStore.class.getName());
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SUFFIX = ".journal";
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * Length, type, id and checksum
+     */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 16 + 4;
+
+    private final File directory;
+    private final Class<T> taskClass;
+    private final int segmentSize;
+
+    /**
+     * Location of the put record of each live task - segment id in the high bits and offset in the low bits
+     */
+    private final ConcurrentHashMap<UUID, Long> index = new ConcurrentHashMap<UUID, Long>();
+
+    /**
+     * Segments by id - guarded by this
+     */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private long appended = 0;
+    private boolean closed = false;
+
+    private final Object syncLock = new Object();
+    private long synced = 0;
+    private boolean syncing = false;
+
+    private final ScheduledExecutorService compactor;
+    private volatile double compactionThreshold = 0.5;
+
+    public JournalTaskStore(File directory, Class<T> taskClass) throws IOException {
+        this(directory, taskClass, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open journal in directory - creating it if it does not exist
+     * @param directory
+     * @param taskClass class of the stored tasks
+     * @param segmentSize max bytes per segment file
+     * @throws IOException
+     */
+    public JournalTaskStore(File directory, Class<T> taskClass, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.taskClass = taskClass;
+        this.segmentSize = segmentSize;
+        directory.mkdirs();
+        open();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread out = new Thread(runnable, "webi-journal-compactor");
+                out.setDaemon(true);
+                return out;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Failed to compact journal in " + JournalTaskStore.this.directory, ex);
+                }
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * Copy the live tasks of the oldest segment when less than this share of it is live
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Tasks in the store
+     * @return
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Reads the task from disk - returns a new instance for every call
+     * @param id
+     * @return null if not stored
+     */
+    @Override
+    public T get(UUID id) {
+        final Long location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+        final Segment segment;
+        synchronized (this) {
+            segment = segments.get(segmentId(location));
+        }
+        if (segment == null) {
+            //Moved while looking it up
+            return get(id);
+        }
+        return deserialize(segment.read(offset(location)));
+    }
+
+    /**
+     * Write task to the journal. Returns when the task is on disk. Tasks already in the store are not written again.
+     * @param task
+     */
+    @Override
+    public void put(T task) {
+        if (index.containsKey(task.getId())) {
+            return;
+        }
+        final byte[] record = record(PUT, task.getId(), serialize(task));
+        final long sequence;
+        synchronized (this) {
+            if (index.containsKey(task.getId())) {
+                return;
+            }
+            final long location = append(record);
+            index.put(task.getId(), location);
+            active.added(record.length);
+            sequence = appended;
+        }
+        sync(sequence);
+    }
+
+    @Override
+    public void remove(T task) {
+        remove(task.getId());
+    }
+
+    @Override
+    public void remove(UUID id) {
+        if (!index.containsKey(id)) {
+            return;
+        }
+        final byte[] record = record(REMOVE, id, new byte[0]);
+        synchronized (this) {
+            final Long location = index.remove(id);
+            if (location == null) {
+                return;
+            }
+            append(record);
+            segments.get(segmentId(location)).removed(offset(location));
+        }
+    }
+
+    /**
+     * Submit all tasks in the store to queue - in the order they were put. Call when starting up.
+     * @param queue
+     * @return number of tasks submitted
+     */
+    public int recover(RateLimitedQueue<T, ?> queue) {
+        final List<Map.Entry<UUID, Long>> locations = new ArrayList<Map.Entry<UUID, Long>>(index.entrySet());
+        final long[] ordered = new long[locations.size()];
+        for (int i = 0; i < ordered.length; i++) {
+            ordered[i] = locations.get(i).getValue();
+        }
+        Arrays.sort(ordered);
+
+        int out = 0;
+        for (long location : ordered) {
+            final Segment segment;
+            synchronized (this) {
+                segment = segments.get(segmentId(location));
+            }
+            if (segment != null && queue.submit(deserialize(segment.read(offset(location))))) {
+                out++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Delete the oldest segments when their tasks are removed - copying their remaining tasks to the newest segment
+     * if few are left. Runs periodically in the background.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        while (true) {
+            final Segment oldest;
+            synchronized (this) {
+                if (closed || segments.size() < 2) {
+                    return;
+                }
+                oldest = segments.firstEntry().getValue();
+                if (oldest.liveRecords == 0) {
+                    delete(oldest);
+                    continue;
+                }
+                if (oldest.liveBytes > oldest.position * compactionThreshold) {
+                    return;
+                }
+            }
+
+            //Records are copied one at a time so puts and removes are not blocked for long
+            int offset = 0;
+            byte[] record;
+            while ((record = oldest.next(offset)) != null) {
+                final UUID id = id(record);
+                final long location = location(oldest.id, offset);
+                synchronized (this) {
+                    final Long current = index.get(id);
+                    if (current != null && current == location) {
+                        index.put(id, append(record));
+                        active.added(record.length);
+                        oldest.removed(offset);
+                    }
+                }
+                offset += record.length;
+            }
+
+            //The copies must be on disk before the segment is deleted
+            final long sequence;
+            synchronized (this) {
+                sequence = appended;
+            }
+            sync(sequence);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.buffer.force();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    final int id = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()), 16);
+                    segments.put(id, new Segment(id, file, 0));
+                }
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+
+        if (segments.isEmpty()) {
+            active = newSegment(0, segmentSize);
+        } else {
+            active = segments.lastEntry().getValue();
+            active.clearTail();
+        }
+    }
+
+    /**
+     * Rebuild the index from the records of segment. Stops at the first incomplete or corrupt record.
+     * @param segment
+     */
+    private void replay(Segment segment) {
+        int offset = 0;
+        byte[] record;
+        while ((record = segment.next(offset)) != null) {
+            final UUID id = id(record);
+            final Long previous = record[4] == PUT
+                    ? index.put(id, location(segment.id, offset))
+                    : index.remove(id);
+            if (previous != null) {
+                segments.get(segmentId(previous)).removed(offset(previous));
+            }
+            if (record[4] == PUT) {
+                segment.added(record.length);
+            }
+            offset += record.length;
+        }
+        segment.position = offset;
+    }
+
+    /**
+     * Append record to the active segment - must hold the lock
+     * @param record
+     * @return location of record
+     */
+    private long append(byte[] record) {
+        if (closed) {
+            throw new IllegalStateException("Task store is closed");
+        }
+        if (active.position + record.length > active.capacity) {
+            //Written segments are synced when rolling so only the active segment needs to be synced later
+            active.buffer.force();
+            try {
+                active = newSegment(active.id + 1, Math.max(segmentSize, record.length));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        final int offset = active.position;
+        active.write(record);
+        appended += record.length;
+        return location(active.id, offset);
+    }
+
+    /**
+     * Wait until everything up to sequence is on disk. The first waiting thread syncs for everyone waiting.
+     * @param sequence
+     */
+    private void sync(long sequence) {
+        boolean interrupted = false;
+        synchronized (syncLock) {
+            while (syncing && synced < sequence) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (synced >= sequence) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            syncing = true;
+        }
+
+        long target = sequence;
+        try {
+            final Segment segment;
+            synchronized (this) {
+                target = appended;
+                segment = active;
+            }
+            segment.buffer.force();
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                synced = Math.max(synced, target);
+                syncLock.notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Segment newSegment(int id, int capacity) throws IOException {
+        final Segment out = new Segment(id, new File(directory, String.format("%08x%s", id, SUFFIX)), capacity);
+        segments.put(id, out);
+        return out;
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment.id);
+        segment.close();
+        segment.file.delete();
+    }
+
+    private static byte[] record(byte type, UUID id, byte[] payload) {
+        final ByteBuffer out = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+        out.putInt(out.capacity() - 4);
+        out.put(type);
+        out.putLong(id.getMostSignificantBits());
+        out.putLong(id.getLeastSignificantBits());
+        out.put(payload);
+        out.putInt(checksum(out.array(), out.capacity() - 4));
+        return out.array();
+    }
+
+    private static int checksum(byte[] record, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 4, length - 4);
+        return (int) crc.getValue();
+    }
+
+    private static UUID id(byte[] record) {
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        return new UUID(buffer.getLong(5), buffer.getLong(13));
+    }
+
+    private static byte[] serialize(Task<?> task) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(task);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private T deserialize(byte[] record) {
+        try {
+            final ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(record, RECORD_OVERHEAD - 4, record.length - RECORD_OVERHEAD));
+            try {
+                return taskClass.cast(in.readObject());
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int position = 0;
+
+        /**
+         * Put records not removed yet - guarded by the store
+         */
+        private int liveRecords = 0;
+        private long liveBytes = 0;
+
+        /**
+         * @param id
+         * @param file
+         * @param capacity size of new segment files - existing files keep their size
+         * @throws IOException
+         */
+        private Segment(int id, File file, int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() == 0) {
+                raf.setLength(capacity);
+            }
+            this.capacity = (int) raf.length();
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        }
+
+        private void write(byte[] record) {
+            final ByteBuffer out = buffer.duplicate();
+            out.position(position);
+            out.put(record);
+            position += record.length;
+        }
+
+        private byte[] read(int offset) {
+            final ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            final byte[] out = new byte[4 + in.getInt(offset)];
+            in.get(out);
+            return out;
+        }
+
+        /**
+         * Record at offset
+         * @param offset
+         * @return null at the end of the segment or if the record is incomplete or corrupt
+         */
+        private byte[] next(int offset) {
+            if (offset + RECORD_OVERHEAD > capacity) {
+                return null;
+            }
+            final int length = buffer.getInt(offset);
+            if (length < RECORD_OVERHEAD - 4 || offset + 4 + length > capacity) {
+                return null;
+            }
+            final byte[] out = read(offset);
+            final int checksum = ByteBuffer.wrap(out).getInt(out.length - 4);
+            if (checksum != checksum(out, out.length - 4) || (out[4] != PUT && out[4] != REMOVE)) {
+                return null;
+            }
+            return out;
+        }
+
+        private void added(int length) {
+            liveRecords++;
+            liveBytes += length;
+        }
+
+        private void removed(int offset) {
+            liveRecords--;
+            liveBytes -= 4 + buffer.getInt(offset);
+        }
+
+        /**
+         * Zero whatever follows the last complete record - a record cut short by a crash must not be mistaken for
+         * the start of later records
+         */
+        private void clearTail() {
+            int dirty = position;
+            while (dirty < capacity && buffer.get(dirty) == 0) {
+                dirty++;
+            }
+            if (dirty == capacity) {
+                return;
+            }
+            final ByteBuffer out = buffer.duplicate();
+            out.position(position);
+            final byte[] zeros = new byte[8192];
+            while (out.hasRemaining()) {
+                out.put(zeros, 0, Math.min(zeros.length, out.remaining()));
+            }
+            buffer.force();
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                //Nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.vonhof.webi.queue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory rate limited queue. Each task type has its own lock-free ready queue and running counter - the rate limit
+ * of a type is enforced by reserving a slot on its counter, so task types never contend with each other.
+ *
+ * Task types with ready tasks and free slots are handed out round robin. Threads waiting in acquire are parked until
+ * a task becomes available. Changes to rate limits are picked up by waiting threads within RESCAN_INTERVAL.
+ *
+ * Tasks are optionally written to a TaskStore while they are in the queue.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class MemoryRateLimitedQueue<T extends Task<?>, U extends Serializable> extends RateLimitedQueue<T, U> {
+
+    /**
+     * How often waiting threads check task types for changed rate limits
+     */
+    public static final long RESCAN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Weight of the latest duration in the moving average
+     */
+    private static final double ALPHA = 0.1;
+
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
+    private final ConcurrentHashMap<String, TypeQueue<T>> types = new ConcurrentHashMap<String, TypeQueue<T>>();
+    private final ConcurrentHashMap<UUID, Entry<T>> entries = new ConcurrentHashMap<UUID, Entry<T>>();
+    private final ConcurrentLinkedQueue<TypeQueue<T>> eligible = new ConcurrentLinkedQueue<TypeQueue<T>>();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+
+    private final TaskStore<T> store;
+
+    public MemoryRateLimitedQueue() {
+        this(null);
+    }
+
+    /**
+     * @param store tasks are put in the store when submitted and removed when done - may be null
+     */
+    public MemoryRateLimitedQueue(TaskStore<T> store) {
+        this.store = store;
+    }
+
+    @Override
+    public long getEstimatedTimeLeft(String taskType) {
+        final TypeQueue<T> queue = types.get(taskType);
+        if (queue == null) {
+            return 0;
+        }
+        final long tasks = Math.max(0, queue.pending.get()) + Math.max(0, queue.running.get());
+        final int limit = getTaskTypeRateLimit(taskType);
+        final int concurrency = limit > 0 ? limit : Math.max(1, queue.running.get());
+        return (long) Math.ceil((double) tasks / concurrency) * queue.getAverageDuration();
+    }
+
+    /**
+     * Task types are processed in parallel - so the queue is blocked until the slowest task type is done
+     * @return
+     */
+    @Override
+    public long getEstimatedTimeLeft() {
+        long out = 0;
+        for (String taskType : types.keySet()) {
+            out = Math.max(out, getEstimatedTimeLeft(taskType));
+        }
+        return out;
+    }
+
+    /**
+     * Moving average of the actual duration of acknowledged tasks of the given type - the estimated duration of
+     * submitted tasks until a task has been acknowledged.
+     * @param taskType
+     * @return
+     */
+    public long getAverageDuration(String taskType) {
+        final TypeQueue<T> queue = types.get(taskType);
+        return queue != null ? queue.getAverageDuration() : 0;
+    }
+
+    @Override
+    public Collection<T> getPending() {
+        final List<T> out = new ArrayList<T>();
+        for (Entry<T> entry : entries.values()) {
+            if (entry.state.get() == PENDING) {
+                out.add(entry.task);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Tasks pending or being processed
+     * @return
+     */
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public T get(UUID id) {
+        final Entry<T> entry = entries.get(id);
+        return entry != null ? entry.task : null;
+    }
+
+    /**
+     * @param task
+     * @return false if the task already is in the queue
+     */
+    @Override
+    public boolean submit(T task) {
+        final Entry<T> entry = new Entry<T>(task);
+        if (entries.putIfAbsent(task.getId(), entry) != null) {
+            return false;
+        }
+        if (store != null) {
+            store.put(task);
+        }
+        final TypeQueue<T> queue = typeQueue(task.getType());
+        queue.seedAverage(task.getEstimatedDuration());
+        queue.offer(entry);
+        schedule(queue);
+        return true;
+    }
+
+    @Override
+    public boolean remove(T task) {
+        final Entry<T> entry = entries.get(task.getId());
+        if (entry == null || !entry.state.compareAndSet(PENDING, DONE)) {
+            return false;
+        }
+        //Left in the ready queue and skipped when polled
+        entries.remove(task.getId(), entry);
+        typeQueue(task.getType()).pending.decrementAndGet();
+        if (store != null) {
+            store.remove(task);
+        }
+        return true;
+    }
+
+    /**
+     * Acknowledge a task being processed. Sets the actual duration of the task unless it already is set.
+     * Unknown tasks and tasks not being processed are ignored.
+     * @param id
+     * @param response
+     */
+    @Override
+    public void acknowledge(UUID id, U response) {
+        final Entry<T> entry = finish(id);
+        if (entry == null) {
+            return;
+        }
+        final T task = entry.task;
+        if (task.getActualDuration() <= 0) {
+            task.setActualDuration(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.startedAt));
+        }
+        final TypeQueue<T> queue = typeQueue(task.getType());
+        queue.addDuration(task.getActualDuration());
+        if (store != null) {
+            store.remove(task);
+        }
+        release(queue);
+        onAcknowledge(task, response);
+    }
+
+    /**
+     * Reject a task being processed. Resubmitted tasks are added to the end of the queue for their task type.
+     * @param id
+     * @param resubmit
+     */
+    @Override
+    public void reject(UUID id, boolean resubmit) {
+        final Entry<T> entry = finish(id);
+        if (entry == null) {
+            return;
+        }
+        final T task = entry.task;
+        final TypeQueue<T> queue = typeQueue(task.getType());
+        if (resubmit) {
+            final Entry<T> retry = new Entry<T>(task);
+            entries.put(id, retry);
+            queue.offer(retry);
+        } else if (store != null) {
+            store.remove(task);
+        }
+        release(queue);
+    }
+
+    /**
+     * Acquire next task - blocks until a task is available.
+     * @return null if the thread was interrupted while waiting
+     */
+    @Override
+    public T acquire() {
+        return acquire(-1, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Acquire next task - blocks until a task is available or the timeout expires.
+     * @param timeout negative to wait forever
+     * @param unit
+     * @return null if no task became available before the timeout or the thread was interrupted while waiting
+     */
+    public T acquire(long timeout, TimeUnit unit) {
+        T task = poll();
+        if (task != null || timeout == 0) {
+            return task;
+        }
+
+        final long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        Waiter waiter = new Waiter(Thread.currentThread());
+        waiters.offer(waiter);
+        while (true) {
+            //Check again after registering - tasks submitted since are either found now or signal the waiter
+            task = poll();
+            if (task != null) {
+                leave(waiter);
+                return task;
+            }
+
+            long wait = RESCAN_INTERVAL;
+            if (timeout > 0) {
+                final long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    leave(waiter);
+                    return null;
+                }
+                wait = Math.min(wait, left);
+            }
+
+            LockSupport.parkNanos(this, wait);
+
+            if (waiter.signaled.get()) {
+                waiter = new Waiter(Thread.currentThread());
+                waiters.offer(waiter);
+                continue;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                leave(waiter);
+                return null;
+            }
+            rescan();
+        }
+    }
+
+    /**
+     * Called when a task has been acknowledged
+     * @param task
+     * @param response
+     */
+    protected void onAcknowledge(T task, U response) {
+
+    }
+
+    private T poll() {
+        TypeQueue<T> queue;
+        while ((queue = eligible.poll()) != null) {
+            final Entry<T> entry = queue.take(getTaskTypeRateLimit(queue.type));
+            queue.scheduled.set(false);
+            //Back in line if it still has tasks and free slots
+            schedule(queue);
+            if (entry != null) {
+                return entry.task;
+            }
+        }
+        return null;
+    }
+
+    private Entry<T> finish(UUID id) {
+        final Entry<T> entry = entries.get(id);
+        if (entry == null || !entry.state.compareAndSet(RUNNING, DONE)) {
+            return null;
+        }
+        entries.remove(id, entry);
+        return entry;
+    }
+
+    private void release(TypeQueue<T> queue) {
+        queue.running.decrementAndGet();
+        schedule(queue);
+    }
+
+    private void schedule(TypeQueue<T> queue) {
+        if (queue.isEligible(getTaskTypeRateLimit(queue.type))
+                && queue.scheduled.compareAndSet(false, true)) {
+            eligible.offer(queue);
+            signal();
+        }
+    }
+
+    /**
+     * Schedule all eligible task types - picks up changed rate limits
+     */
+    private void rescan() {
+        for (TypeQueue<T> queue : types.values()) {
+            schedule(queue);
+        }
+    }
+
+    /**
+     * Wake up a waiting thread
+     */
+    private void signal() {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.signaled.compareAndSet(false, true)) {
+                LockSupport.unpark(waiter.thread);
+                return;
+            }
+        }
+    }
+
+    private void leave(Waiter waiter) {
+        if (!waiter.signaled.compareAndSet(false, true)) {
+            //Signaled while leaving - pass it on so it is not lost
+            signal();
+        }
+    }
+
+    private TypeQueue<T> typeQueue(String taskType) {
+        TypeQueue<T> out = types.get(taskType);
+        if (out == null) {
+            out = new TypeQueue<T>(taskType);
+            final TypeQueue<T> existing = types.putIfAbsent(taskType, out);
+            if (existing != null) {
+                out = existing;
+            }
+        }
+        return out;
+    }
+
+    private static final class Entry<T extends Task<?>> {
+        private final T task;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile long startedAt;
+
+        private Entry(T task) {
+            this.task = task;
+        }
+    }
+
+    private static final class TypeQueue<T extends Task<?>> {
+        private final String type;
+        private final ConcurrentLinkedQueue<Entry<T>> ready = new ConcurrentLinkedQueue<Entry<T>>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong averageDuration = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+
+        private TypeQueue(String type) {
+            this.type = type;
+        }
+
+        private void offer(Entry<T> entry) {
+            ready.offer(entry);
+            pending.incrementAndGet();
+        }
+
+        private boolean isEligible(int limit) {
+            return pending.get() > 0 && (limit < 0 || running.get() < limit);
+        }
+
+        /**
+         * Reserve a slot and take the next pending task
+         * @param limit
+         * @return null if no slots are free or no tasks are pending
+         */
+        private Entry<T> take(int limit) {
+            while (true) {
+                final int current = running.get();
+                if (limit > -1 && current >= limit) {
+                    return null;
+                }
+                if (running.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            }
+
+            Entry<T> entry;
+            while ((entry = ready.poll()) != null) {
+                //Removed tasks are skipped
+                if (entry.state.compareAndSet(PENDING, RUNNING)) {
+                    entry.startedAt = System.nanoTime();
+                    pending.decrementAndGet();
+                    return entry;
+                }
+            }
+            running.decrementAndGet();
+            return null;
+        }
+
+        private long getAverageDuration() {
+            final double average = Double.longBitsToDouble(averageDuration.get());
+            return Double.isNaN(average) ? 0 : Math.round(average);
+        }
+
+        private void seedAverage(long estimatedDuration) {
+            if (estimatedDuration > 0) {
+                averageDuration.compareAndSet(Double.doubleToLongBits(Double.NaN),
+                                              Double.doubleToLongBits(estimatedDuration));
+            }
+        }
+
+        private void addDuration(long duration) {
+            while (true) {
+                final long current = averageDuration.get();
+                final double average = Double.longBitsToDouble(current);
+                final double next = Double.isNaN(average) ? duration : average + ALPHA * (duration - average);
+                if (averageDuration.compareAndSet(current, Double.doubleToLongBits(next))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final Thread thread;
+        private final AtomicBoolean signaled = new AtomicBoolean();
+
+        private Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
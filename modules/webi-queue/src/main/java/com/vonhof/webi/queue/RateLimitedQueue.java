@@ -4,7 +4,7 @@ import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
-public abstract class RateLimitedQueue<T extends Task,U extends Serializable>  {
+public abstract class RateLimitedQueue<T extends Task<?>,U extends Serializable>  {
 
     private final Map<String, Integer> taskTypeRateLimits = new ConcurrentHashMap<String, Integer>();
 
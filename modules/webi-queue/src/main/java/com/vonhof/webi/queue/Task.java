@@ -1,17 +1,17 @@
 package com.vonhof.webi.queue;
 
 import java.io.Serializable;
-import java.lang.ref.WeakReference;
 import java.util.UUID;
 
 public class Task<T extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private final UUID id;
     private final String type;
     private long estimatedDuration;
     private long actualDuration;
 
-    private transient WeakReference<T> data;
+    private T data;
 
     public Task(String type) {
         this.id = UUID.randomUUID();
@@ -43,10 +43,10 @@ public class Task<T extends Serializable> implements Serializable {
     }
 
     public T getData() {
-        return data.get();
+        return data;
     }
 
     public void setData(T data) {
-        this.data = new WeakReference<T>(data);
+        this.data = data;
     }
 }
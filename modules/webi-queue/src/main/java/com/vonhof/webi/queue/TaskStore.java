@@ -3,7 +3,7 @@ package com.vonhof.webi.queue;
 
 import java.util.UUID;
 
-public interface TaskStore<T extends Task> {
+public interface TaskStore<T extends Task<?>> {
 
     public T get(UUID id);
 
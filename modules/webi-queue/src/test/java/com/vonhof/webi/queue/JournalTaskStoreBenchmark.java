@@ -0,0 +1,60 @@
+package com.vonhof.webi.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures durable puts per second with an increasing number of threads - threads putting at the same time share
+ * an fsync. Run as a plain java program - optionally with the journal directory as argument.
+ */
+public class JournalTaskStoreBenchmark {
+    private static final int PUTS_PER_THREAD = 2000;
+
+    public static void main(String[] args) throws Exception {
+        final File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"),
+                "webi-journal-benchmark");
+
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            final JournalTaskStore<TextTask> store = new JournalTaskStore<TextTask>(directory, TextTask.class);
+            run(store, threads);
+            store.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void run(final JournalTaskStore<TextTask> store, int threads) throws Exception {
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final TextTask[] tasks = new TextTask[PUTS_PER_THREAD];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new TextTask("type");
+                tasks[i].setData("payload " + i);
+            }
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (TextTask task : tasks) {
+                        store.put(task);
+                        store.remove(task);
+                    }
+                }
+            }));
+        }
+
+        final long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%3d threads: %,8d durable puts/s",
+                threads, (long) (threads * PUTS_PER_THREAD / (elapsed / 1e9))));
+    }
+}
@@ -0,0 +1,132 @@
+package com.vonhof.webi.queue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class JournalTaskStoreTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "webi-journal-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private TextTask task(String data) {
+        final TextTask out = new TextTask("type");
+        out.setData(data);
+        return out;
+    }
+
+    @Test
+    public void keeps_tasks_across_restarts() throws Exception {
+        JournalTaskStore<TextTask> store = new JournalTaskStore<TextTask>(directory, TextTask.class);
+        final TextTask first = task("first");
+        final TextTask second = task("second");
+        final TextTask third = task("third");
+        store.put(first);
+        store.put(second);
+        store.put(third);
+        store.remove(second);
+        store.close();
+
+        store = new JournalTaskStore<TextTask>(directory, TextTask.class);
+        assertEquals(2, store.size());
+        assertEquals("first", store.get(first.getId()).getData());
+        assertNull(store.get(second.getId()));
+
+        final MemoryRateLimitedQueue<TextTask, String> queue = new MemoryRateLimitedQueue<TextTask, String>(store);
+        assertEquals(2, store.recover(queue));
+        assertEquals(first.getId(), queue.acquire(0, TimeUnit.MILLISECONDS).getId());
+        assertEquals(third.getId(), queue.acquire(0, TimeUnit.MILLISECONDS).getId());
+
+        queue.acknowledge(first.getId(), "done");
+        assertEquals(1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void ignores_record_cut_short_by_crash() throws Exception {
+        JournalTaskStore<TextTask> store = new JournalTaskStore<TextTask>(directory, TextTask.class, 4096);
+        final TextTask task = task("data");
+        store.put(task);
+        store.close();
+
+        //Append the start of a record that was never completed
+        final RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+        long end = 0;
+        while (file.length() > end + 4) {
+            file.seek(end);
+            final int length = file.readInt();
+            if (length == 0) {
+                break;
+            }
+            end += 4 + length;
+        }
+        file.seek(end);
+        file.writeInt(500);
+        file.write(new byte[]{1, 2, 3});
+        file.close();
+
+        store = new JournalTaskStore<TextTask>(directory, TextTask.class, 4096);
+        assertEquals(1, store.size());
+        final TextTask next = task("next");
+        store.put(next);
+        store.close();
+
+        store = new JournalTaskStore<TextTask>(directory, TextTask.class, 4096);
+        assertEquals(2, store.size());
+        assertEquals("next", store.get(next.getId()).getData());
+        store.close();
+    }
+
+    @Test
+    public void compaction_deletes_removed_segments() throws Exception {
+        JournalTaskStore<TextTask> store = new JournalTaskStore<TextTask>(directory, TextTask.class, 4096);
+        final List<TextTask> tasks = new ArrayList<TextTask>();
+        for (int i = 0; i < 200; i++) {
+            final TextTask task = task("task " + i);
+            store.put(task);
+            tasks.add(task);
+        }
+        final int segments = store.getSegmentCount();
+        assertTrue(segments > 5);
+
+        //Keep every 20th task
+        for (int i = 0; i < tasks.size(); i++) {
+            if (i % 20 != 0) {
+                store.remove(tasks.get(i));
+            }
+        }
+        store.compact();
+        assertTrue(store.getSegmentCount() < segments / 2);
+        store.close();
+
+        store = new JournalTaskStore<TextTask>(directory, TextTask.class, 4096);
+        assertEquals(10, store.size());
+        assertEquals("task 20", store.get(tasks.get(20).getId()).getData());
+        assertNull(store.get(tasks.get(21).getId()));
+        store.close();
+    }
+}
@@ -0,0 +1,88 @@
+package com.vonhof.webi.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures submit, acquire and acknowledge throughput with many rate limited task types.
+ * Run as a plain java program - optionally with producers, consumers and task types as arguments.
+ */
+public class MemoryRateLimitedQueueBenchmark {
+    private static final int TASKS = 5000000;
+    private static final int RATE_LIMIT = 8;
+
+    public static void main(String[] args) throws Exception {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        final int taskTypes = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        //Warm up
+        run(producers, consumers, taskTypes, TASKS / 5);
+        run(producers, consumers, taskTypes, TASKS);
+    }
+
+    private static void run(int producers, int consumers, int taskTypes, final int tasks) throws Exception {
+        final MemoryRateLimitedQueue<Task<?>, String> queue = new MemoryRateLimitedQueue<Task<?>, String>();
+        final String[] types = new String[taskTypes];
+        for (int i = 0; i < taskTypes; i++) {
+            types[i] = "type-" + i;
+            queue.setTaskTypeRateLimit(types[i], RATE_LIMIT);
+        }
+
+        //Tasks are created up front - UUID.randomUUID is slower than the queue
+        final List<Task<?>[]> batches = new ArrayList<Task<?>[]>();
+        for (int p = 0; p < producers; p++) {
+            final Task<?>[] batch = new Task<?>[tasks / producers];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = new Task<String>(types[(i * producers + p) % taskTypes]);
+            }
+            batches.add(batch);
+        }
+        final int total = (tasks / producers) * producers;
+
+        final AtomicLong acknowledged = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(consumers);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (acknowledged.get() < total) {
+                        final Task<?> task = queue.acquire(10, TimeUnit.MILLISECONDS);
+                        if (task != null) {
+                            task.setActualDuration(1);
+                            queue.acknowledge(task.getId(), "done");
+                            acknowledged.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+        for (final Task<?>[] batch : batches) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Task<?> task : batch) {
+                        queue.submit(task);
+                    }
+                }
+            }));
+        }
+
+        final long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        done.await();
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%d producers, %d consumers, %d task types: %,d tasks in %d ms - %,d tasks/s",
+                producers, consumers, taskTypes, total,
+                TimeUnit.NANOSECONDS.toMillis(elapsed),
+                (long) (total / (elapsed / 1e9))));
+    }
+}
@@ -0,0 +1,129 @@
+package com.vonhof.webi.queue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+
+public class MemoryRateLimitedQueueTest {
+
+    private MemoryRateLimitedQueue<Task<String>, String> queue() {
+        return new MemoryRateLimitedQueue<Task<String>, String>();
+    }
+
+    @Test
+    public void enforces_task_type_rate_limit() {
+        final MemoryRateLimitedQueue<Task<String>, String> queue = queue();
+        queue.setTaskTypeRateLimit("slow", 1);
+        final Task<String> first = new Task<String>("slow");
+        final Task<String> second = new Task<String>("slow");
+        final Task<String> other = new Task<String>("fast");
+        queue.submit(first);
+        queue.submit(second);
+        queue.submit(other);
+
+        final Task<String> a = queue.acquire(0, TimeUnit.MILLISECONDS);
+        final Task<String> b = queue.acquire(0, TimeUnit.MILLISECONDS);
+        assertNull(queue.acquire(0, TimeUnit.MILLISECONDS));
+        assertTrue(a == first || b == first);
+        assertTrue(a == other || b == other);
+
+        queue.acknowledge(first.getId(), "done");
+        assertSame(second, queue.acquire(0, TimeUnit.MILLISECONDS));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void acquire_waits_for_submit() throws Exception {
+        final MemoryRateLimitedQueue<Task<String>, String> queue = queue();
+        final AtomicReference<Task<String>> acquired = new AtomicReference<Task<String>>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquired.set(queue.acquire());
+                done.countDown();
+            }
+        });
+        consumer.start();
+
+        Thread.sleep(50);
+        assertNull(acquired.get());
+
+        final Task<String> task = new Task<String>("type");
+        queue.submit(task);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertSame(task, acquired.get());
+    }
+
+    @Test
+    public void acquire_picks_up_raised_rate_limit() {
+        final MemoryRateLimitedQueue<Task<String>, String> queue = queue();
+        queue.setTaskTypeRateLimit("type", 0);
+        final Task<String> task = new Task<String>("type");
+        queue.submit(task);
+        assertNull(queue.acquire(0, TimeUnit.MILLISECONDS));
+
+        queue.setTaskTypeRateLimit("type", 1);
+        assertSame(task, queue.acquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void reject_resubmits_to_end_of_queue() {
+        final MemoryRateLimitedQueue<Task<String>, String> queue = queue();
+        final Task<String> first = new Task<String>("type");
+        final Task<String> second = new Task<String>("type");
+        queue.submit(first);
+        queue.submit(second);
+
+        assertSame(first, queue.acquire(0, TimeUnit.MILLISECONDS));
+        queue.reject(first.getId(), true);
+        assertEquals(2, queue.getPending().size());
+        assertSame(second, queue.acquire(0, TimeUnit.MILLISECONDS));
+        assertSame(first, queue.acquire(0, TimeUnit.MILLISECONDS));
+
+        queue.reject(first.getId(), false);
+        assertNull(queue.get(first.getId()));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void removes_only_pending_tasks() {
+        final MemoryRateLimitedQueue<Task<String>, String> queue = queue();
+        final Task<String> running = new Task<String>("type");
+        final Task<String> pending = new Task<String>("type");
+        queue.submit(running);
+        queue.submit(pending);
+        assertSame(running, queue.acquire(0, TimeUnit.MILLISECONDS));
+
+        assertFalse(queue.remove(running));
+        assertTrue(queue.remove(pending));
+        assertNull(queue.acquire(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void estimates_time_left_from_actual_durations() {
+        final MemoryRateLimitedQueue<Task<String>, String> queue = queue();
+        queue.setTaskTypeRateLimit("type", 2);
+        for (int i = 0; i < 5; i++) {
+            final Task<String> task = new Task<String>("type");
+            task.setEstimatedDuration(10);
+            queue.submit(task);
+        }
+        //3 rounds of 2 tasks
+        assertEquals(30, queue.getEstimatedTimeLeft("type"));
+
+        final Task<String> task = queue.acquire(0, TimeUnit.MILLISECONDS);
+        task.setActualDuration(110);
+        queue.acknowledge(task.getId(), "done");
+        assertEquals(20, queue.getAverageDuration("type"));
+        assertEquals(40, queue.getEstimatedTimeLeft("type"));
+        assertEquals(40, queue.getEstimatedTimeLeft());
+        assertEquals(0, queue.getEstimatedTimeLeft("unknown"));
+    }
+}
@@ -0,0 +1,12 @@
+package com.vonhof.webi.queue;
+
+/**
+ * Task with text data for tests
+ */
+public class TextTask extends Task<String> {
+    private static final long serialVersionUID = 1L;
+
+    public TextTask(String type) {
+        super(type);
+    }
+}
@@ -0,0 +1,572 @@
+package com.vonhof.webi.websockets;
+
+import com.vonhof.babelshark.BabelSharkInstance;
+import com.vonhof.babelshark.Input;
+import com.vonhof.babelshark.exception.MappingException;
+import com.vonhof.babelshark.node.ArrayNode;
+import com.vonhof.babelshark.node.ObjectNode;
+import com.vonhof.babelshark.node.SharkNode;
+import com.vonhof.babelshark.node.ValueNode;
+import com.vonhof.babelshark.reflect.ClassInfo;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of socket events. Used for clients connecting with the webi-binary sub protocol.
+ *
+ * An event is its type as a string value followed by an array value of its arguments. Every value starts with a
+ * one byte tag - integers are zigzag varints, floating point numbers are big endian IEEE 754 and strings, byte arrays,
+ * arrays and maps are prefixed with their length as a varint. Numeric arrays are written without a tag per element.
+ *
+ * Other objects - including dates, enums and UUIDs - are converted by BabelShark the same way as for the text protocol.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class BinaryEventCodec {
+    /**
+     * Sub protocol clients ask for to use binary events
+     */
+    public static final String SUBPROTOCOL = "webi-binary";
+
+    static final byte NULL = 0x00;
+    static final byte FALSE = 0x01;
+    static final byte TRUE = 0x02;
+    static final byte INT = 0x03;
+    static final byte FLOAT = 0x04;
+    static final byte DOUBLE = 0x05;
+    static final byte STRING = 0x06;
+    static final byte BYTES = 0x07;
+    static final byte ARRAY = 0x08;
+    static final byte MAP = 0x09;
+    static final byte INT_ARRAY = 0x0A;
+    static final byte FLOAT_ARRAY = 0x0B;
+    static final byte DOUBLE_ARRAY = 0x0C;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryEventCodec() {
+
+    }
+
+    /**
+     * Encode event
+     * @param type
+     * @param args
+     * @param bs used to convert objects
+     * @return read only buffer
+     * @throws MappingException if an argument can not be converted
+     */
+    public static ByteBuffer encode(String type, Object[] args, BabelSharkInstance bs) throws MappingException {
+        final Writer writer = new Writer(64, bs);
+        writer.write(type);
+        writer.write(args);
+        return ByteBuffer.wrap(writer.buf, 0, writer.pos).asReadOnlyBuffer();
+    }
+
+    private static final class Writer {
+        private final BabelSharkInstance bs;
+        private byte[] buf;
+        private int pos;
+
+        private Writer(int size, BabelSharkInstance bs) {
+            this.bs = bs;
+            buf = new byte[size];
+        }
+
+        private void ensure(int bytes) {
+            if (pos + bytes > buf.length) {
+                final byte[] larger = new byte[Math.max(buf.length * 2, pos + bytes)];
+                System.arraycopy(buf, 0, larger, 0, pos);
+                buf = larger;
+            }
+        }
+
+        private void tag(byte tag) {
+            ensure(1);
+            buf[pos++] = tag;
+        }
+
+        private void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        private void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        private void int32(int value) {
+            ensure(4);
+            buf[pos++] = (byte) (value >>> 24);
+            buf[pos++] = (byte) (value >>> 16);
+            buf[pos++] = (byte) (value >>> 8);
+            buf[pos++] = (byte) value;
+        }
+
+        private void int64(long value) {
+            int32((int) (value >>> 32));
+            int32((int) value);
+        }
+
+        private void bytes(byte[] value) {
+            varint(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, buf, pos, value.length);
+            pos += value.length;
+        }
+
+        private void write(Object value) throws MappingException {
+            if (value == null) {
+                tag(NULL);
+            } else if (value instanceof Boolean) {
+                tag((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                tag(DOUBLE);
+                int64(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof Float) {
+                tag(FLOAT);
+                int32(Float.floatToIntBits((Float) value));
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                tag(INT);
+                zigzag(((Number) value).longValue());
+            } else if (value instanceof Number || value instanceof CharSequence || value instanceof Character) {
+                //Includes BigDecimal and BigInteger - these may not fit a long or double
+                tag(STRING);
+                bytes(value.toString().getBytes(UTF8));
+            } else if (value instanceof byte[]) {
+                tag(BYTES);
+                bytes((byte[]) value);
+            } else if (value.getClass().isArray()) {
+                writeArray(value);
+            } else if (value instanceof Collection) {
+                final Collection<?> values = (Collection<?>) value;
+                tag(ARRAY);
+                varint(values.size());
+                for (Object v : values) {
+                    write(v);
+                }
+            } else if (value instanceof Map) {
+                final Map<?, ?> values = (Map<?, ?>) value;
+                tag(MAP);
+                varint(values.size());
+                for (Map.Entry<?, ?> entry : values.entrySet()) {
+                    write(String.valueOf(entry.getKey()));
+                    write(entry.getValue());
+                }
+            } else if (value instanceof SharkNode) {
+                writeNode((SharkNode) value);
+            } else {
+                writeObject(value);
+            }
+        }
+
+        private void writeArray(Object value) throws MappingException {
+            if (value instanceof double[]) {
+                final double[] values = (double[]) value;
+                tag(DOUBLE_ARRAY);
+                varint(values.length);
+                for (double v : values) {
+                    int64(Double.doubleToLongBits(v));
+                }
+            } else if (value instanceof float[]) {
+                final float[] values = (float[]) value;
+                tag(FLOAT_ARRAY);
+                varint(values.length);
+                for (float v : values) {
+                    int32(Float.floatToIntBits(v));
+                }
+            } else if (value instanceof int[]) {
+                final int[] values = (int[]) value;
+                tag(INT_ARRAY);
+                varint(values.length);
+                for (int v : values) {
+                    zigzag(v);
+                }
+            } else if (value instanceof long[]) {
+                final long[] values = (long[]) value;
+                tag(INT_ARRAY);
+                varint(values.length);
+                for (long v : values) {
+                    zigzag(v);
+                }
+            } else if (value instanceof short[]) {
+                final short[] values = (short[]) value;
+                tag(INT_ARRAY);
+                varint(values.length);
+                for (short v : values) {
+                    zigzag(v);
+                }
+            } else if (value instanceof char[]) {
+                write(new String((char[]) value));
+            } else {
+                //Object and boolean arrays
+                final int length = Array.getLength(value);
+                tag(ARRAY);
+                varint(length);
+                for (int i = 0; i < length; i++) {
+                    write(Array.get(value, i));
+                }
+            }
+        }
+
+        private void writeNode(SharkNode node) throws MappingException {
+            if (node instanceof ObjectNode) {
+                final ObjectNode object = (ObjectNode) node;
+                tag(MAP);
+                varint(object.getFields().size());
+                for (String field : object.getFields()) {
+                    write(field);
+                    write(object.get(field));
+                }
+            } else if (node instanceof ArrayNode) {
+                final ArrayNode array = (ArrayNode) node;
+                tag(ARRAY);
+                varint(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    write(array.get(i));
+                }
+            } else if (node instanceof ValueNode) {
+                write(((ValueNode) node).getValue());
+            } else {
+                tag(NULL);
+            }
+        }
+
+        /**
+         * Write object as its text protocol representation
+         */
+        private void writeObject(Object value) throws MappingException {
+            final byte[] text = bs.writeToByteArray(value, "json");
+            writeNode(bs.read(new Input(new ByteArrayInputStream(text), "json"), SharkNode.class));
+        }
+    }
+
+    /**
+     * Reads an encoded event - values are converted directly to the requested type where possible
+     */
+    static final class Reader {
+        private final ByteBuffer buf;
+
+        Reader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * Read event type
+         * @return
+         */
+        String readType() {
+            final byte tag = buf.get();
+            if (tag != STRING) {
+                throw new IllegalArgumentException("Expected event type but got value of type " + tag);
+            }
+            return readString();
+        }
+
+        /**
+         * Read header of the argument array
+         * @return amount of arguments
+         */
+        int readArgCount() {
+            if (!buf.hasRemaining()) {
+                return 0;
+            }
+            final byte tag = buf.get();
+            if (tag == NULL) {
+                return 0;
+            }
+            if (tag != ARRAY) {
+                throw new IllegalArgumentException("Expected event arguments but got value of type " + tag);
+            }
+            return length();
+        }
+
+        /**
+         * Read next value as type
+         * @param type
+         * @param bs used to map maps and arrays to other types
+         * @return
+         * @throws MappingException
+         */
+        Object read(ClassInfo<?> type, BabelSharkInstance bs) throws MappingException {
+            final Class<?> clz = type.getType();
+            final int start = buf.position();
+            final byte tag = buf.get();
+
+            if (tag == MAP) {
+                if (clz.isAssignableFrom(LinkedHashMap.class)) {
+                    return readValue(tag);
+                }
+                return bs.read(readNode(tag), type);
+            }
+
+            if (isArray(tag)) {
+                if (clz.isArray()) {
+                    buf.position(start);
+                    return readArray(clz.getComponentType());
+                }
+                if (clz.isAssignableFrom(ArrayList.class)) {
+                    return toList(readValue(tag));
+                }
+                return bs.read(readNode(tag), type);
+            }
+
+            return convert(readValue(tag), clz);
+        }
+
+        private List<Object> toList(Object value) {
+            if (value instanceof List) {
+                return (List<Object>) value;
+            }
+            //Numeric arrays
+            final int length = Array.getLength(value);
+            final List<Object> out = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++) {
+                out.add(Array.get(value, i));
+            }
+            return out;
+        }
+
+        private int length() {
+            final long length = varint();
+            if (length < 0 || length > buf.remaining()) {
+                throw new IllegalArgumentException("Invalid length: " + length);
+            }
+            return (int) length;
+        }
+
+        private long varint() {
+            long out = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = buf.get();
+                out |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return out;
+                }
+            }
+            throw new IllegalArgumentException("Invalid varint");
+        }
+
+        private long zigzag() {
+            final long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readString() {
+            final int length = length();
+            final String out = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF8);
+            buf.position(buf.position() + length);
+            return out;
+        }
+
+        private Object readValue(byte tag) {
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case INT:
+                    return zigzag();
+                case FLOAT:
+                    return Float.intBitsToFloat(buf.getInt());
+                case DOUBLE:
+                    return Double.longBitsToDouble(buf.getLong());
+                case STRING:
+                    return readString();
+                case BYTES: {
+                    final byte[] out = new byte[length()];
+                    buf.get(out);
+                    return out;
+                }
+                case ARRAY: {
+                    final int length = length();
+                    final List<Object> out = new ArrayList<Object>(length);
+                    for (int i = 0; i < length; i++) {
+                        out.add(readValue(buf.get()));
+                    }
+                    return out;
+                }
+                case MAP: {
+                    final int length = length();
+                    final Map<String, Object> out = new LinkedHashMap<String, Object>();
+                    for (int i = 0; i < length; i++) {
+                        out.put(String.valueOf(readValue(buf.get())), readValue(buf.get()));
+                    }
+                    return out;
+                }
+                case INT_ARRAY: {
+                    final long[] out = new long[length()];
+                    for (int i = 0; i < out.length; i++) {
+                        out[i] = zigzag();
+                    }
+                    return out;
+                }
+                case FLOAT_ARRAY: {
+                    final float[] out = new float[length()];
+                    for (int i = 0; i < out.length; i++) {
+                        out[i] = Float.intBitsToFloat(buf.getInt());
+                    }
+                    return out;
+                }
+                case DOUBLE_ARRAY: {
+                    final double[] out = new double[length()];
+                    for (int i = 0; i < out.length; i++) {
+                        out[i] = Double.longBitsToDouble(buf.getLong());
+                    }
+                    return out;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown value type: " + tag);
+            }
+        }
+
+        /**
+         * Read array value into array of component type - numeric arrays are read without boxing
+         * @param componentType
+         * @return
+         */
+        private Object readArray(Class<?> componentType) {
+            final byte tag = buf.get();
+            final int length = length();
+            final Object out = Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) {
+                switch (tag) {
+                    case INT_ARRAY:
+                        setNumber(out, i, componentType, zigzag());
+                        break;
+                    case FLOAT_ARRAY:
+                        setNumber(out, i, componentType, Float.intBitsToFloat(buf.getInt()));
+                        break;
+                    case DOUBLE_ARRAY:
+                        setNumber(out, i, componentType, Double.longBitsToDouble(buf.getLong()));
+                        break;
+                    default:
+                        Array.set(out, i, convert(readValue(buf.get()), componentType));
+                }
+            }
+            return out;
+        }
+
+        private void setNumber(Object array, int i, Class<?> componentType, long value) {
+            if (componentType == long.class) {
+                Array.setLong(array, i, value);
+            } else if (componentType == int.class) {
+                Array.setInt(array, i, (int) value);
+            } else if (componentType == double.class) {
+                Array.setDouble(array, i, value);
+            } else {
+                Array.set(array, i, convert(value, componentType));
+            }
+        }
+
+        private void setNumber(Object array, int i, Class<?> componentType, double value) {
+            if (componentType == double.class) {
+                Array.setDouble(array, i, value);
+            } else if (componentType == float.class) {
+                Array.setFloat(array, i, (float) value);
+            } else {
+                Array.set(array, i, convert(value, componentType));
+            }
+        }
+
+        private SharkNode readNode(byte tag) {
+            if (tag == MAP) {
+                final ObjectNode out = new ObjectNode();
+                fill(out);
+                return out;
+            }
+            final ArrayNode out = new ArrayNode();
+            fill(out, tag);
+            return out;
+        }
+
+        private void fill(ObjectNode node) {
+            final int length = length();
+            for (int i = 0; i < length; i++) {
+                final String field = String.valueOf(readValue(buf.get()));
+                final byte valueTag = buf.get();
+                if (valueTag == MAP) {
+                    fill(node.putObject(field));
+                } else if (isArray(valueTag)) {
+                    fill(node.putArray(field), valueTag);
+                } else {
+                    node.put(field, readValue(valueTag));
+                }
+            }
+        }
+
+        private void fill(ArrayNode node, byte tag) {
+            if (tag != ARRAY) {
+                //Numeric arrays
+                final Object values = readValue(tag);
+                for (int i = 0; i < Array.getLength(values); i++) {
+                    node.add(Array.get(values, i));
+                }
+                return;
+            }
+            final int length = length();
+            for (int i = 0; i < length; i++) {
+                final byte valueTag = buf.get();
+                if (valueTag == MAP) {
+                    fill(node.addObject());
+                } else if (isArray(valueTag)) {
+                    final ArrayNode child = new ArrayNode();
+                    fill(child, valueTag);
+                    node.add(child);
+                } else {
+                    node.add(readValue(valueTag));
+                }
+            }
+        }
+
+        private boolean isArray(byte tag) {
+            return tag == ARRAY || tag == INT_ARRAY || tag == FLOAT_ARRAY || tag == DOUBLE_ARRAY;
+        }
+
+        private Object convert(Object value, Class<?> type) {
+            if (value == null || type.isInstance(value)) {
+                if (value == null && type.isPrimitive()) {
+                    throw new IllegalArgumentException("Missing value for " + type);
+                }
+                return value;
+            }
+            if (type == String.class) {
+                return String.valueOf(value);
+            }
+            if (value instanceof Number) {
+                final Number number = (Number) value;
+                if (type == int.class || type == Integer.class) return number.intValue();
+                if (type == long.class || type == Long.class) return number.longValue();
+                if (type == double.class || type == Double.class) return number.doubleValue();
+                if (type == float.class || type == Float.class) return number.floatValue();
+                if (type == short.class || type == Short.class) return number.shortValue();
+                if (type == byte.class || type == Byte.class) return number.byteValue();
+                if (type == Date.class) return new Date(number.longValue());
+            }
+            if (value instanceof Boolean && type == boolean.class) {
+                return value;
+            }
+            if (value instanceof String) {
+                final String str = (String) value;
+                if (type.isEnum()) return Enum.valueOf((Class<Enum>) type, str);
+                if (type == char.class || type == Character.class) return str.isEmpty() ? null : str.charAt(0);
+            }
+            throw new IllegalArgumentException("Can not convert " + value.getClass().getSimpleName() + " to " + type);
+        }
+    }
+}
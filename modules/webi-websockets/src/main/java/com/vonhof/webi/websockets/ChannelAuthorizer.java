@@ -0,0 +1,15 @@
+package com.vonhof.webi.websockets;
+
+/**
+ * Decides which channels clients can subscribe to themselves
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface ChannelAuthorizer {
+
+    /**
+     * @param client client asking to subscribe
+     * @param channel
+     * @return true if the client may subscribe to channel
+     */
+    public boolean canSubscribe(SocketService.Client client, String channel);
+}
@@ -0,0 +1,17 @@
+package com.vonhof.webi.websockets;
+
+/**
+ * What to do when the outbound queue of a client is full - i.e. the client reads slower than events are sent to it
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public enum SlowClientPolicy {
+    /**
+     * Drop the oldest queued message to make room for the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * Close the connection to the client
+     */
+    DISCONNECT
+}
@@ -1,5 +1,6 @@
 package com.vonhof.webi.websockets;
 
+import com.vonhof.babelshark.BabelShark;
 import com.vonhof.babelshark.BabelSharkInstance;
 import com.vonhof.babelshark.node.ArrayNode;
 import com.vonhof.babelshark.node.ObjectNode;
@@ -12,28 +13,61 @@ import com.vonhof.webi.HttpException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.frames.BinaryFrame;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
 
 import javax.inject.Inject;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Websocket service - handles events from clients and sends events to them.
+ *
+ * Events are serialized once and written asynchronously to each client. Every client has a bounded outbound queue
+ * so a slow client never blocks the sender or other clients - when the queue is full the slow client policy decides
+ * whether messages are dropped or the client is disconnected.
+ *
+ * Clients can subscribe to named channels - publishing to a channel only reaches its subscribers. Clients may only
+ * subscribe themselves to channels allowed by the channel authorizer or by overriding Client.canSubscribe.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
 public class SocketService<T extends SocketService.Client>  {
     private static final Logger log = LogManager.getLogger(SocketService.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     @Inject
-    private BabelSharkInstance bs;
+    private BabelSharkInstance bs = BabelShark.getDefaultInstance();
     
     private final ConcurrentLinkedQueue<Client> clients = new ConcurrentLinkedQueue<Client>();
+    private final ConcurrentHashMap<String, CopyOnWriteArraySet<Client>> channels =
+            new ConcurrentHashMap<String, CopyOnWriteArraySet<Client>>();
     private final Map<String, MethodInfo> eventHandlers = new HashMap<String, MethodInfo>();
     private final ClassInfo<T> clientClass;
+    private final AtomicLong droppedMessages = new AtomicLong();
     private String contentType = "json";
+    private int maxQueuedMessages = 256;
+    private SlowClientPolicy slowClientPolicy = SlowClientPolicy.DROP_OLDEST;
+    private ChannelAuthorizer channelAuthorizer;
     
     public SocketService(Class<T> clientClass) {
         this.clientClass = ClassInfo.from(clientClass);
@@ -53,6 +87,47 @@ public class SocketService<T extends SocketService.Client>  {
         this.contentType = contentType;
     }
 
+    public int getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    /**
+     * Max messages waiting to be written to a single client before the slow client policy applies
+     * @param maxQueuedMessages
+     */
+    public void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    public SlowClientPolicy getSlowClientPolicy() {
+        return slowClientPolicy;
+    }
+
+    public void setSlowClientPolicy(SlowClientPolicy slowClientPolicy) {
+        this.slowClientPolicy = slowClientPolicy;
+    }
+
+    public ChannelAuthorizer getChannelAuthorizer() {
+        return channelAuthorizer;
+    }
+
+    /**
+     * Decides which channels clients can subscribe to themselves - without it clients can not subscribe to any
+     * channel unless their class overrides canSubscribe.
+     * @param channelAuthorizer
+     */
+    public void setChannelAuthorizer(ChannelAuthorizer channelAuthorizer) {
+        this.channelAuthorizer = channelAuthorizer;
+    }
+
+    /**
+     * Messages dropped because clients were too slow
+     * @return
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
     private void readEventHandlers() {
         List<MethodInfo> methods = clientClass.getMethods();
         for (MethodInfo m : methods) {
@@ -86,51 +161,178 @@ public class SocketService<T extends SocketService.Client>  {
     }
 
     public final void broadcast(Client from,String event, Object... args) {
-        event = event.toLowerCase();
-        Event evt = new Event(event, args);
+        final Message message = new Message(new Event(event.toLowerCase(), args));
+
         for (Client client : clients) {
             if (from == client) continue;
-            send(client, evt);
+            send(client, message);
+        }
+    }
+
+    public final void publish(String channel, String event, Object... args) {
+        publish(null, channel, event, args);
+    }
+
+    /**
+     * Send event to all subscribers of channel
+     * @param from client not to send the event to - or null
+     * @param channel
+     * @param event
+     * @param args
+     */
+    public final void publish(Client from, String channel, String event, Object... args) {
+        final CopyOnWriteArraySet<Client> subscribers = channels.get(channel);
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+
+        final Message message = new Message(new Event(event.toLowerCase(), args));
+
+        for (Client client : subscribers) {
+            if (from == client) continue;
+            send(client, message);
+        }
+    }
+
+    /**
+     * Subscribe client to channel
+     * @param client
+     * @param channel
+     * @return false if the client was already subscribed
+     */
+    public boolean subscribe(Client client, String channel) {
+        while (true) {
+            CopyOnWriteArraySet<Client> subscribers = channels.get(channel);
+            if (subscribers == null) {
+                subscribers = new CopyOnWriteArraySet<Client>();
+                final CopyOnWriteArraySet<Client> existing = channels.putIfAbsent(channel, subscribers);
+                if (existing != null) {
+                    subscribers = existing;
+                }
+            }
+            final boolean added = subscribers.add(client);
+
+            //Retry if the channel was removed for being empty meanwhile
+            if (channels.get(channel) == subscribers) {
+                client.channels.add(channel);
+                return added;
+            }
+        }
+    }
+
+    /**
+     * Unsubscribe client from channel - channels are removed when their last subscriber leaves
+     * @param client
+     * @param channel
+     * @return false if the client was not subscribed
+     */
+    public boolean unsubscribe(Client client, String channel) {
+        client.channels.remove(channel);
+        final CopyOnWriteArraySet<Client> subscribers = channels.get(channel);
+        if (subscribers == null || !subscribers.remove(client)) {
+            return false;
+        }
+        if (subscribers.isEmpty()) {
+            channels.remove(channel, subscribers);
+        }
+        return true;
+    }
+
+    /**
+     * Get clients subscribed to channel
+     * @param channel
+     * @return
+     */
+    public List<T> getSubscribers(String channel) {
+        final ArrayList<T> out = new ArrayList<T>();
+        final CopyOnWriteArraySet<Client> subscribers = channels.get(channel);
+        if (subscribers != null) {
+            for (Client c : subscribers) {
+                out.add((T) c);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Names of all channels with subscribers
+     * @return
+     */
+    public Set<String> getChannels() {
+        return Collections.unmodifiableSet(channels.keySet());
+    }
+
+    private void removeClient(Client client) {
+        clients.remove(client);
+        for (Object channel : client.channels.toArray()) {
+            unsubscribe(client, (String) channel);
         }
     }
     
     
     private boolean send(Client client, Event evt) {
-        try {
-            if (!client.session.isOpen()) {
-                return false;
-            }
-            final String output = bs.writeToString(evt, contentType);
-            client.session.getRemote().sendString(output);
-            
-            return true;
-        } catch (EofException ex) {
-            //Ignore error
+        return send(client, new Message(evt));
+    }
+
+    private boolean send(Client client, Message message) {
+        final ByteBuffer buffer = message.get(client.binary);
+        return buffer != null && send(client, buffer);
+    }
+
+    /**
+     * Queue message for client
+     * @param client
+     * @param message
+     * @return false if the client is not connected or was disconnected for being too slow
+     */
+    private boolean send(Client client, ByteBuffer message) {
+        final Outbound outbound = client.outbound;
+        if (outbound == null || !client.session.isOpen()) {
             return false;
-        } catch (ClosedChannelException ex) {
+        }
+        return outbound.offer(message);
+    }
+
+    /**
+     * Write message to client without blocking. Only one write per client is in progress at any time - the next
+     * queued message is written when the callback is notified.
+     * @param client
+     * @param message UTF-8 encoded text or binary event if the client uses the binary protocol - shared between
+     *                clients so it must not be modified
+     * @param callback
+     */
+    protected void write(Client client, ByteBuffer message, WriteCallback callback) {
+        final RemoteEndpoint remote = client.session.getRemote();
+        if (remote instanceof WebSocketRemoteEndpoint) {
+            //Send the encoded bytes as is - sendString would encode the message again for every client
+            final WebSocketFrame frame = client.binary ? new BinaryFrame() : new TextFrame();
+            frame.setPayload(message);
+            ((WebSocketRemoteEndpoint) remote).uncheckedSendFrame(frame, callback);
+        } else if (client.binary) {
+            remote.sendBytes(message, callback);
+        } else {
+            remote.sendString(UTF8.decode(message).toString(), callback);
+        }
+    }
+
+    private void writeFailed(Throwable ex) {
+        if (ex instanceof EofException || ex instanceof ClosedChannelException) {
             //Ignore error
-            return false;
-        } catch (Exception ex) {
-            if (ex.getMessage() != null && ex.getMessage().contains("Broken pipe")) {
-                //Ignore error - user disconnected quickly.
-                return false;
-            }
-            log.warn("Failed while attempting to send event to client socket", ex);
-            return false;
+            return;
         }
+        if (ex.getMessage() != null && ex.getMessage().contains("Broken pipe")) {
+            //Ignore error - user disconnected quickly.
+            return;
+        }
+        log.warn("Failed while attempting to send message to client socket", ex);
     }
-    
-    private boolean send(Client client, byte[] data) {
+
+    private void disconnect(Client client) {
+        removeClient(client);
         try {
-            if (!client.session.isOpen()) {
-                return false;
-            }
-            
-            client.session.getRemote().sendString(new String(data,"UTF-8"));
-            return true;
+            client.session.close(StatusCode.POLICY_VIOLATION, "Client is too slow");
         } catch (Exception ex) {
-            log.warn("Failed while attempting to send message to client socket", ex);
-            return false;
+            log.debug("Failed to close slow client socket", ex);
         }
     }
     
@@ -140,8 +342,118 @@ public class SocketService<T extends SocketService.Client>  {
         return (T) client;
     }
 
+    /**
+     * Event to send to one or more clients - encoded at most once per protocol
+     */
+    private final class Message {
+        private final Event evt;
+        private ByteBuffer text;
+        private ByteBuffer binary;
+        private boolean failed;
+
+        private Message(Event evt) {
+            this.evt = evt;
+        }
+
+        private ByteBuffer get(boolean binaryProtocol) {
+            if (failed) {
+                return null;
+            }
+            try {
+                if (binaryProtocol) {
+                    if (binary == null) {
+                        binary = BinaryEventCodec.encode(evt.getType(), evt.getArgs(), bs);
+                    }
+                    return binary;
+                }
+                if (text == null) {
+                    text = ByteBuffer.wrap(bs.writeToByteArray(evt, contentType)).asReadOnlyBuffer();
+                }
+                return text;
+            } catch (Exception ex) {
+                failed = true;
+                log.warn("Failed to serialize event " + evt.getType(), ex);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Messages waiting to be written to a client
+     */
+    private final class Outbound implements WriteCallback {
+        private final Client client;
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        private boolean writing;
+        private boolean closed;
+
+        private Outbound(Client client) {
+            this.client = client;
+        }
+
+        private boolean offer(ByteBuffer message) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                if (writing) {
+                    if (queue.size() < maxQueuedMessages) {
+                        queue.add(message);
+                        return true;
+                    }
+                    if (slowClientPolicy == SlowClientPolicy.DROP_OLDEST) {
+                        queue.poll();
+                        queue.add(message);
+                        droppedMessages.incrementAndGet();
+                        return true;
+                    }
+                    droppedMessages.addAndGet(queue.size() + 1);
+                    queue.clear();
+                    closed = true;
+                } else {
+                    writing = true;
+                }
+            }
+
+            if (closed) {
+                disconnect(client);
+                return false;
+            }
+
+            write(client, message.duplicate(), this);
+            return true;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            queue.clear();
+        }
+
+        @Override
+        public void writeSuccess() {
+            final ByteBuffer next;
+            synchronized (this) {
+                next = closed ? null : queue.poll();
+                if (next == null) {
+                    writing = false;
+                    return;
+                }
+            }
+            write(client, next.duplicate(), this);
+        }
+
+        @Override
+        public void writeFailed(Throwable ex) {
+            close();
+            SocketService.this.writeFailed(ex);
+        }
+    }
+
     public static class Client<T extends Client> extends WebSocketAdapter {
         private Session session;
+        private volatile SocketService.Outbound outbound;
+        private volatile boolean binary;
+        private final Set<String> channels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         
         @Inject
         private SocketService<T> service;
@@ -153,11 +465,65 @@ public class SocketService<T extends SocketService.Client>  {
         public SocketService<T> getService() {
             return service;
         }
+
+        /**
+         * @return true if events are sent to and from the client with the binary protocol
+         */
+        public boolean isBinary() {
+            return binary;
+        }
+
+        void setBinary(boolean binary) {
+            this.binary = binary;
+        }
         
         @EventHandler
         public void ping() {
             
         }
+
+        /**
+         * Subscribe to channel if allowed by canSubscribe
+         * @param channel
+         */
+        @EventHandler
+        public void subscribe(String channel) {
+            if (channel == null || channel.isEmpty()) {
+                return;
+            }
+            if (!canSubscribe(channel)) {
+                throw new IllegalArgumentException("Not allowed to subscribe to channel: " + channel);
+            }
+            service.subscribe(this, channel);
+        }
+
+        @EventHandler
+        public void unsubscribe(String channel) {
+            service.unsubscribe(this, channel);
+        }
+
+        /**
+         * Override to decide which channels clients can subscribe to themselves. Asks the channel authorizer of the
+         * service - denies all channels if it has none.
+         * @param channel
+         * @return
+         */
+        protected boolean canSubscribe(String channel) {
+            final ChannelAuthorizer authorizer = service.getChannelAuthorizer();
+            return authorizer != null && authorizer.canSubscribe(this, channel);
+        }
+
+        /**
+         * Get channels the client is subscribed to
+         * @return
+         */
+        public Set<String> getChannels() {
+            return Collections.unmodifiableSet(channels);
+        }
+
+        public final void publish(String channel, String evt, Object ... args) {
+            service.publish(this, channel, evt, args);
+        }
         
         
         public final void broadcast(String evt,Object ... args) {
@@ -171,24 +537,66 @@ public class SocketService<T extends SocketService.Client>  {
             service.send(this,new Event(evt, args));
         }
         
+        /**
+         * Send UTF-8 encoded text message - or binary message if the client uses the binary protocol
+         * @param data must not be modified after it is sent
+         */
         public final void send(byte[] data) {
-            service.send(this, data);
+            service.send(this, ByteBuffer.wrap(data));
         }
 
         @Override
-        public void onWebSocketBinary(byte[] bytes, int i, int i2) {
+        public void onWebSocketBinary(byte[] payload, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            try {
+                final BinaryEventCodec.Reader reader = new BinaryEventCodec.Reader(ByteBuffer.wrap(payload, offset, length));
+                final String evtType = reader.readType().toLowerCase();
+
+                final MethodInfo evtHandler = service.eventHandlers.get(evtType);
+                if (evtHandler == null) {
+                    throw new IllegalArgumentException("Event handler for event '" + evtType + "' not found");
+                }
+
+                final int argCount = reader.readArgCount();
+                final Parameter[] parmTypes = evtHandler.getParameters().values().toArray(new Parameter[0]);
 
+                int argI = 0;
+
+                Object[] args = new Object[parmTypes.length];
+                for (int i = 0; i < args.length; i++) {
+                    Parameter p = parmTypes[i];
+                    if (p.getClassInfo().inherits(Client.class)) {
+                        args[i] = this;
+                        continue;
+                    }
+                    if (argI < argCount) {
+                        //Read directly into the parameter type
+                        args[i] = reader.read(p.getClassInfo(), service.bs);
+                    }
+                    argI++;
+                }
+
+                evtHandler.invoke(this, args);
+            } catch (Exception ex) {
+                onWebSocketError(ex);
+            }
         }
 
         @Override
         public void onWebSocketClose(int closeCode, String msg) {
-            service.clients.remove(this);
+            service.removeClient(this);
+            if (outbound != null) {
+                outbound.close();
+            }
         }
 
         @Override
         public void onWebSocketConnect(Session session) {
-            service.clients.add(this);
             this.session = session;
+            this.outbound = service.new Outbound(this);
+            service.clients.add(this);
         }
 
         @Override
@@ -11,6 +11,7 @@ import com.vonhof.webi.bean.BeanContext;
 import com.vonhof.webi.websockets.SocketService.Client;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
 import org.eclipse.jetty.websocket.server.WebSocketServerFactory;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
@@ -21,7 +22,12 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 
 /**
+ * Upgrades requests to websockets handled by the socket service at the request path.
  *
+ * Clients asking for the webi-binary sub protocol send and receive events in the binary format of BinaryEventCodec.
+ * Messages are compressed with permessage-deflate for clients that support it unless compression is disabled.
+ * Compression is only enabled while message sizes are limited - a small compressed frame can otherwise inflate into
+ * an unbounded amount of memory.
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public class WebSocketFilter extends WebSocketServerFactory implements Filter, AfterAdd {
@@ -35,6 +41,10 @@ public class WebSocketFilter extends WebSocketServerFactory implements Filter, A
      */
     private final PathPatternMap<SocketService> webSockets = new PathPatternMap<SocketService>();
 
+    private boolean compression = true;
+    private int maxTextMessageSize = 1024 * 1024;
+    private int maxBinaryMessageSize = 1024 * 1024;
+
     public WebSocketFilter() {
         super();
     }
@@ -42,7 +52,57 @@ public class WebSocketFilter extends WebSocketServerFactory implements Filter, A
     @Override
     public void afterAdd(BeanContext context) {
         getPolicy().setIdleTimeout(Long.MAX_VALUE);
-        getPolicy().setMaxTextMessageSize(Integer.MAX_VALUE);
+        getPolicy().setMaxTextMessageSize(maxTextMessageSize);
+        getPolicy().setMaxBinaryMessageSize(maxBinaryMessageSize);
+        if (compression) {
+            if (isBounded(maxTextMessageSize) && isBounded(maxBinaryMessageSize)) {
+                //Jetty does not register compression extensions by default
+                getExtensionFactory().register("permessage-deflate", PerMessageDeflateExtension.class);
+            } else {
+                log.warn("Websocket compression disabled - it requires limited message sizes");
+            }
+        }
+    }
+
+    private static boolean isBounded(int maxMessageSize) {
+        return maxMessageSize > 0 && maxMessageSize < Integer.MAX_VALUE;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Enable permessage-deflate compression - must be set before the filter is added to webi. Ignored unless both
+     * max message sizes are limited.
+     * @param compression
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public int getMaxTextMessageSize() {
+        return maxTextMessageSize;
+    }
+
+    /**
+     * Max size of text messages in characters - must be set before the filter is added to webi
+     * @param maxTextMessageSize
+     */
+    public void setMaxTextMessageSize(int maxTextMessageSize) {
+        this.maxTextMessageSize = maxTextMessageSize;
+    }
+
+    public int getMaxBinaryMessageSize() {
+        return maxBinaryMessageSize;
+    }
+
+    /**
+     * Max size of binary messages in bytes - must be set before the filter is added to webi
+     * @param maxBinaryMessageSize
+     */
+    public void setMaxBinaryMessageSize(int maxBinaryMessageSize) {
+        this.maxBinaryMessageSize = maxBinaryMessageSize;
     }
 
     /**
@@ -86,6 +146,10 @@ public class WebSocketFilter extends WebSocketServerFactory implements Filter, A
         if (service != null) {
             try {
                 Client client = service.newClient();
+                if (req.hasSubProtocol(BinaryEventCodec.SUBPROTOCOL)) {
+                    resp.setAcceptedSubProtocol(BinaryEventCodec.SUBPROTOCOL);
+                    client.setBinary(true);
+                }
                 BeanContext beanContextCopy = new BeanContext(webi.getBeanContext());
                 beanContextCopy.injectOnly(client);
                 log.debug("Created web socket client {} for service: {}", client.getClass(), service.getClass());
@@ -0,0 +1,171 @@
+package com.vonhof.webi.websockets;
+
+import com.vonhof.babelshark.BabelShark;
+import com.vonhof.babelshark.BabelSharkInstance;
+import com.vonhof.babelshark.exception.MappingException;
+import com.vonhof.babelshark.reflect.ClassInfo;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class BinaryEventCodecTest extends TestCase {
+    private final BabelSharkInstance bs = BabelShark.getDefaultInstance();
+
+    private BinaryEventCodec.Reader reader(String type, Object... args) throws Exception {
+        final ByteBuffer encoded = BinaryEventCodec.encode(type, args, bs);
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return new BinaryEventCodec.Reader(ByteBuffer.wrap(bytes));
+    }
+
+    public void testReadsScalarsAsParameterTypes() throws Exception {
+        final BinaryEventCodec.Reader reader = reader("move", 42, -7L, 2.5d, "NORTH", true, null);
+
+        assertEquals("move", reader.readType());
+        assertEquals(6, reader.readArgCount());
+        assertEquals(42, reader.read(ClassInfo.from(int.class), null));
+        assertEquals(-7, reader.read(ClassInfo.from(Integer.class), null));
+        assertEquals(2.5f, reader.read(ClassInfo.from(float.class), null));
+        assertEquals(Direction.NORTH, reader.read(ClassInfo.from(Direction.class), null));
+        assertEquals(Boolean.TRUE, reader.read(ClassInfo.from(boolean.class), null));
+        assertNull(reader.read(ClassInfo.from(String.class), null));
+    }
+
+    public void testReadsNumericArraysWithoutBoxing() throws Exception {
+        final BinaryEventCodec.Reader reader = reader("series", new double[]{1.5, -2, 3}, new int[]{1, 300, -70000},
+                new long[]{5, 6});
+
+        assertEquals("series", reader.readType());
+        assertEquals(3, reader.readArgCount());
+        assertTrue(Arrays.equals(new double[]{1.5, -2, 3}, (double[]) reader.read(ClassInfo.from(double[].class), null)));
+        assertTrue(Arrays.equals(new long[]{1, 300, -70000}, (long[]) reader.read(ClassInfo.from(long[].class), null)));
+        assertEquals(Arrays.<Object>asList(5L, 6L), reader.read(ClassInfo.from(List.class), null));
+    }
+
+    public void testReadsCollectionsAndMaps() throws Exception {
+        final Map<String, Object> point = new HashMap<String, Object>();
+        point.put("x", 1);
+        point.put("label", "a");
+        final BinaryEventCodec.Reader reader = reader("points", Arrays.asList(point, null), point);
+
+        assertEquals("points", reader.readType());
+        assertEquals(2, reader.readArgCount());
+
+        final List<Object> points = (List<Object>) reader.read(ClassInfo.from(List.class), null);
+        assertEquals(2, points.size());
+        assertEquals(1L, ((Map) points.get(0)).get("x"));
+        assertNull(points.get(1));
+
+        final Map<String, Object> map = (Map<String, Object>) reader.read(ClassInfo.from(Map.class), null);
+        assertEquals("a", map.get("label"));
+    }
+
+    public void testEncodesObjectsLikeTextProtocol() throws Exception {
+        final Update update = new Update();
+        update.setId(UUID.randomUUID());
+        update.setTime(new Date(1400000000000L));
+        update.setDirection(Direction.SOUTH);
+        update.setTags(Arrays.asList("a", "b"));
+        final Update parent = new Update();
+        parent.setDirection(Direction.NORTH);
+        update.setParent(parent);
+
+        final BinaryEventCodec.Reader reader = reader("update", update);
+        assertEquals("update", reader.readType());
+        assertEquals(1, reader.readArgCount());
+
+        final Map<String, Object> decoded = (Map<String, Object>) reader.read(ClassInfo.from(Map.class), bs);
+        assertEquals(bs.writeToString(update, "json"), bs.writeToString(decoded, "json"));
+
+        final BinaryEventCodec.Reader typed = reader("update", update);
+        typed.readType();
+        typed.readArgCount();
+        final Update read = (Update) typed.read(ClassInfo.from(Update.class), bs);
+        assertEquals(update.getId(), read.getId());
+        assertEquals(update.getTime(), read.getTime());
+        assertEquals(Direction.SOUTH, read.getDirection());
+        assertEquals(Direction.NORTH, read.getParent().getDirection());
+    }
+
+    public void testRejectsCyclicObjects() throws Exception {
+        final Update update = new Update();
+        update.setParent(update);
+        try {
+            BinaryEventCodec.encode("update", new Object[]{update}, bs);
+            fail("Expected cyclic object to be rejected");
+        } catch (MappingException ex) {
+            //Expected
+        }
+    }
+
+    public void testEncodesNumbersCompactly() throws Exception {
+        final double[] values = new double[100];
+        final int[] counts = new int[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 0.1;
+            counts[i] = i;
+        }
+        final int size = BinaryEventCodec.encode("stats", new Object[]{values, counts}, bs).remaining();
+
+        //8 bytes per double and at most 2 bytes per int below 8192 - plus type and headers
+        assertTrue("Size was " + size, size <= 100 * 8 + 100 * 2 + 16);
+    }
+
+    private static enum Direction {
+        NORTH, SOUTH
+    }
+
+    public static class Update {
+        private UUID id;
+        private Date time;
+        private Direction direction;
+        private List<String> tags;
+        private Update parent;
+
+        public UUID getId() {
+            return id;
+        }
+
+        public void setId(UUID id) {
+            this.id = id;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+
+        public void setTime(Date time) {
+            this.time = time;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        public void setDirection(Direction direction) {
+            this.direction = direction;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+
+        public void setTags(List<String> tags) {
+            this.tags = tags;
+        }
+
+        public Update getParent() {
+            return parent;
+        }
+
+        public void setParent(Update parent) {
+            this.parent = parent;
+        }
+    }
+}
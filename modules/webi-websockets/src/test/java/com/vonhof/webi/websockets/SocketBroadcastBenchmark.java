@@ -0,0 +1,131 @@
+package com.vonhof.webi.websockets;
+
+import com.vonhof.babelshark.BabelShark;
+import com.vonhof.babelshark.BabelSharkInstance;
+import com.vonhof.babelshark.language.JsonLanguage;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Broadcasts to 10k simulated clients where 1% never finish reading. Compares the broadcast pipeline with
+ * serializing the event once per client like SocketService used to. Run as a plain java program.
+ */
+public class SocketBroadcastBenchmark {
+    private static final int CLIENTS = 10000;
+    private static final int SLOW_EVERY = 100;
+    private static final int BROADCASTS = 500;
+
+    public static void main(String[] args) throws Exception {
+        BabelShark.register(new JsonLanguage());
+
+        for (SlowClientPolicy policy : SlowClientPolicy.values()) {
+            run(policy);
+        }
+        runPerClientEncoding();
+    }
+
+    private static void run(SlowClientPolicy policy) throws Exception {
+        final BenchmarkService service = new BenchmarkService();
+        service.setSlowClientPolicy(policy);
+        service.setMaxQueuedMessages(64);
+
+        for (int i = 0; i < CLIENTS; i++) {
+            final BenchmarkClient client = service.newClient();
+            client.slow = i % SLOW_EVERY == 0;
+            client.onWebSocketConnect(session());
+        }
+
+        //Warm up
+        broadcast(service, BROADCASTS);
+        service.writes = 0;
+
+        final long start = System.nanoTime();
+        broadcast(service, BROADCASTS);
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-12s %6d us/broadcast, %9d writes/s, %8d dropped, %5d clients connected",
+                policy, elapsed / BROADCASTS / 1000, service.writes * 1000000000L / elapsed,
+                service.getDroppedMessages(), service.getClients().size()));
+    }
+
+    private static void runPerClientEncoding() throws Exception {
+        final BabelSharkInstance bs = BabelShark.getDefaultInstance();
+        final SocketService.Event evt = new SocketService.Event("update", new Object[]{update(0)});
+        final int broadcasts = BROADCASTS / 10;
+
+        long sink = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++) {
+            for (int c = 0; c < CLIENTS; c++) {
+                final String output = bs.writeToString(evt, "json");
+                sink += output != null ? output.length() : 0;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-12s %6d us/broadcast spent serializing only (%d)",
+                "PER_CLIENT", elapsed / broadcasts / 1000, sink % 10));
+    }
+
+    private static void broadcast(SocketService service, int count) {
+        for (int i = 0; i < count; i++) {
+            service.broadcast("update", update(i));
+        }
+    }
+
+    private static Map<String, Object> update(int i) {
+        final Map<String, Object> out = new HashMap<String, Object>();
+        out.put("id", i);
+        out.put("widget", "throughput");
+        out.put("value", i * 1.5);
+        out.put("timestamp", System.currentTimeMillis());
+        return out;
+    }
+
+    private static Session session() {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class},
+                new InvocationHandler() {
+                    private boolean open = true;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("isOpen")) {
+                            return open;
+                        }
+                        if (method.getName().equals("close")) {
+                            open = false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    public static class BenchmarkClient extends SocketService.Client<BenchmarkClient> {
+        private boolean slow;
+    }
+
+    private static class BenchmarkService extends SocketService<BenchmarkClient> {
+        private long writes;
+
+        private BenchmarkService() {
+            super(BenchmarkClient.class);
+        }
+
+        @Override
+        protected void write(Client client, ByteBuffer message, WriteCallback callback) {
+            if (((BenchmarkClient) client).slow) {
+                //Never completes - like a client that stopped reading
+                return;
+            }
+            writes++;
+            callback.writeSuccess();
+        }
+    }
+}
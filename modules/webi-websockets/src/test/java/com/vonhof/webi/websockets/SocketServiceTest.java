@@ -0,0 +1,131 @@
+package com.vonhof.webi.websockets;
+
+import junit.framework.TestCase;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SocketServiceTest extends TestCase {
+
+    public void testDeniesSubscriptionsWithoutAuthorizer() throws Exception {
+        final SocketService<SocketService.Client> service = new SocketService<SocketService.Client>(SocketService.Client.class);
+        final SocketService.Client client = service.newClient();
+
+        try {
+            client.subscribe("news");
+            fail("Expected subscription to be denied");
+        } catch (IllegalArgumentException ex) {
+            //Expected
+        }
+        assertTrue(service.getSubscribers("news").isEmpty());
+        assertTrue(client.getChannels().isEmpty());
+    }
+
+    public void testAsksAuthorizerBeforeSubscribing() throws Exception {
+        final SocketService<SocketService.Client> service = new SocketService<SocketService.Client>(SocketService.Client.class);
+        service.setChannelAuthorizer(new ChannelAuthorizer() {
+            @Override
+            public boolean canSubscribe(SocketService.Client client, String channel) {
+                return channel.startsWith("public.");
+            }
+        });
+        final SocketService.Client client = service.newClient();
+
+        client.subscribe("public.news");
+        assertEquals(1, service.getSubscribers("public.news").size());
+
+        try {
+            client.subscribe("private.news");
+            fail("Expected subscription to be denied");
+        } catch (IllegalArgumentException ex) {
+            //Expected
+        }
+        assertTrue(service.getSubscribers("private.news").isEmpty());
+    }
+
+    public void testDropsOldestQueuedMessagesOfSlowClients() throws Exception {
+        final HeldWritesService service = new HeldWritesService();
+        service.setMaxQueuedMessages(2);
+        final SocketService.Client client = service.newClient();
+        final boolean[] open = {true};
+        client.onWebSocketConnect(session(open));
+
+        for (int i = 1; i <= 5; i++) {
+            client.send(String.valueOf(i).getBytes("UTF-8"));
+        }
+        //First message is being written, 2 and 3 were dropped to make room for 4 and 5
+        assertEquals(2, service.getDroppedMessages());
+
+        service.completeWrites();
+        assertEquals("[1, 4, 5]", service.written.toString());
+        assertTrue(open[0]);
+        assertEquals(1, service.getClients().size());
+    }
+
+    public void testDisconnectsSlowClients() throws Exception {
+        final HeldWritesService service = new HeldWritesService();
+        service.setMaxQueuedMessages(2);
+        service.setSlowClientPolicy(SlowClientPolicy.DISCONNECT);
+        final SocketService.Client client = service.newClient();
+        final boolean[] open = {true};
+        client.onWebSocketConnect(session(open));
+
+        for (int i = 1; i <= 4; i++) {
+            client.send(String.valueOf(i).getBytes("UTF-8"));
+        }
+        //Both queued messages and the one that did not fit
+        assertEquals(3, service.getDroppedMessages());
+        assertFalse(open[0]);
+        assertTrue(service.getClients().isEmpty());
+
+        service.completeWrites();
+        assertEquals("[1]", service.written.toString());
+    }
+
+    private static Session session(final boolean[] open) {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("isOpen")) {
+                            return open[0];
+                        }
+                        if (method.getName().equals("close")) {
+                            open[0] = false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Holds write callbacks until completed - like a client that reads slower than messages are sent
+     */
+    private static class HeldWritesService extends SocketService<SocketService.Client> {
+        private final List<String> written = new ArrayList<String>();
+        private final List<WriteCallback> pending = new ArrayList<WriteCallback>();
+
+        private HeldWritesService() {
+            super(SocketService.Client.class);
+        }
+
+        @Override
+        protected void write(Client client, ByteBuffer message, WriteCallback callback) {
+            written.add(Charset.forName("UTF-8").decode(message).toString());
+            pending.add(callback);
+        }
+
+        private void completeWrites() {
+            while (!pending.isEmpty()) {
+                pending.remove(0).writeSuccess();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.vonhof.webi.websockets;
+
+import junit.framework.TestCase;
+
+public class WebSocketFilterTest extends TestCase {
+
+    public void testLimitsMessageSizesAndCompresses() throws Exception {
+        final WebSocketFilter filter = new WebSocketFilter();
+        filter.afterAdd(null);
+
+        assertEquals(1024 * 1024, filter.getPolicy().getMaxTextMessageSize());
+        assertEquals(1024 * 1024, filter.getPolicy().getMaxBinaryMessageSize());
+        assertTrue(filter.getExtensionFactory().isAvailable("permessage-deflate"));
+    }
+
+    public void testDoesNotCompressUnlimitedMessages() throws Exception {
+        final WebSocketFilter filter = new WebSocketFilter();
+        filter.setMaxBinaryMessageSize(Integer.MAX_VALUE);
+        filter.afterAdd(null);
+
+        assertEquals(Integer.MAX_VALUE, filter.getPolicy().getMaxBinaryMessageSize());
+        assertFalse(filter.getExtensionFactory().isAvailable("permessage-deflate"));
+    }
+}
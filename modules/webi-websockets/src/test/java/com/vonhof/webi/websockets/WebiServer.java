@@ -158,6 +158,7 @@ public class WebiServer {
 
         @Override
         public void onWebSocketClose(int closeCode, String message) {
+            super.onWebSocketClose(closeCode, message);
             broadcast("left", this);
         }
     }
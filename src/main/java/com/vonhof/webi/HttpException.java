@@ -10,6 +10,7 @@ public class HttpException extends RuntimeException {
     public static int INTERNAL_ERROR = 500;
     public static int UNAUTHORIZED = 401;
     public static int FORBIDDEN = 403;
+    public static int GATEWAY_TIMEOUT = 504;
     
     private final int code;
 
@@ -4,65 +4,270 @@ import java.util.*;
 import java.util.Map.Entry;
 
 /**
- * Collection of path patterns
+ * Collection of path patterns.
+ *
+ * Patterns are compiled into an immutable compressed prefix trie every time the map is modified. Lookups walk the
+ * trie once without locking or allocating - registration is expected to be rare compared to lookups.
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public class PathPatternMap<T>  {
     private final Map<PathPattern,T> inner = new LinkedHashMap<PathPattern, T>();
-    
+
+    private volatile Node<T> root = new Node<T>("");
+
     public void put(String path,T value) {
         put(new PathPattern(path), value);
     }
-    
-    public void put(PathPattern path,T value) {
+
+    public synchronized void put(PathPattern path,T value) {
         inner.put(path, value);
+        root = compile(inner);
     }
-    
+
     public T get(String path) {
-        PathPattern ptrn = getPattern(path);
-        if (ptrn == null) 
+        Match<T> match = match(path);
+        if (match == null)
             return null;
-        return inner.get(ptrn);
+        return match.getValue();
     }
-    protected PathPattern getPattern(String path) {
-        PathPattern best = null;
-        int longest = 0;
-                
-        for(Entry<PathPattern,T> entry:inner.entrySet()) {
-            PathPattern key = entry.getKey();
-            int length = key.toString().length();
-            if (key.matches(path) && longest < length) {
-                best = key;
-                longest = length;
+
+    /**
+     * Find the longest pattern matching the path. The returned match also knows every other matching pattern - so
+     * callers needing more than one answer for the same path should use this instead of calling get, getAll etc.
+     * @param path
+     * @return the match or null if no pattern matches
+     */
+    public Match<T> match(String path) {
+        Node<T> node = root;
+        Match<T> best = node.match;
+        int offset = 0;
+
+        while (offset < path.length()) {
+            node = node.child(path.charAt(offset));
+            if (node == null) {
+                break;
+            }
+            final String label = node.label;
+            if (!path.regionMatches(offset, label, 0, label.length())) {
+                break;
+            }
+            offset += label.length();
+            if (node.match != null) {
+                best = node.match;
             }
         }
         return best;
     }
-    
+
+    protected PathPattern getPattern(String path) {
+        Match<T> match = match(path);
+        if (match == null)
+            return null;
+        return match.getPattern();
+    }
+
+    /**
+     * Get values for all patterns matching path - in the order they were added. The returned list is shared and
+     * must not be modified.
+     * @param path
+     * @return
+     */
     public List<T> getAll(String path) {
-        List<T> out = new ArrayList<T>();
-        for(Entry<PathPattern,T> entry:inner.entrySet()) {
-            if (entry.getKey().matches(path))
-                out.add(entry.getValue());
-        }
-        return out;
+        Match<T> match = match(path);
+        if (match == null)
+            return Collections.emptyList();
+        return match.getValues();
     }
 
 
     protected String trimContext(String path) {
-        PathPattern pattern = getPattern(path);
-        if (pattern == null) 
+        Match<T> match = match(path);
+        if (match == null)
             return path;
-        return pattern.trim(path);
+        return match.trim(path);
     }
-    public Set<Entry<String,T>> entrySet() {
+    public synchronized Set<Entry<String,T>> entrySet() {
         HashMap<String,T> map = new HashMap<String, T>();
         for(Entry<PathPattern,T> entry:inner.entrySet()) {
             map.put(entry.getKey().toString(),entry.getValue());
         }
-                
+
         return map.entrySet();
     }
 
+    /**
+     * Build trie from patterns. Insertion order is kept so getAll returns values in the order they were added.
+     */
+    private static <T> Node<T> compile(Map<PathPattern,T> patterns) {
+        final BuildNode<T> root = new BuildNode<T>("");
+        int order = 0;
+        for(Entry<PathPattern,T> entry:patterns.entrySet()) {
+            root.insert(entry.getKey().toString(), 0, entry.getKey(), entry.getValue(), order++);
+        }
+        return root.freeze(new ArrayList<BuildNode<T>>());
+    }
+
+    /**
+     * Result of a lookup. Instances are created when the map is compiled and shared between lookups.
+     * @param <T>
+     */
+    public static final class Match<T> {
+        private final PathPattern pattern;
+        private final T value;
+        private final int length;
+        private final List<T> values;
+
+        private Match(PathPattern pattern, T value, List<T> values) {
+            this.pattern = pattern;
+            this.value = value;
+            this.length = pattern.toString().length();
+            this.values = values;
+        }
+
+        /**
+         * The longest matching pattern
+         * @return
+         */
+        public PathPattern getPattern() {
+            return pattern;
+        }
+
+        /**
+         * Value of the longest matching pattern
+         * @return
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * Values of all matching patterns in the order they were added. Shared and unmodifiable.
+         * @return
+         */
+        public List<T> getValues() {
+            return values;
+        }
+
+        /**
+         * Trim the matched pattern from the path - see PathPattern.trim
+         * @param path
+         * @return
+         */
+        public String trim(String path) {
+            return path.substring(length - 1);
+        }
+    }
+
+    /**
+     * Immutable trie node. Edge labels are compressed so each node consumes at least 1 character.
+     */
+    private static final class Node<T> {
+        private final String label;
+        private final char[] keys;
+        private final Node<T>[] children;
+        private final Match<T> match;
+
+        private Node(String label) {
+            this(label, new char[0], new Node[0], null);
+        }
+
+        private Node(String label, char[] keys, Node<T>[] children, Match<T> match) {
+            this.label = label;
+            this.keys = keys;
+            this.children = children;
+            this.match = match;
+        }
+
+        private Node<T> child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+
+    /**
+     * Mutable node used while compiling
+     */
+    private static final class BuildNode<T> {
+        private String label;
+        private final TreeMap<Character,BuildNode<T>> children = new TreeMap<Character, BuildNode<T>>();
+        private PathPattern pattern;
+        private T value;
+        private int order = -1;
+
+        private BuildNode(String label) {
+            this.label = label;
+        }
+
+        private void insert(String key, int offset, PathPattern pattern, T value, int order) {
+            if (offset == key.length()) {
+                this.pattern = pattern;
+                this.value = value;
+                this.order = order;
+                return;
+            }
+
+            final char first = key.charAt(offset);
+            BuildNode<T> child = children.get(first);
+            if (child == null) {
+                child = new BuildNode<T>(key.substring(offset));
+                children.put(first, child);
+                child.insert(key, key.length(), pattern, value, order);
+                return;
+            }
 
+            //Find common prefix of edge and remaining key
+            int common = 0;
+            while (common < child.label.length()
+                    && offset + common < key.length()
+                    && child.label.charAt(common) == key.charAt(offset + common)) {
+                common++;
+            }
+
+            if (common < child.label.length()) {
+                //Split edge
+                BuildNode<T> split = new BuildNode<T>(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.children.put(child.label.charAt(0), child);
+                children.put(first, split);
+                child = split;
+            }
+
+            child.insert(key, offset + common, pattern, value, order);
+        }
+
+        private Node<T> freeze(List<BuildNode<T>> ancestors) {
+            Match<T> match = null;
+            if (pattern != null) {
+                ancestors.add(this);
+
+                List<BuildNode<T>> sorted = new ArrayList<BuildNode<T>>(ancestors);
+                Collections.sort(sorted, new Comparator<BuildNode<T>>() {
+                    @Override
+                    public int compare(BuildNode<T> a, BuildNode<T> b) {
+                        return a.order - b.order;
+                    }
+                });
+                List<T> values = new ArrayList<T>(sorted.size());
+                for(BuildNode<T> node:sorted) {
+                    values.add(node.value);
+                }
+                match = new Match<T>(pattern, value, Collections.unmodifiableList(values));
+            }
+
+            final char[] keys = new char[children.size()];
+            final Node<T>[] nodes = new Node[children.size()];
+            int i = 0;
+            for(Entry<Character,BuildNode<T>> entry:children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().freeze(ancestors);
+                i++;
+            }
+
+            if (pattern != null) {
+                ancestors.remove(ancestors.size() - 1);
+            }
+
+            return new Node<T>(label, keys, nodes, match);
+        }
+    }
 }
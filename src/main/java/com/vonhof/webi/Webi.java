@@ -6,13 +6,15 @@ import com.codahale.metrics.jetty9.InstrumentedHandler;
 import com.codahale.metrics.jetty9.InstrumentedQueuedThreadPool;
 import com.vonhof.babelshark.BabelShark;
 import com.vonhof.webi.bean.BeanContext;
+import com.vonhof.webi.bean.LocalBean;
+import com.vonhof.webi.qos.AdmissionController;
+import com.vonhof.webi.qos.PriorityAdmissionController;
 import com.vonhof.webi.session.SessionHandler;
+import com.vonhof.webi.trace.Tracer;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
@@ -24,7 +26,9 @@ import org.eclipse.jetty.server.*;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.RequestLogHandler;
 import org.eclipse.jetty.servlets.gzip.GzipHandler;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 /**
  * Main Webi method
@@ -32,10 +36,6 @@ import org.eclipse.jetty.util.thread.QueuedThreadPool;
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public final class Webi {
-    private final String ATTR_SUSPENDED = "QoSFilter@" + Integer.toHexString(hashCode()) + ".SUSPENDED";
-    private final String ATTR_RESUMED = "QoSFilter@" + Integer.toHexString(hashCode()) + ".RESUMED";
-
-
     private static final Logger log = LogManager.getLogger(Webi.class);
 
     /**
@@ -58,6 +58,11 @@ public final class Webi {
      */
     private final BeanContext beanContext = new BeanContext();
 
+    /**
+     * Binds the context of the current request
+     */
+    private LocalBean<WebiContext> contextBean;
+
     /**
      * Jetty server instance
      */
@@ -84,20 +89,17 @@ public final class Webi {
      */
     private boolean shutdownGracefully = false;
 
-    private Semaphore requestSemaphore;
-
-    private final Queue<AsyncContext> requestQueue = new ConcurrentLinkedQueue<>();
-
-    private final AsyncListener requestListeners = new QoSAsyncListener();
-
-    private long waitMs = 100;
-
-    private long suspendMs = -1;
-
     private int maxRequests = 50;
 
+    /**
+     * Decides when requests are handled - null to handle all requests right away
+     */
+    private AdmissionController admissionController;
+
     private MetricRegistry registry;
 
+    private Tracer tracer;
+
     private RequestLogHandler requestLogHandler = new RequestLogHandler();
 
     public Webi(int port, int maxThreads, int acceptQueueSize, int maxConcurrentRequests) {
@@ -114,17 +116,39 @@ public final class Webi {
      * @param port
      */
     public Webi(MetricRegistry registry, int port, int maxThreads, int acceptQueueSize, int maxConcurrentRequests, int idleTimeout) {
-        this.maxRequests = maxConcurrentRequests;
-        this.registry = registry;
+        this(registry, makeThreadPool(registry, maxThreads), port, acceptQueueSize, maxConcurrentRequests, idleTimeout);
 
         log.info("Configured with maxThread: {}, acceptQueueSize: {}, maxConcurrentRequests: {}, metrics: {}",
                     maxThreads, acceptQueueSize, maxConcurrentRequests, registry != null);
+    }
 
-        if (registry != null) {
-            server = new Server(new InstrumentedQueuedThreadPool(registry, maxThreads));
-        } else {
-            server = new Server(new QueuedThreadPool(maxThreads));
-        }
+    /**
+     * Setup webi server on specified port - running requests on the given executor instead of a fixed size thread pool.
+     *
+     * Meant for handlers that mostly block on I/O (databases, outbound http etc.). Use an executor that starts threads
+     * on demand - e.g. Executors.newCachedThreadPool() or a thread per task executor using virtual threads on runtimes
+     * that have them. The number of concurrently handled requests is then only limited by maxConcurrentRequests - which
+     * should match the capacity of the backends the handlers call.
+     *
+     * @param registry metric registry or null
+     * @param port
+     * @param executor
+     * @param acceptQueueSize
+     * @param maxConcurrentRequests
+     * @param idleTimeout
+     */
+    public Webi(MetricRegistry registry, int port, ExecutorService executor, int acceptQueueSize, int maxConcurrentRequests, int idleTimeout) {
+        this(registry, new ExecutorThreadPool(executor), port, acceptQueueSize, maxConcurrentRequests, idleTimeout);
+
+        log.info("Configured with executor: {}, acceptQueueSize: {}, maxConcurrentRequests: {}, metrics: {}",
+                executor.getClass().getName(), acceptQueueSize, maxConcurrentRequests, registry != null);
+    }
+
+    private Webi(MetricRegistry registry, ThreadPool threadPool, int port, int acceptQueueSize, int maxConcurrentRequests, int idleTimeout) {
+        this.maxRequests = maxConcurrentRequests;
+        this.registry = registry;
+
+        server = new Server(threadPool);
 
         int numProcessors = Runtime.getRuntime().availableProcessors();
         final ServerConnector connector = new ServerConnector(server, numProcessors, numProcessors * 2);
@@ -149,6 +173,13 @@ public final class Webi {
         init();
     }
 
+    private static ThreadPool makeThreadPool(MetricRegistry registry, int maxThreads) {
+        if (registry != null) {
+            return new InstrumentedQueuedThreadPool(registry, maxThreads);
+        }
+        return new QueuedThreadPool(maxThreads);
+    }
+
     public void setRequestLog(RequestLog requestLog) {
         requestLogHandler.setRequestLog(requestLog);
         if (requestLog instanceof NCSARequestLog) {
@@ -172,9 +203,11 @@ public final class Webi {
         beanContext.add(this);
         beanContext.add(server);
         beanContext.add(BabelShark.getDefaultInstance());
+        contextBean = beanContext.getLocalBean(WebiContext.class);
+        tracer = new Tracer(registry);
 
         if (maxRequests > 0) {
-            requestSemaphore = new Semaphore(maxRequests, true);
+            admissionController = new PriorityAdmissionController(maxRequests, registry);
         }
 
     }
@@ -316,6 +349,9 @@ public final class Webi {
     public <T extends SessionHandler> T add(T handler) {
         sessionHandlers.put(handler.getBasePath(), handler);
         beanContext.add(handler);
+        if (handler instanceof ShutdownHandler) {
+            shutdownHandlers.add((ShutdownHandler) handler);
+        }
         return handler;
     }
 
@@ -339,6 +375,89 @@ public final class Webi {
         return beanContext;
     }
 
+    /**
+     * Bind request context and session to the current thread. Used to continue handling a request on another thread
+     * - e.g. when the result of an async action is done.
+     * @param ctxt
+     */
+    public void bindContext(WebiContext ctxt) {
+        beanContext.clearThreadLocals();
+        contextBean.set(ctxt);
+        if (ctxt.getSession() != null) {
+            beanContext.setLocal(ctxt.getSession());
+        }
+    }
+
+    /**
+     * Wrap task so it runs with the request context, session and other thread local beans of the current request
+     * bound. Use for continuations that run on other threads - e.g. work completing an AsyncResult.
+     * @param task
+     * @return
+     */
+    public Runnable wrap(Runnable task) {
+        return beanContext.wrap(task);
+    }
+
+    /**
+     * Apply the filters matching the path of the context
+     * @param ctxt
+     * @return false if a filter stopped the request
+     */
+    public boolean applyFilters(WebiContext ctxt) {
+        for (Filter filter : filters.getAll(ctxt.getPath())) {
+            if (!filter.apply(ctxt)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove request context and other thread local beans from the current thread
+     */
+    public void unbindContext() {
+        beanContext.clearThreadLocals();
+    }
+
+    /**
+     * Metric registry of the server
+     * @return null if metrics are disabled
+     */
+    public MetricRegistry getMetricRegistry() {
+        return registry;
+    }
+
+    /**
+     * Tracer for request load metrics. Set a sample percentage on it to trace requests without the client asking for
+     * it.
+     * @return
+     */
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Get admission controller. Unless replaced this is a PriorityAdmissionController limited to the max concurrent
+     * requests given to the constructor - add priority classes to it to keep e.g. health checks from queueing behind
+     * other traffic.
+     * @return the admission controller or null if requests are not limited
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Replace admission controller. Set to null to handle all requests right away.
+     * @param admissionController
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
     /**
      * Internal webi jetty handler
      */
@@ -351,102 +470,35 @@ public final class Webi {
                            final HttpServletResponse response)
                 throws IOException, ServletException {
 
-            if (maxRequests < 1) {
+            if (admissionController == null) {
                 doHandle(path, baseRequest, request, response);
                 return;
             }
 
-            throttleRequest(request, response, new HandlerCallback() {
-                @Override
-                public void handle() throws IOException, ServletException {
-                    doHandle(path, baseRequest, request, response);
-                }
-            });
-        }
+            final AdmissionController.Permit permit = admissionController.admit(path, request, response);
+            if (permit == null) {
+                //Queued or rejected
+                return;
+            }
 
-        /**
-         * Handle many concurrent requests
-         * @param request
-         * @param response
-         * @return
-         * @throws IOException
-         */
-        public boolean throttleRequest(ServletRequest request, ServletResponse response, HandlerCallback callable) throws IOException, ServletException {
-            boolean accepted = false;
             try {
-                Boolean suspended = (Boolean) request.getAttribute(ATTR_SUSPENDED);
-                if (suspended == null) {
-                    accepted = requestSemaphore.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
-                    if (accepted) {
-                        request.setAttribute(ATTR_SUSPENDED, Boolean.FALSE);
-
-                    } else {
-                        request.setAttribute(ATTR_SUSPENDED, Boolean.TRUE);
-
-                        AsyncContext asyncContext = request.startAsync();
-                        if (suspendMs > 0) {
-                            asyncContext.setTimeout(suspendMs);
-                        }
-                        asyncContext.addListener(requestListeners);
-                        requestQueue.add(asyncContext);
-                        return false;
-                    }
-                } else {
-                    if (suspended) {
-                        request.setAttribute(ATTR_SUSPENDED, Boolean.FALSE);
-                        Boolean resumed = (Boolean) request.getAttribute(ATTR_RESUMED);
-                        if (resumed == Boolean.TRUE) {
-                            requestSemaphore.acquire();
-                            accepted = true;
-                        } else {
-                            // Timeout! try 1 more time.
-                            accepted = requestSemaphore.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
-                            log.warn("Request timed out to: {}", ((HttpServletRequest) request).getRequestURI());
-                        }
-                    } else {
-                        // Pass through resume of previously accepted request.
-                        requestSemaphore.acquire();
-                        accepted = true;
-                    }
-                }
-
-                if (accepted) {
-                    callable.handle();
-                } else {
-                    ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
-                }
-            } catch (InterruptedException e) {
-                ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                doHandle(path, baseRequest, request, response);
             } finally {
-                if (accepted) {
-                    AsyncContext asyncContext = requestQueue.poll();
-                    if (asyncContext != null) {
-                        ServletRequest candidate = asyncContext.getRequest();
-                        Boolean suspended = (Boolean) candidate.getAttribute(ATTR_SUSPENDED);
-                        if (suspended == Boolean.TRUE) {
-                            candidate.setAttribute(ATTR_RESUMED, Boolean.TRUE);
-                            asyncContext.dispatch();
-                        }
-                    }
-
-                    requestSemaphore.release();
-                }
+                permit.release();
             }
-
-            return accepted;
         }
 
         private void doHandle(String path, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
-            PathPattern basePattern = requestHandlers.getPattern(path);
-            String basePath = basePattern != null ? basePattern.toString() : "/";
+            final PathPatternMap.Match<RequestHandler> handlerMatch = requestHandlers.match(path);
+            String basePath = handlerMatch != null ? handlerMatch.getPattern().toString() : "/";
 
-            RequestHandler handler = requestHandlers.get(path);
+            RequestHandler handler = handlerMatch != null ? handlerMatch.getValue() : null;
 
             final SessionHandler sessionResolver = sessionHandlers.get(path);
 
             //Hack for path - make a proper normalization process for paths
             if (handler != null) {
-                path = requestHandlers.trimContext(path);
+                path = handlerMatch.trim(path);
             }
 
             WebiContext wr = null;
@@ -457,15 +509,12 @@ public final class Webi {
                         baseRequest,
                         request, response);
 
-                beanContext.add(wr);
-                beanContext.add(wr.resolve(sessionResolver));
-
-                for (Filter filter : filters.getAll(path)) {
-                    if (!filter.apply(wr)) {
-                        wr.setRequestHandled(true);
-                        return;
-                    }
+                contextBean.set(wr);
+                beanContext.setLocal(wr.resolve(sessionResolver));
 
+                if (!applyFilters(wr)) {
+                    wr.setRequestHandled(true);
+                    return;
                 }
 
                 if (handler != null) {
@@ -483,33 +532,4 @@ public final class Webi {
 
         void onShutdown(boolean graceful) throws Exception;
     }
-
-    private interface HandlerCallback {
-        void handle() throws IOException, ServletException;
-    }
-
-    private class QoSAsyncListener implements AsyncListener {
-
-        public QoSAsyncListener() {
-
-        }
-
-        @Override
-        public void onStartAsync(AsyncEvent event) throws IOException {}
-
-        @Override
-        public void onComplete(AsyncEvent event) throws IOException {}
-
-        @Override
-        public void onTimeout(AsyncEvent event) throws IOException {
-            // Remove before it's redispatched, so it won't be
-            // redispatched again at the end of the filtering.
-            AsyncContext asyncContext = event.getAsyncContext();
-            requestQueue.remove(asyncContext);
-            asyncContext.dispatch();
-        }
-
-        @Override
-        public void onError(AsyncEvent event) throws IOException {}
-    }
 }
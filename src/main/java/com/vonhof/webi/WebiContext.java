@@ -1,14 +1,17 @@
 package com.vonhof.webi;
 
+import com.vonhof.babelshark.annotation.Ignore;
 import com.vonhof.babelshark.node.SharkNode;
 import com.vonhof.webi.bean.BeanScope;
 import com.vonhof.webi.session.SessionHandler;
 import com.vonhof.webi.session.WebiSession;
+import com.vonhof.webi.trace.Trace;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.fileupload.FileUploadException;
@@ -36,8 +39,7 @@ public class WebiContext {
     private WebiSession session;
     
     private final List<DiskFileItem> uploads;
-    private final List<RequestLoadMetricEntry> loadMetricEntries = new ArrayList<>();
-    private final Stack<RequestLoadMetricEntry> callStack = new Stack<>();
+    private Trace trace;
 
 
     private boolean loadMetricsEnabled = false;
@@ -87,6 +89,28 @@ public class WebiContext {
         }
     }
     
+    /**
+     * Make context for a request dispatched inside another request - e.g. a call in a batch request. Shares session
+     * and base path with the parent but takes its parameters from the given map instead of the query string.
+     * @param parent
+     * @param path
+     * @param request
+     * @param response
+     * @param parms
+     */
+    public WebiContext(WebiContext parent, String path, HttpServletRequest request, HttpServletResponse response,
+                       Map<String, String[]> parms) {
+        this.base = parent.base;
+        this.path = path;
+        this.jettyRequest = parent.jettyRequest;
+        this.request = request;
+        this.response = response;
+        this.session = parent.session;
+        httpMethod = HttpMethod.valueOf(request.getMethod());
+        parmMap = new ParmMap(parms);
+        uploads = null;
+    }
+    
     public boolean isMultiPart() {
         return ServletFileUpload.isMultipartContent(request);
     }
@@ -311,37 +335,67 @@ public class WebiContext {
         response.sendError(i, msg);
     }
 
-    public RequestLoadMetricEntry startCall(String description, SharkNode details) {
-        RequestLoadMetricEntry out = new RequestLoadMetricEntry(description, System.currentTimeMillis());
-        out.setDetails(details);
+    /**
+     * Trace of this request
+     * @return null if the request is not traced
+     */
+    public Trace getTrace() {
+        return trace;
+    }
 
-        if (!callStack.isEmpty()) {
-            out.setParentId(callStack.peek().getId());
-        }
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
 
-        callStack.push(out);
+    /**
+     * Start timing a span of work - nested in the currently open span. Does nothing if the request is not traced.
+     * @param name
+     * @return the span to pass to endSpan
+     */
+    public int startSpan(String name) {
+        return startSpan(name, null);
+    }
+
+    public int startSpan(String name, SharkNode details) {
+        return trace != null ? trace.start(name, details) : -1;
+    }
+
+    public void endSpan(int span) {
+        if (trace != null) {
+            trace.end(span);
+        }
+    }
 
+    /**
+     * @deprecated use startSpan - it does not allocate
+     */
+    @Deprecated
+    public RequestLoadMetricEntry startCall(String description, SharkNode details) {
+        RequestLoadMetricEntry out = new RequestLoadMetricEntry(description, System.currentTimeMillis());
+        out.setDetails(details);
+        out.span = startSpan(description, details);
         return out;
     }
 
+    /**
+     * @deprecated use endSpan
+     */
+    @Deprecated
     public void endCall(RequestLoadMetricEntry entry) {
         entry.endCall();
-        loadMetricEntries.add(entry);
-        callStack.remove(entry);
+        endSpan(entry.span);
     }
 
+    /**
+     * Add span of work already done
+     * @param description
+     * @param timeTaken milliseconds
+     * @param details
+     */
     public void addTiming(String description, long timeTaken, SharkNode details) {
-        if (!loadMetricsEnabled) {
-            return;
-        }
-
-        RequestLoadMetricEntry entry = new RequestLoadMetricEntry(description, timeTaken, details);
-
-        if (!callStack.isEmpty()) {
-            entry.setParentId(callStack.peek().getId());
+        if (trace != null) {
+            trace.add(description, TimeUnit.MILLISECONDS.toNanos(timeTaken), details);
         }
-
-        loadMetricEntries.add(entry);
     }
 
     public void addTiming(String description, Runnable runnable) {
@@ -349,12 +403,11 @@ public class WebiContext {
     }
 
     public void addTiming(String description, Runnable runnable, SharkNode details) {
-        long timeStart = System.currentTimeMillis();
+        final int span = startSpan(description, details);
         try {
             runnable.run();
         } finally {
-            long timeTaken = System.currentTimeMillis() - timeStart;
-            addTiming(description, timeTaken, details);
+            endSpan(span);
         }
     }
 
@@ -363,12 +416,11 @@ public class WebiContext {
     }
 
     public <T> T addTiming(String description, Callable<T> runnable, SharkNode details) throws Exception {
-        long timeStart = System.currentTimeMillis();
+        final int span = startSpan(description, details);
         try {
             return runnable.call();
         } finally {
-            long timeTaken = System.currentTimeMillis() - timeStart;
-            addTiming(description, timeTaken, details);
+            endSpan(span);
         }
     }
 
@@ -377,7 +429,7 @@ public class WebiContext {
     }
 
     public <T> T addTimingNoException(String description, Callable<T> runnable, SharkNode details) {
-        long timeStart = System.currentTimeMillis();
+        final int span = startSpan(description, details);
         try {
             return runnable.call();
         } catch (RuntimeException e) {
@@ -385,8 +437,7 @@ public class WebiContext {
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
-            long timeTaken = System.currentTimeMillis() - timeStart;
-            addTiming(description, timeTaken, details);
+            endSpan(span);
         }
     }
 
@@ -398,8 +449,32 @@ public class WebiContext {
         this.loadMetricsEnabled = loadMetricsEnabled;
     }
 
+    /**
+     * Get the spans of the trace as entries - for returning them to the client
+     * @return
+     */
     public List<RequestLoadMetricEntry> getLoadMetricEntries() {
-        return loadMetricEntries;
+        final List<RequestLoadMetricEntry> out = new ArrayList<RequestLoadMetricEntry>();
+        if (trace == null) {
+            return out;
+        }
+
+        final int first = trace.getFirst();
+        final UUID[] ids = new UUID[trace.getCount() - first];
+        for (int span = first; span < trace.getCount(); span++) {
+            final RequestLoadMetricEntry entry = new RequestLoadMetricEntry(trace.getName(span), trace.getStartedAt(span));
+            entry.setDetails(trace.getDetails(span));
+            entry.setTimeTakenNanos(Math.max(0, trace.getDurationNanos(span)));
+            entry.setTimeTaken(TimeUnit.NANOSECONDS.toMillis(entry.getTimeTakenNanos()));
+
+            final int parent = trace.getParent(span);
+            if (parent >= first) {
+                entry.setParentId(ids[parent - first]);
+            }
+            ids[span - first] = entry.getId();
+            out.add(entry);
+        }
+        return out;
     }
 
     public WebiSession resolve(SessionHandler resolver) {
@@ -446,6 +521,11 @@ public class WebiContext {
 
         private long timeTaken;
 
+        private long timeTakenNanos;
+
+        @Ignore
+        private int span = -1;
+
         private Date timeStarted;
 
         private UUID parentId;
@@ -508,6 +588,14 @@ public class WebiContext {
             this.timeTaken = timeTaken;
         }
 
+        public long getTimeTakenNanos() {
+            return timeTakenNanos;
+        }
+
+        public void setTimeTakenNanos(long timeTakenNanos) {
+            this.timeTakenNanos = timeTakenNanos;
+        }
+
         public Date getTimeStarted() {
             return timeStarted;
         }
@@ -518,6 +606,7 @@ public class WebiContext {
 
         public void endCall() {
             this.timeTaken = System.currentTimeMillis() - timeStarted.getTime();
+            this.timeTakenNanos = TimeUnit.MILLISECONDS.toNanos(timeTaken);
         }
     }
 }
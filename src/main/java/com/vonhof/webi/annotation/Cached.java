@@ -0,0 +1,36 @@
+package com.vonhof.webi.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * Caches the serialized output of a GET action. Responses are keyed on the action, path, parameters, output format
+ * and the listed request headers - and on the user unless the response is shared.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+
+@Documented
+@Target(value={ElementType.METHOD})
+@Retention(value=RetentionPolicy.RUNTIME)
+@Inherited
+public @interface Cached {
+    /**
+     * Seconds the response is cached - also used as max-age for the client
+     */
+    int ttl() default 60;
+
+    /**
+     * Request headers that change the response - e.g. Accept-Language
+     */
+    String[] headers() default {};
+
+    /**
+     * Tags used to invalidate cached responses - see ResponseCache.invalidate
+     */
+    String[] tags() default {};
+
+    /**
+     * Allow shared caches (proxies) to store the response. Only use for responses that are the same for all users.
+     * Responses that are not shared are cached per principal or session - and not at all when neither is known.
+     */
+    boolean shared() default false;
+}
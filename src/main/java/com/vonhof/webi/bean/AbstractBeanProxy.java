@@ -4,7 +4,6 @@ import net.sf.cglib.proxy.Callback;
 import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.MethodProxy;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.HashMap;
@@ -13,10 +12,10 @@ import java.util.Map;
 
 abstract class AbstractBeanProxy<T> implements MethodInterceptor, Callback {
 
-    private final Collection<BeanInvocationInterceptor> interceptors;
+    private final BeanInvocationInterceptor[] interceptors;
 
     protected AbstractBeanProxy(Collection<BeanInvocationInterceptor> interceptors) {
-        this.interceptors = interceptors;
+        this.interceptors = interceptors.toArray(new BeanInvocationInterceptor[interceptors.size()]);
     }
 
     abstract public T getBean();
@@ -29,6 +28,15 @@ abstract class AbstractBeanProxy<T> implements MethodInterceptor, Callback {
             return null;
         }
 
+        if (interceptors.length == 0) {
+            //Calls the method directly through the generated fast class
+            return methodProxy.invoke(thisBean, args);
+        }
+
+        return invokeIntercepted(thisBean, method, args, methodProxy);
+    }
+
+    private Object invokeIntercepted(T thisBean, Method method, Object[] args, MethodProxy methodProxy) throws Throwable {
         Map<String, Object> scope = new HashMap<>();
 
         for (BeanInvocationInterceptor interceptor : interceptors) {
@@ -40,12 +48,8 @@ abstract class AbstractBeanProxy<T> implements MethodInterceptor, Callback {
         Throwable thrownException = null;
 
         try {
-            result = method.invoke(thisBean, args);
+            result = methodProxy.invoke(thisBean, args);
             return result;
-
-        } catch (InvocationTargetException ex) {
-            thrownException = ex.getTargetException();
-            throw ex.getTargetException();
         } catch (Throwable ex) {
             thrownException = ex;
             throw ex;
@@ -9,6 +9,7 @@ import org.apache.logging.log4j.Logger;
 import javax.inject.Inject;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles dependency injection
@@ -19,10 +20,12 @@ public class BeanContext {
     private final static Logger log = LogManager.getLogger(BeanContext.class.getName());
     private Map<Class, Object> beansByClass = new HashMap<Class, Object>();
     private Map<String, Object> beansById = new HashMap<String, Object>();
-    private Map<Class, BeanWrapper> proxiesByClass = new HashMap<>();
+    private Map<Class, BeanWrapper> proxiesByClass = new ConcurrentHashMap<>();
     private Map<String, BeanWrapper> proxiesById = new HashMap<>();
 
     private List<ThreadLocalBeanProxy> threadLocalBeanProxies = new ArrayList<>();
+    private final ThreadLocalScope threadLocalScope = new ThreadLocalScope();
+    private final Map<Class, LocalBean> localBeans = new ConcurrentHashMap<>();
 
     private List<AfterInject> afterInjectionCalled = new LinkedList<>();
     private List<AfterInit> afterInitCalled = new LinkedList<>();
@@ -136,7 +139,12 @@ public class BeanContext {
         return (T) wrapper.getProxy();
     }
 
-    protected <T> T getOriginal(Class<T> beanClz) {
+    /**
+     * Get bean added for the class - not its proxy
+     * @param beanClz
+     * @return the bean or null if none has been added
+     */
+    public <T> T getOriginal(Class<T> beanClz) {
         Object obj = beansByClass.get(beanClz);
         if (obj instanceof ThreadLocal) {
             obj = ((ThreadLocal) obj).get();
@@ -405,7 +413,7 @@ public class BeanContext {
             return new BeanProxy<>(getInterceptorsFor(clz));
         }
 
-        ThreadLocalBeanProxy out = new ThreadLocalBeanProxy<>(getInterceptorsFor(clz));
+        ThreadLocalBeanProxy out = new ThreadLocalBeanProxy<>(getInterceptorsFor(clz), threadLocalScope);
         threadLocalBeanProxies.add(out);
         if (annotation.ignored()) {
             out.setDefaultClass(clz);
@@ -440,8 +448,67 @@ public class BeanContext {
     }
 
     public void clearThreadLocals() {
-        for(ThreadLocalBeanProxy entry : threadLocalBeanProxies) {
-            entry.setBean(null);
+        threadLocalScope.clear();
+    }
+
+    /**
+     * Wrap task so it runs with the thread local beans currently bound to this thread - e.g. to continue handling a
+     * request on another thread. The beans are captured when wrapping, and the beans of the thread running the task
+     * are restored afterwards.
+     * @param task
+     * @return
+     */
+    public Runnable wrap(final Runnable task) {
+        final Object[] beans = threadLocalScope.snapshot();
+        return new Runnable() {
+            @Override
+            public void run() {
+                final Object[] previous = threadLocalScope.snapshot();
+                threadLocalScope.restore(beans);
+                try {
+                    task.run();
+                } finally {
+                    threadLocalScope.restore(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Get handle for binding thread local beans of the given type (See BeanScope) on a per request basis. Binding
+     * through the handle skips injection and AfterAdd - and does not modify the bean context.
+     * @param beanClass
+     * @return
+     */
+    public <T> LocalBean<T> getLocalBean(Class<T> beanClass) {
+        LocalBean<T> out = localBeans.get(beanClass);
+        if (out == null) {
+            out = makeLocalBean(beanClass);
         }
+        return out;
+    }
+
+    /**
+     * Bind thread local bean using its class. See getLocalBean
+     * @param bean
+     */
+    public <T> void setLocal(T bean) {
+        getLocalBean((Class<T>) bean.getClass()).set(bean);
+    }
+
+    private synchronized <T> LocalBean<T> makeLocalBean(Class<T> beanClass) {
+        LocalBean<T> out = localBeans.get(beanClass);
+        if (out != null) {
+            return out;
+        }
+
+        BeanWrapper wrapper = getOrMakeWrapper(beanClass);
+        if (!(wrapper.getProxyHandler() instanceof ThreadLocalBeanProxy)) {
+            throw new IllegalArgumentException("Bean is not thread local: " + beanClass);
+        }
+
+        out = new LocalBean<>((ThreadLocalBeanProxy<T>) wrapper.getProxyHandler());
+        localBeans.put(beanClass, out);
+        return out;
     }
 }
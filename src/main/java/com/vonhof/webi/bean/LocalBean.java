@@ -0,0 +1,29 @@
+package com.vonhof.webi.bean;
+
+/**
+ * Handle for binding a thread local bean directly - without the injection and bookkeeping done by BeanContext.add.
+ * Get it once from BeanContext.getLocalBean and reuse it.
+ */
+public final class LocalBean<T> {
+    private final ThreadLocalBeanProxy<T> proxy;
+
+    LocalBean(ThreadLocalBeanProxy<T> proxy) {
+        this.proxy = proxy;
+    }
+
+    /**
+     * Bind bean to the current thread
+     * @param bean
+     */
+    public void set(T bean) {
+        proxy.setBean(bean);
+    }
+
+    /**
+     * Get bean bound to the current thread - or null
+     * @return
+     */
+    public T get() {
+        return proxy.getNullableBean();
+    }
+}
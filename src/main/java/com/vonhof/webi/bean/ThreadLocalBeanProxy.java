@@ -5,21 +5,24 @@ import java.util.Collection;
 
 final class ThreadLocalBeanProxy<T> extends AbstractBeanProxy<T> {
 
-    private final ThreadLocal<T> threadLocal = new ThreadLocal<T>();
+    private final ThreadLocalScope scope;
+    private final int index;
     private Class<T> defaultClass;
 
-    public ThreadLocalBeanProxy(Collection<BeanInvocationInterceptor> interceptors) {
+    public ThreadLocalBeanProxy(Collection<BeanInvocationInterceptor> interceptors, ThreadLocalScope scope) {
         super(interceptors);
+        this.scope = scope;
+        this.index = scope.allocate();
     }
 
 
     public T getNullableBean() {
-        return threadLocal.get();
+        return (T) scope.get(index);
     }
 
     @Override
     public T getBean() {
-        T instance = threadLocal.get();
+        T instance = getNullableBean();
         if (instance == null) {
             if (defaultClass != null) {
                 try {
@@ -38,7 +41,7 @@ final class ThreadLocalBeanProxy<T> extends AbstractBeanProxy<T> {
 
     @Override
     public final void setBean(T bean) {
-        threadLocal.set(bean);
+        scope.set(index, bean);
     }
 
     public void setDefaultClass(Class<T> defaultClass) {
@@ -0,0 +1,66 @@
+package com.vonhof.webi.bean;
+
+import java.util.Arrays;
+
+/**
+ * Holds thread local beans for a bean context. Each thread local bean gets a fixed slot index when its proxy is
+ * created and every thread has a single array of slots - so binding and clearing beans only costs one thread local
+ * lookup regardless of how many thread local beans there are.
+ */
+final class ThreadLocalScope {
+    private final ThreadLocal<Object[]> slots = new ThreadLocal<Object[]>();
+    private volatile int size = 0;
+
+    synchronized int allocate() {
+        return size++;
+    }
+
+    Object get(int index) {
+        final Object[] current = slots.get();
+        if (current == null || index >= current.length) {
+            return null;
+        }
+        return current[index];
+    }
+
+    void set(int index, Object bean) {
+        Object[] current = slots.get();
+        if (current == null || index >= current.length) {
+            if (bean == null) {
+                return;
+            }
+            final int length = Math.max(size, index + 1);
+            current = current == null ? new Object[length] : Arrays.copyOf(current, length);
+            slots.set(current);
+        }
+        current[index] = bean;
+    }
+
+    /**
+     * Copy of the beans bound to the current thread
+     * @return null if none have been bound
+     */
+    Object[] snapshot() {
+        final Object[] current = slots.get();
+        return current != null ? current.clone() : null;
+    }
+
+    /**
+     * Replace the beans bound to the current thread with a snapshot
+     * @param snapshot
+     */
+    void restore(Object[] snapshot) {
+        if (snapshot == null) {
+            clear();
+            return;
+        }
+        slots.set(snapshot.clone());
+    }
+
+    void clear() {
+        final Object[] current = slots.get();
+        if (current != null) {
+            Arrays.fill(current, null);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.vonhof.webi.file;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cache of compiled resources. Each entry is stored with a fingerprint of its sources - when the fingerprint changes
+ * the stale value keeps being served while a single recompilation runs in the background. Only the first request for
+ * an uncached key compiles - concurrent requests for the same key wait for that compilation.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class CompileCache<T> {
+    private static final Logger log = LogManager.getLogger(CompileCache.class);
+
+    private static final ExecutorService compiler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread out = new Thread(runnable, "webi-compiler");
+            out.setDaemon(true);
+            return out;
+        }
+    });
+
+    private final Map<String, Slot<T>> slots;
+    private final boolean serveStale;
+
+    /**
+     * @param maxEntries max amount of cached values - the least recently used are evicted first. 0 for no limit.
+     */
+    public CompileCache(int maxEntries) {
+        this(maxEntries, true);
+    }
+
+    /**
+     * @param maxEntries max amount of cached values - the least recently used are evicted first. 0 for no limit.
+     * @param serveStale serve stale values while recompiling in the background. If false changed values are
+     *                   recompiled while the request waits - use this when responses are identified by the sources
+     *                   (ETag, Last-Modified) so a stale value is never sent as the new one.
+     */
+    public CompileCache(final int maxEntries, boolean serveStale) {
+        this.serveStale = serveStale;
+        slots = new LinkedHashMap<String, Slot<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Slot<T>> eldest) {
+                return maxEntries > 0 && size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get compiled value for key.
+     * @param key
+     * @param fingerprint identifies the sources - e.g. names and modification times of the source files
+     * @param compilation compiles the value. Runs on a background thread when a stale value can be served.
+     * @return the compiled value - possibly stale while it is being recompiled
+     * @throws IOException if there was no value and the compilation failed
+     */
+    public T get(String key, String fingerprint, Callable<T> compilation) throws IOException {
+        final Slot<T> slot = getSlot(key);
+
+        while (true) {
+            Compiled<T> current = slot.current;
+            if (current != null && current.fingerprint.equals(fingerprint)) {
+                return current.value;
+            }
+            if (!serveStale) {
+                current = null;
+            }
+
+            FutureTask<Compiled<T>> task = slot.pending.get();
+            if (task == null) {
+                task = new FutureTask<Compiled<T>>(new Compilation<T>(slot, fingerprint, compilation));
+                if (!slot.pending.compareAndSet(null, task)) {
+                    continue;
+                }
+                if (current != null) {
+                    compiler.execute(task);
+                    return current.value;
+                }
+                task.run();
+            } else if (current != null) {
+                return current.value;
+            }
+
+            final Compiled<T> out = await(task);
+            if (serveStale || out.fingerprint.equals(fingerprint)) {
+                return out.value;
+            }
+            //Waited for compilation of older sources
+        }
+    }
+
+    private Compiled<T> await(FutureTask<Compiled<T>> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Get value without compiling
+     * @param key
+     * @return the latest compiled value or null
+     */
+    public synchronized T getIfPresent(String key) {
+        final Slot<T> slot = slots.get(key);
+        if (slot == null || slot.current == null) {
+            return null;
+        }
+        return slot.current.value;
+    }
+
+    public synchronized void clear() {
+        slots.clear();
+    }
+
+    private synchronized Slot<T> getSlot(String key) {
+        Slot<T> slot = slots.get(key);
+        if (slot == null) {
+            slot = new Slot<T>();
+            slots.put(key, slot);
+        }
+        return slot;
+    }
+
+    private static final class Slot<T> {
+        private volatile Compiled<T> current;
+        private final AtomicReference<FutureTask<Compiled<T>>> pending = new AtomicReference<FutureTask<Compiled<T>>>();
+    }
+
+    private static final class Compiled<T> {
+        private final String fingerprint;
+        private final T value;
+
+        private Compiled(String fingerprint, T value) {
+            this.fingerprint = fingerprint;
+            this.value = value;
+        }
+    }
+
+    private static final class Compilation<T> implements Callable<Compiled<T>> {
+        private final Slot<T> slot;
+        private final String fingerprint;
+        private final Callable<T> compilation;
+
+        private Compilation(Slot<T> slot, String fingerprint, Callable<T> compilation) {
+            this.slot = slot;
+            this.fingerprint = fingerprint;
+            this.compilation = compilation;
+        }
+
+        @Override
+        public Compiled<T> call() throws Exception {
+            try {
+                final Compiled<T> out = new Compiled<T>(fingerprint, compilation.call());
+                slot.current = out;
+                return out;
+            } catch (Exception ex) {
+                if (slot.current != null) {
+                    log.error("Failed to recompile - keeps serving previous version", ex);
+                }
+                throw ex;
+            } finally {
+                slot.pending.set(null);
+            }
+        }
+    }
+}
@@ -7,10 +7,21 @@ import com.vonhof.webi.WebiContext;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 import javax.inject.Inject;
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.servlets.gzip.CompressedResponseWrapper;
 
 /**
  * File request handler. Servers local static file resources.
@@ -39,10 +50,20 @@ public class FileRequestHandler implements RequestHandler {
      */
     private String indexFileName = "index.html";
 
+    /**
+     * Cache of file meta data and small file contents
+     */
+    private final StaticFileCache fileCache = new StaticFileCache();
+
     @Override
     public final void handle(WebiContext ctxt) throws IOException, ServletException {
         String filePath = String.format("%s%s",docRoot,ctxt.getPath());
         File file = new File(filePath);
+        if (!isDevMode() && fileCache.isFresh(file)) {
+            serveFile(ctxt, file);
+            return;
+        }
+
         if (file.isDirectory()) {
             //Redirect to url with ending /
             if (!ctxt.getPath().endsWith("/")) {
@@ -107,32 +128,208 @@ public class FileRequestHandler implements RequestHandler {
         req.flushBuffer();
     }
     /**
-     * Serve file from local filesystem. Gets mime type from file
+     * Serve file from local filesystem. Gets mime type from file.
+     *
+     * Supports conditional requests (ETag and Last-Modified), single byte ranges and precompressed .br and .gz files
+     * placed next to the original - those are served to clients accepting the encoding.
      * @param req
      * @param file
      * @throws IOException 
      */
     protected void serveFile(WebiContext req,File file) throws IOException {
+        StaticFile staticFile = fileCache.get(file, isDevMode());
+        if (staticFile == null) {
+            unknownFile(req, file, file.getPath());
+            return;
+        }
+
+        final HttpServletRequest request = req.getRequest();
+
         req.setHeader("Content-type",getResponseType(file));
-        
-        long lastModified = file.lastModified();
-        long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
-        
-        req.setDateHeader("Last-Modified",lastModified);
-        
-        if (reqLastModified > 0 && lastModified <= reqLastModified) {
-            req.setStatus(304);
+        req.setHeader("Accept-Ranges", "bytes");
+        req.setDateHeader("Last-Modified",staticFile.getLastModified());
+        if (staticFile.hasVariants()) {
+            req.setHeader("Vary", "Accept-Encoding");
+        }
+
+        final String range = request.getHeader("Range");
+        if (range != null && isRangeValid(request, staticFile)) {
+            //Content-Range counts bytes of the original - must be disabled before any other headers are set
+            final OutputStream out = getUncompressedOutputStream(req);
+            req.setHeader("ETag", staticFile.getETag());
+            serveRange(req, out, staticFile, range);
+            return;
+        }
+
+        //Ranges are only served from the original so the variants only need a separate ETag
+        final StaticFile variant = getVariant(request, staticFile);
+        req.setHeader("ETag", variant.getETag());
+
+        if (isNotModified(request, variant)) {
+            req.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             req.flushBuffer();
             return;
         }
-        
-        FileInputStream fileIn = new FileInputStream(file);
-        while(fileIn.available() > 0) {
-            req.getOutputStream().write(fileIn.read());
+
+        if (variant == staticFile) {
+            sendFile(req, req.getOutputStream(), variant, 0, variant.getLength());
+            return;
+        }
+
+        final OutputStream out = getUncompressedOutputStream(req);
+        req.setHeader("Content-Encoding", variant == staticFile.getBrotli() ? "br" : "gzip");
+        sendFile(req, out, variant, 0, variant.getLength());
+    }
+
+    private boolean isDevMode() {
+        return webi != null && webi.isDevMode();
+    }
+
+    private StaticFile getVariant(HttpServletRequest request, StaticFile staticFile) {
+        if (!staticFile.hasVariants()) {
+            return staticFile;
+        }
+        final String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return staticFile;
+        }
+        if (staticFile.getBrotli() != null && acceptEncoding.contains("br")) {
+            return staticFile.getBrotli();
+        }
+        if (staticFile.getGzip() != null && acceptEncoding.contains("gzip")) {
+            return staticFile.getGzip();
+        }
+        return staticFile;
+    }
+
+    private boolean isNotModified(HttpServletRequest request, StaticFile staticFile) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals("*") || ifNoneMatch.contains(staticFile.getETag());
+        }
+
+        final long reqLastModified = request.getDateHeader("If-Modified-Since");
+        //Http dates only have second precision
+        return reqLastModified > 0 && staticFile.getLastModified() / 1000 <= reqLastModified / 1000;
+    }
+
+    /**
+     * Check If-Range - ranges are only served if the file has not changed since the client got the first part
+     */
+    private boolean isRangeValid(HttpServletRequest request, StaticFile staticFile) {
+        final String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(staticFile.getETag());
+        }
+        final long date = request.getDateHeader("If-Range");
+        return date > 0 && staticFile.getLastModified() / 1000 <= date / 1000;
+    }
+
+    /**
+     * Serve single byte range. Multiple ranges are not supported - the entire file is served instead.
+     */
+    private void serveRange(WebiContext req, OutputStream out, StaticFile staticFile, String range) throws IOException {
+        final long length = staticFile.getLength();
+        long start;
+        long end;
+        try {
+            if (!range.startsWith("bytes=") || range.indexOf(',') > -1) {
+                sendFile(req, out, staticFile, 0, length);
+                return;
+            }
+            final String spec = range.substring(6).trim();
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                sendFile(req, out, staticFile, 0, length);
+                return;
+            }
+            if (dash == 0) {
+                //Suffix range - the last n bytes
+                start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+        } catch (NumberFormatException ex) {
+            sendFile(req, out, staticFile, 0, length);
+            return;
+        }
+
+        if (start >= length || start > end) {
+            req.setHeader("Content-Range", "bytes */" + length);
+            req.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            req.flushBuffer();
+            return;
+        }
+
+        req.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        req.setHeader("Content-Range", String.format("bytes %s-%s/%s", start, end, length));
+        sendFile(req, out, staticFile, start, end - start + 1);
+    }
+
+    /**
+     * Get output stream past the gzip wrapper of the response - for content that must be sent as is. Compression is
+     * disabled on the wrapper so headers set through it are passed on.
+     */
+    private OutputStream getUncompressedOutputStream(WebiContext req) throws IOException {
+        ServletResponse response = req.getResponse();
+        while (response instanceof ServletResponseWrapper) {
+            if (response instanceof CompressedResponseWrapper) {
+                final CompressedResponseWrapper wrapper = (CompressedResponseWrapper) response;
+                wrapper.noCompression();
+                return wrapper.getResponse().getOutputStream();
+            }
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+        return req.getOutputStream();
+    }
+
+    /**
+     * Write part of file to response. Cached content is written directly - other files are memory mapped and handed
+     * to jetty, or transferred through the file channel when the response is wrapped.
+     */
+    private void sendFile(WebiContext req, OutputStream out, StaticFile staticFile, long start, long length) throws IOException {
+        req.setHeader("Content-Length", Long.toString(length));
+
+        final byte[] content = staticFile.getContent();
+        if (content != null) {
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).sendContent(ByteBuffer.wrap(content, (int) start, (int) length));
+            } else {
+                out.write(content, (int) start, (int) length);
+                req.flushBuffer();
+            }
+            return;
+        }
+
+        final FileInputStream fileIn = new FileInputStream(staticFile.getFile());
+        try {
+            final FileChannel channel = fileIn.getChannel();
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).sendContent(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+                return;
+            }
+
+            final WritableByteChannel target = Channels.newChannel(out);
+            long position = start;
+            final long end = start + length;
+            while (position < end) {
+                final long sent = channel.transferTo(position, end - position, target);
+                if (sent < 1) {
+                    break;
+                }
+                position += sent;
+            }
+        } finally {
+            fileIn.close();
         }
         req.flushBuffer();
     }
-    
+
     /**
      * Get mime type from file name (extension)
      * @param file
@@ -176,6 +373,15 @@ public class FileRequestHandler implements RequestHandler {
     public String getDocumentRoot() {
         return docRoot;
     }
+
+    /**
+     * Get file cache - use to configure how much is kept in memory and how often files are checked for changes.
+     * Files are checked on every request in dev mode.
+     * @return
+     */
+    public StaticFileCache getFileCache() {
+        return fileCache;
+    }
     
     
 
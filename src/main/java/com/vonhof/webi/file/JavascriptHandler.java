@@ -10,7 +10,6 @@ import com.google.javascript.jscomp.SourceFile;
 import com.google.javascript.jscomp.SourceMap;
 import com.google.javascript.jscomp.deps.SortedDependencies.CircularDependencyException;
 import com.vonhof.webi.WebiContext;
-import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.IOException;
@@ -24,6 +23,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,12 +39,23 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         
     private final Charset charset = Charset.forName("UTF-8");
     
-    private final Map<String,String> sourceMaps = new HashMap<String, String>();
+    /**
+     * Compiled bundles by path
+     */
+    private final CompileCache<Bundle> bundles;
 
     private boolean minify = true;
 
     public JavascriptHandler() {
+        this(1000);
+    }
+
+    /**
+     * @param maxCachedBundles max amount of compiled bundles kept in memory
+     */
+    public JavascriptHandler(int maxCachedBundles) {
         super("text/javascript");
+        bundles = new CompileCache<Bundle>(maxCachedBundles);
         Compiler.setLoggingLevel(Level.SEVERE);
     }
 
@@ -72,22 +83,46 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         }
     } 
     
-    private void compiled(WebiContext req, List<File> files) throws IOException {
+    private void compiled(WebiContext req, final List<File> files) throws IOException {
         
-        final String sourceName = req.getRequest().getRequestURI();
+        final String base = req.getBase();
+        final String path = req.getPath();
+        //Files are resolved from the path - so the request uri (which can have path parameters etc.) is not used
+        final String sourceName = base.endsWith("/") && path.startsWith("/") ? base + path.substring(1) : base + path;
         final String sourceMapPath = sourceName+"?map";
+
+        final Bundle bundle = bundles.get(sourceName, getFingerprint(files), new Callable<Bundle>() {
+            @Override
+            public Bundle call() throws Exception {
+                return compile(sourceName, sourceMapPath, base, path, files);
+            }
+        });
+
         //Check if we should be outputting source map
-        boolean outputMap = req.getParameterMap().contains("map");
-        if (outputMap) {
+        if (req.getParameterMap().contains("map")) {
             req.setHeader("Content-type", "application/json");
-            if (sourceMaps.containsKey(sourceName)) {
-                IOUtils.write(sourceMaps.get(sourceName), req.getOutputStream());
-                return;
-            }
+            req.getOutputStream().write(bundle.sourceMap);
         } else {
             req.setHeader("X-SourceMap",sourceMapPath);
+            req.getOutputStream().write(bundle.source);
         }
-        
+    }
+
+    /**
+     * Identifies the compiled output of the files - changes when any file is changed, added or removed
+     */
+    private String getFingerprint(List<File> files) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(minify);
+        for(File file:files) {
+            sb.append('\n').append(file.getAbsolutePath())
+                    .append(':').append(file.lastModified())
+                    .append(':').append(file.length());
+        }
+        return sb.toString();
+    }
+
+    private Bundle compile(String sourceName, String sourceMapPath, String base, String path, List<File> files) throws IOException {
         final CompilerOptions options = new CompilerOptions();
         if (minify) {
             CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel(options);
@@ -107,7 +142,7 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         rootModule.add(SourceFile.fromCode("root.js", ""));
         
         //Get absolute dir path to current url
-        final String baseDir = this.getDocumentRoot()+req.getPath();
+        final String baseDir = this.getDocumentRoot()+path;
         
         //Run through all files that should be compiled
         Map<String,List<PrioritizedSourceFile>> moduleSourceFiles = new HashMap<String, List<PrioritizedSourceFile>>();
@@ -115,7 +150,7 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         for(File file:files) {
 
             //Calculate relative path to HTTP root path
-            String relativePath = req.getBase()+file.getAbsolutePath().substring(this.getDocumentRoot().length()+1);
+            String relativePath = base+file.getAbsolutePath().substring(this.getDocumentRoot().length()+1);
             
             //Get relative path to file from the current path. This is that path that the browsers will use for 
             //finding non-minified js
@@ -129,10 +164,12 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
             sourcePath += "?source";
             
             //Build source file using paths that the browsers will recognize in source maps
-            SourceFile sFile = SourceFile.fromCode(sourcePath,relativePath,Files.toString(file, charset));
+            String code = Files.toString(file, charset);
+            SourceFile sFile = SourceFile.fromCode(sourcePath,relativePath,code);
             
             //Check for special comment //@module <name> @prio - low-tech dependency management
-            String firstLine = Files.readFirstLine(file, charset);
+            int firstLineEnd = code.indexOf('\n');
+            String firstLine = firstLineEnd > -1 ? code.substring(0, firstLineEnd) : code;
             Matcher m = modulePattern.matcher(firstLine);
             String moduleName = null;
             int order = 0;
@@ -213,18 +250,23 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         StringBuilder sb = new StringBuilder();
         result.sourceMap.validate(true);
         result.sourceMap.appendTo(sb, sourceName);
-        sourceMaps.put(sourceName, sb.toString());
-        
-        if (outputMap) {
-            //Output source map
-            IOUtils.write(sourceMaps.get(sourceName), req.getOutputStream());
-        } else {
 
-            //Add source map special comment to source and output compiled js
-            source += "\n//@ sourceMappingURL="+options.sourceMapOutputPath;
-            req.setHeader("X-SourceMap",options.sourceMapOutputPath);
+        //Add source map special comment to source
+        source += "\n//@ sourceMappingURL="+options.sourceMapOutputPath;
+
+        return new Bundle(source.getBytes(charset), sb.toString().getBytes(charset));
+    }
+
+    /**
+     * Compiled javascript and its source map
+     */
+    private static final class Bundle {
+        private final byte[] source;
+        private final byte[] sourceMap;
 
-            IOUtils.write(source, req.getOutputStream());
+        private Bundle(byte[] source, byte[] sourceMap) {
+            this.source = source;
+            this.sourceMap = sourceMap;
         }
     }
 
@@ -4,23 +4,46 @@ import com.asual.lesscss.LessEngine;
 import com.asual.lesscss.LessOptions;
 import com.google.common.io.Files;
 import com.vonhof.webi.WebiContext;
+import com.vonhof.webi.bean.AfterInit;
 import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  *
  * @author Henrik Hofmeister <@vonhofdk>
  */
-public class LESSHandler extends PreprocessingRequestHandler {
+public class LESSHandler extends PreprocessingRequestHandler implements AfterInit {
+    private static final Logger log = LogManager.getLogger(LESSHandler.class);
+
+    private final Charset charset = Charset.forName("UTF-8");
+
     final LessEngine css;
     final LessEngine less;
 
+    /**
+     * Compiled stylesheets by file path and compressed flag
+     */
+    private final CompileCache<byte[]> compiled;
+
+    private boolean precompile = false;
+
     public LESSHandler() {
+        this(1000);
+    }
+
+    /**
+     * @param maxCachedFiles max amount of compiled stylesheets kept in memory
+     */
+    public LESSHandler(int maxCachedFiles) {
         super("text/css");
+        //Not serving stale output since responses are identified by the source files
+        compiled = new CompileCache<byte[]>(maxCachedFiles, false);
         
         //Setup 2 engines - 1 for CSS and 1 for LESS
         LessOptions cssOptions = new LessOptions();
@@ -38,27 +61,102 @@ public class LESSHandler extends PreprocessingRequestHandler {
         return ext.equalsIgnoreCase("css") || ext.equalsIgnoreCase("less");
     }
     
+    /**
+     * Compile all stylesheets in the document root when the bean context is initialized - so the first requests
+     * do not have to wait for compilation.
+     * @param precompile
+     */
+    public void setPrecompile(boolean precompile) {
+        this.precompile = precompile;
+    }
+
+    public boolean isPrecompile() {
+        return precompile;
+    }
+
     @Override
-    protected void outputFiles(WebiContext req, List<File> files) throws IOException {
-        
-        //Run through all files that should be compiled
+    public void afterInit() {
+        if (precompile) {
+            precompile();
+        }
+    }
+
+    /**
+     * Compile all stylesheets in the document root - both compressed and uncompressed
+     */
+    public void precompile() {
+        final File root = new File(getDocumentRoot());
+        if (!root.isDirectory()) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        final List<File> files = getFiles(root);
         for(File file:files) {
-            //Actual source
-            String cssLess = Files.toString(file, Charset.forName("UTF-8"));
             try {
-                //Compiled source
-                String compiled = "";
-                if (getFileExt(file).equalsIgnoreCase("less")) {
-                    compiled = less.compile(cssLess, req.getParameterMap().contains("compressed"));
-                } else {
-                    compiled = css.compile(cssLess, req.getParameterMap().contains("compressed"));
-                }
-                
-                req.getOutputStream().write(compiled.getBytes("UTF-8"));
-            } catch (Throwable ex) {
-                LogManager.getLogger(LESSHandler.class).fatal("Failed while compiling LESS", ex);
-                req.getOutputStream().write(cssLess.getBytes("UTF-8"));
+                getCompiled(file, false);
+                getCompiled(file, true);
+            } catch (IOException ex) {
+                log.error("Failed to precompile " + file, ex);
+            }
+        }
+        log.info("Precompiled {} stylesheets in {} ms", files.size(), System.currentTimeMillis() - start);
+    }
+
+    @Override
+    protected String getETag(WebiContext req, List<File> files) {
+        long lastModified = 0;
+        int hash = req.getParameterMap().contains("compressed") ? 1 : 0;
+        for(File file:files) {
+            lastModified = Math.max(lastModified, file.lastModified());
+            hash = 31 * hash + file.getAbsolutePath().hashCode();
+            hash = 31 * hash + (int) (file.lastModified() ^ file.length());
+        }
+        return String.format("\"%s-%s-%s\"", Long.toHexString(lastModified), files.size(), Integer.toHexString(hash));
+    }
+
+    @Override
+    protected void outputFiles(WebiContext req, List<File> files) throws IOException {
+        final boolean compressed = req.getParameterMap().contains("compressed");
+        for(File file:files) {
+            req.getOutputStream().write(getCompiled(file, compressed));
+        }
+    }
+
+    /**
+     * Get compiled stylesheet - compiles it if it is not cached or has changed
+     * @param file
+     * @param compressed
+     * @return
+     * @throws IOException
+     */
+    public byte[] getCompiled(final File file, final boolean compressed) throws IOException {
+        final String key = compressed ? file.getAbsolutePath() + "?compressed" : file.getAbsolutePath();
+        final String fingerprint = file.lastModified() + ":" + file.length();
+
+        return compiled.get(key, fingerprint, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return compile(file, compressed);
+            }
+        });
+    }
+
+    private byte[] compile(File file, boolean compressed) throws IOException {
+        //Actual source
+        String cssLess = Files.toString(file, charset);
+        try {
+            //Compiled source
+            String out;
+            if (getFileExt(file).equalsIgnoreCase("less")) {
+                out = less.compile(cssLess, compressed);
+            } else {
+                out = css.compile(cssLess, compressed);
             }
+            return out.getBytes(charset);
+        } catch (Throwable ex) {
+            log.fatal("Failed while compiling LESS", ex);
+            return cssLess.getBytes(charset);
         }
     }
 }
@@ -36,8 +36,7 @@ abstract public class PreprocessingRequestHandler extends FileRequestHandler {
             }
         }
         
-        long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
-        if (reqLastModified > 0 && lastModified <= reqLastModified) {
+        if (isNotModified(req, files, lastModified)) {
             req.setStatus(304);
             req.flushBuffer();
             return;
@@ -66,23 +65,52 @@ abstract public class PreprocessingRequestHandler extends FileRequestHandler {
             return; 
         }
         long lastModified = file.lastModified();
-        long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
         
         req.setHeader("Content-type",contentType);
         req.setDateHeader("Last-Modified",lastModified);
-        
-        if (reqLastModified > 0 && lastModified <= reqLastModified) {
+
+        final List<File> files = Collections.singletonList(file);
+        if (isNotModified(req, files, lastModified)) {
             req.setStatus(304);
             req.flushBuffer();
             return;
         }
         
-        outputFiles(req, Collections.singletonList(file));
+        outputFiles(req, files);
         
         req.flushBuffer();
     }
     
     
+    /**
+     * Get entity tag for the output of the files. Subclasses able to identify their output without producing it
+     * should return one so conditional requests skip processing. Defaults to null - no ETag.
+     * @param req
+     * @param files
+     * @return
+     */
+    protected String getETag(WebiContext req, List<File> files) {
+        return null;
+    }
+
+    /**
+     * Check conditional request headers. Sets the ETag header if there is one. If-Modified-Since is ignored when the
+     * client sent If-None-Match for an ETag.
+     */
+    private boolean isNotModified(WebiContext req, List<File> files, long lastModified) {
+        String etag = getETag(req, files);
+        if (etag != null) {
+            req.setHeader("ETag", etag);
+            String ifNoneMatch = req.getRequest().getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                return ifNoneMatch.contains(etag);
+            }
+        }
+
+        long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
+        return reqLastModified > 0 && lastModified <= reqLastModified;
+    }
+
     protected void outputFiles(WebiContext req,List<File> files) throws IOException {
         byte[] lineBreak = "\n".getBytes("UTF-8");
         
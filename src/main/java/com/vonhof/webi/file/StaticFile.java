@@ -0,0 +1,93 @@
+package com.vonhof.webi.file;
+
+import java.io.File;
+
+/**
+ * Snapshot of a static file - its meta data and, for small files, its content.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class StaticFile {
+    private final File file;
+    private final long length;
+    private final long lastModified;
+    private final String etag;
+    private final byte[] content;
+    private final StaticFile gzip;
+    private final StaticFile brotli;
+
+    volatile long checkedAt;
+
+    StaticFile(File file, long length, long lastModified, String etag, byte[] content,
+               StaticFile gzip, StaticFile brotli) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.content = content;
+        this.gzip = gzip;
+        this.brotli = brotli;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * File content if the file was small enough to be cached - otherwise null
+     * @return
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Precompressed .gz sibling or null
+     * @return
+     */
+    public StaticFile getGzip() {
+        return gzip;
+    }
+
+    /**
+     * Precompressed .br sibling or null
+     * @return
+     */
+    public StaticFile getBrotli() {
+        return brotli;
+    }
+
+    boolean hasVariants() {
+        return gzip != null || brotli != null;
+    }
+
+    /**
+     * Amount of memory held by this file and its variants
+     * @return
+     */
+    long getCachedSize() {
+        long out = content != null ? content.length : 0;
+        if (gzip != null) {
+            out += gzip.getCachedSize();
+        }
+        if (brotli != null) {
+            out += brotli.getCachedSize();
+        }
+        return out;
+    }
+
+    boolean isSameAs(File other) {
+        return other.lastModified() == lastModified && other.length() == length;
+    }
+}
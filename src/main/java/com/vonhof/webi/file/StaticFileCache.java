@@ -0,0 +1,168 @@
+package com.vonhof.webi.file;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of static files. Files are only checked for changes once per check interval and small files are
+ * kept in memory - the least recently used files are evicted when the cache grows beyond its max size.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class StaticFileCache {
+    private final LinkedHashMap<String, StaticFile> files = new LinkedHashMap<String, StaticFile>(64, 0.75f, true);
+    private long size = 0;
+
+    private long maxSize = 32 * 1024 * 1024;
+    private long maxFileSize = 64 * 1024;
+    private long checkInterval = 1000;
+
+    /**
+     * Get file - reading it from disk if it is not cached or has changed
+     * @param file
+     * @param check always check if the file changed
+     * @return the file or null if it does not exist
+     * @throws IOException
+     */
+    public StaticFile get(File file, boolean check) throws IOException {
+        final String path = file.getPath();
+        final long now = System.currentTimeMillis();
+
+        StaticFile cached;
+        synchronized (this) {
+            cached = files.get(path);
+        }
+
+        if (cached != null) {
+            if (!check && now - cached.checkedAt < checkInterval) {
+                return cached;
+            }
+            if (cached.isSameAs(file) && isSameVariant(cached.getGzip(), path + ".gz")
+                    && isSameVariant(cached.getBrotli(), path + ".br")) {
+                cached.checkedAt = now;
+                return cached;
+            }
+        }
+
+        if (!file.isFile()) {
+            remove(path);
+            return null;
+        }
+
+        final StaticFile out = read(file, read(new File(path + ".gz"), file), read(new File(path + ".br"), file));
+        out.checkedAt = now;
+
+        synchronized (this) {
+            final StaticFile old = files.put(path, out);
+            if (old != null) {
+                size -= old.getCachedSize();
+            }
+            size += out.getCachedSize();
+            evict();
+        }
+
+        return out;
+    }
+
+    /**
+     * Check if file is cached and was checked for changes within the check interval - meaning it is known to be a file
+     * without touching the disk.
+     * @param file
+     * @return
+     */
+    public boolean isFresh(File file) {
+        final StaticFile cached;
+        synchronized (this) {
+            cached = files.get(file.getPath());
+        }
+        return cached != null && System.currentTimeMillis() - cached.checkedAt < checkInterval;
+    }
+
+    private synchronized void remove(String path) {
+        final StaticFile old = files.remove(path);
+        if (old != null) {
+            size -= old.getCachedSize();
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, StaticFile>> it = files.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().getCachedSize();
+            it.remove();
+        }
+    }
+
+    private boolean isSameVariant(StaticFile variant, String path) {
+        final File file = new File(path);
+        if (variant == null) {
+            return !file.exists();
+        }
+        return variant.isSameAs(file);
+    }
+
+    /**
+     * Read precompressed variant of original. Ignored if it is older than the original.
+     */
+    private StaticFile read(File variant, File original) throws IOException {
+        if (!variant.isFile() || variant.lastModified() < original.lastModified()) {
+            return null;
+        }
+        return read(variant, null, null);
+    }
+
+    private StaticFile read(File file, StaticFile gzip, StaticFile brotli) throws IOException {
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final byte[] content = length <= maxFileSize && length <= maxSize ? FileUtils.readFileToByteArray(file) : null;
+        final String etag = String.format("\"%s-%s\"", Long.toHexString(lastModified), Long.toHexString(length));
+
+        return new StaticFile(file, length, lastModified, etag, content, gzip, brotli);
+    }
+
+    public synchronized void clear() {
+        files.clear();
+        size = 0;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Max amount of bytes kept in memory
+     * @param maxSize
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Files larger than this are streamed from disk
+     * @param maxFileSize
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Milliseconds between checking cached files for changes
+     * @param checkInterval
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+}
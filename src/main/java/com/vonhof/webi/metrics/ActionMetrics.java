@@ -0,0 +1,116 @@
+package com.vonhof.webi.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.vonhof.webi.HttpException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Metrics of a single controller action. Times the request as a whole and the argument binding, invocation and
+ * serialization phases separately - and counts errors by status code.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class ActionMetrics {
+    private final String name;
+    private final MetricRegistry registry;
+    private final Timer total;
+    private final Timer binding;
+    private final Timer invocation;
+    private final Timer serialization;
+    private final AtomicReferenceArray<Counter> errors = new AtomicReferenceArray<Counter>(600);
+
+    ActionMetrics(String name, MetricRegistry registry, Timer total, Timer binding, Timer invocation, Timer serialization) {
+        this.name = name;
+        this.registry = registry;
+        this.total = total;
+        this.binding = binding;
+        this.invocation = invocation;
+        this.serialization = serialization;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void total(long nanos) {
+        total.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void binding(long nanos) {
+        binding.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void invocation(long nanos) {
+        invocation.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void serialization(long nanos) {
+        serialization.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Count error - HttpExceptions by their code, everything else as 500
+     * @param error
+     */
+    public void error(Throwable error) {
+        error(error instanceof HttpException ? ((HttpException) error).getCode() : HttpException.INTERNAL_ERROR);
+    }
+
+    public void error(int code) {
+        if (code < 0 || code >= errors.length()) {
+            code = HttpException.INTERNAL_ERROR;
+        }
+        Counter counter = errors.get(code);
+        if (counter == null) {
+            counter = registry.counter(MetricRegistry.name(name, "errors", String.valueOf(code)));
+            errors.set(code, counter);
+        }
+        counter.inc();
+    }
+
+    /**
+     * Current values - times are in milliseconds
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        final Map<String, Object> out = new LinkedHashMap<String, Object>();
+        out.put("total", snapshot(total));
+        out.put("binding", snapshot(binding));
+        out.put("invocation", snapshot(invocation));
+        out.put("serialization", snapshot(serialization));
+
+        final Map<String, Long> errorCounts = new LinkedHashMap<String, Long>();
+        for (int code = 0; code < errors.length(); code++) {
+            final Counter counter = errors.get(code);
+            if (counter != null) {
+                errorCounts.put(String.valueOf(code), counter.getCount());
+            }
+        }
+        out.put("errors", errorCounts);
+        return out;
+    }
+
+    private static Map<String, Object> snapshot(Timer timer) {
+        final Snapshot snapshot = timer.getSnapshot();
+        final Map<String, Object> out = new LinkedHashMap<String, Object>();
+        out.put("count", timer.getCount());
+        out.put("rate", timer.getOneMinuteRate());
+        out.put("mean", toMillis(snapshot.getMean()));
+        out.put("p50", toMillis(snapshot.getMedian()));
+        out.put("p95", toMillis(snapshot.get95thPercentile()));
+        out.put("p99", toMillis(snapshot.get99thPercentile()));
+        out.put("p999", toMillis(snapshot.get999thPercentile()));
+        out.put("max", toMillis(snapshot.getMax()));
+        return out;
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / 1000000d;
+    }
+}
@@ -0,0 +1,91 @@
+package com.vonhof.webi.metrics;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+import com.vonhof.babelshark.reflect.MethodInfo;
+import com.vonhof.webi.HttpMethod;
+import com.vonhof.webi.rest.Route;
+import com.vonhof.webi.rest.UrlMapper;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency metrics per controller action. Metrics for all exposed actions are registered when initialized - actions
+ * are found by method identity while handling requests so no metric names are built or looked up. Actions exposed
+ * after init are not measured.
+ *
+ * Metrics are named webi.endpoint.[controller url].[action url].[http method] - override newReservoir to use another
+ * histogram implementation for the timers.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class EndpointMetrics {
+    private volatile Map<MethodInfo, ActionMetrics> actions = Collections.emptyMap();
+
+    /**
+     * Register metrics for all actions of the url mapper. Can be called for several url mappers - e.g. one per REST
+     * service handler - to measure the actions of all of them.
+     * @param registry
+     * @param urlMapper
+     */
+    public synchronized void init(MetricRegistry registry, UrlMapper urlMapper) {
+        final Map<MethodInfo, ActionMetrics> out = new IdentityHashMap<MethodInfo, ActionMetrics>(actions);
+        for (Map.Entry<String, Map<String, EnumMap<HttpMethod, MethodInfo>>> controller : urlMapper.getMethods().entrySet()) {
+            for (Map.Entry<String, EnumMap<HttpMethod, MethodInfo>> action : controller.getValue().entrySet()) {
+                for (Map.Entry<HttpMethod, MethodInfo> method : action.getValue().entrySet()) {
+                    final String name = MetricRegistry.name("webi.endpoint", controller.getKey(), action.getKey(),
+                            method.getKey().name());
+                    out.put(method.getValue(), new ActionMetrics(name, registry,
+                            timer(registry, MetricRegistry.name(name, "total")),
+                            timer(registry, MetricRegistry.name(name, "binding")),
+                            timer(registry, MetricRegistry.name(name, "invocation")),
+                            timer(registry, MetricRegistry.name(name, "serialization"))));
+                }
+            }
+        }
+        actions = out;
+    }
+
+    /**
+     * Get metrics of action
+     * @param action
+     * @return null if the action is not measured
+     */
+    public ActionMetrics get(Route.Action action) {
+        return actions.get(action.getMethod());
+    }
+
+    /**
+     * Current values of all actions by name
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        final Map<String, Object> out = new TreeMap<String, Object>();
+        for (ActionMetrics action : actions.values()) {
+            out.put(action.getName(), action.snapshot());
+        }
+        return out;
+    }
+
+    protected Reservoir newReservoir() {
+        return new ExponentiallyDecayingReservoir();
+    }
+
+    private Timer timer(MetricRegistry registry, String name) {
+        final Timer existing = registry.getTimers().get(name);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            return registry.register(name, new Timer(newReservoir()));
+        } catch (IllegalArgumentException ex) {
+            //Registered concurrently
+            return registry.timer(name);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.vonhof.webi.qos;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Decides when requests are handled. Implementations must never block the calling thread - requests that can not be
+ * handled right away are either rejected or suspended using the servlet async api and dispatched again once admitted.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface AdmissionController {
+
+    /**
+     * Admit request.
+     * @param path
+     * @param request
+     * @param response
+     * @return permit if the request should be handled now - or null if it was queued or rejected.
+     * @throws IOException
+     */
+    public Permit admit(String path, HttpServletRequest request, HttpServletResponse response) throws IOException;
+
+    /**
+     * Held while a request is being handled
+     */
+    public interface Permit {
+        /**
+         * Called once when the request has been handled
+         */
+        public void release();
+    }
+}
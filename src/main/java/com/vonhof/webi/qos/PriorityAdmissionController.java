@@ -0,0 +1,350 @@
+package com.vonhof.webi.qos;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.vonhof.webi.PathPatternMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admits requests by priority class. Requests are classified by header or path pattern - each class has its own
+ * concurrency limit and queue, and all classes share a global limit.
+ *
+ * Requests that can not be admitted right away are suspended - no thread waits for capacity. When a request completes
+ * the queued request from the class with the highest priority that has capacity is dispatched. Overloaded queues are
+ * served newest first and shed their oldest requests when full (see PriorityClass).
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class PriorityAdmissionController implements AdmissionController {
+    private static final Logger log = LogManager.getLogger(PriorityAdmissionController.class);
+
+    private static final String ATTR_ADMISSION = PriorityAdmissionController.class.getName() + ".ADMISSION";
+
+    private static final int WAITING = 0;
+    private static final int ADMITTED = 1;
+    private static final int DONE = 2;
+
+    private final int maxConcurrent;
+    private final MetricRegistry registry;
+    private final PriorityClass defaultClass;
+
+    private final PathPatternMap<PriorityClass> pathClasses = new PathPatternMap<PriorityClass>();
+    private volatile HeaderRule[] headerRules = new HeaderRule[0];
+
+    /**
+     * Classes by priority - highest first. Guarded by this.
+     */
+    private PriorityClass[] classes = new PriorityClass[0];
+    private int active = 0;
+
+    /**
+     * @param maxConcurrent max requests handled at the same time across all classes
+     * @param registry metric registry or null
+     */
+    public PriorityAdmissionController(int maxConcurrent, MetricRegistry registry) {
+        this.maxConcurrent = maxConcurrent;
+        this.registry = registry;
+        this.defaultClass = new PriorityClass("default", 0, 0);
+        addClass(defaultClass);
+    }
+
+    /**
+     * Class used for requests not matching any header or path
+     * @return
+     */
+    public PriorityClass getDefaultClass() {
+        return defaultClass;
+    }
+
+    /**
+     * Use class for requests matching path pattern
+     * @param path
+     * @param priorityClass
+     */
+    public void add(String path, PriorityClass priorityClass) {
+        addClass(priorityClass);
+        pathClasses.put(path, priorityClass);
+    }
+
+    /**
+     * Use class for requests with header. Header rules are checked before paths - in the order they were added.
+     * @param header
+     * @param value required value or null for any value
+     * @param priorityClass
+     */
+    public synchronized void add(String header, String value, PriorityClass priorityClass) {
+        addClass(priorityClass);
+        HeaderRule[] rules = Arrays.copyOf(headerRules, headerRules.length + 1);
+        rules[headerRules.length] = new HeaderRule(header, value, priorityClass);
+        headerRules = rules;
+    }
+
+    private synchronized void addClass(PriorityClass priorityClass) {
+        for (PriorityClass existing : classes) {
+            if (existing == priorityClass) {
+                return;
+            }
+        }
+
+        PriorityClass[] out = Arrays.copyOf(classes, classes.length + 1);
+        out[classes.length] = priorityClass;
+        Arrays.sort(out, new Comparator<PriorityClass>() {
+            @Override
+            public int compare(PriorityClass a, PriorityClass b) {
+                return b.getPriority() - a.getPriority();
+            }
+        });
+        classes = out;
+        register(priorityClass);
+    }
+
+    private void register(final PriorityClass priorityClass) {
+        if (registry == null) {
+            priorityClass.waitTime = new Timer();
+            priorityClass.rejected = new Meter();
+            priorityClass.expired = new Meter();
+            return;
+        }
+
+        final String prefix = MetricRegistry.name("webi.qos", priorityClass.getName());
+        priorityClass.waitTime = registry.timer(MetricRegistry.name(prefix, "wait"));
+        priorityClass.rejected = registry.meter(MetricRegistry.name(prefix, "rejected"));
+        priorityClass.expired = registry.meter(MetricRegistry.name(prefix, "expired"));
+        gauge(MetricRegistry.name(prefix, "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                synchronized (PriorityAdmissionController.this) {
+                    return priorityClass.queue.size();
+                }
+            }
+        });
+        gauge(MetricRegistry.name(prefix, "active"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                synchronized (PriorityAdmissionController.this) {
+                    return priorityClass.active;
+                }
+            }
+        });
+    }
+
+    /**
+     * Register gauge - replacing the gauge of any controller this one replaces
+     * @param name
+     * @param gauge
+     */
+    private void gauge(String name, Gauge<Integer> gauge) {
+        registry.remove(name);
+        try {
+            registry.register(name, gauge);
+        } catch (IllegalArgumentException ex) {
+            //Registered concurrently
+            registry.remove(name);
+            registry.register(name, gauge);
+        }
+    }
+
+    protected PriorityClass classify(String path, HttpServletRequest request) {
+        for (HeaderRule rule : headerRules) {
+            final String value = request.getHeader(rule.header);
+            if (value != null && (rule.value == null || rule.value.equals(value))) {
+                return rule.priorityClass;
+            }
+        }
+
+        final PriorityClass out = pathClasses.get(path);
+        return out != null ? out : defaultClass;
+    }
+
+    @Override
+    public Permit admit(String path, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final Admission queued = (Admission) request.getAttribute(ATTR_ADMISSION);
+        if (queued != null) {
+            //Dispatched again after being admitted from the queue
+            request.removeAttribute(ATTR_ADMISSION);
+            if (queued.state.get() == ADMITTED) {
+                return queued;
+            }
+        }
+
+        final PriorityClass priorityClass = classify(path, request);
+        final Admission admission = new Admission(priorityClass);
+        boolean rejected = false;
+        Admission shed = null;
+
+        synchronized (this) {
+            if (priorityClass.queue.isEmpty() && hasCapacity(priorityClass)) {
+                priorityClass.active++;
+                active++;
+                admission.state.set(ADMITTED);
+                return admission;
+            }
+
+            if (priorityClass.queue.size() >= priorityClass.getMaxQueued()) {
+                if (priorityClass.getMaxQueued() < 1 || !priorityClass.isOverloaded(System.currentTimeMillis())) {
+                    rejected = true;
+                } else {
+                    shed = priorityClass.queue.pollFirst();
+                }
+            }
+
+            if (!rejected) {
+                admission.suspend(request);
+                priorityClass.queue.addLast(admission);
+            }
+        }
+
+        if (shed != null && shed.state.compareAndSet(WAITING, DONE)) {
+            priorityClass.rejected.mark();
+            shed.reject();
+        }
+
+        if (rejected) {
+            priorityClass.rejected.mark();
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+
+        return null;
+    }
+
+    private boolean hasCapacity(PriorityClass priorityClass) {
+        return (maxConcurrent < 1 || active < maxConcurrent) && priorityClass.hasCapacity();
+    }
+
+    private void release(Admission admission) {
+        List<Admission> admitted = null;
+
+        synchronized (this) {
+            admission.priorityClass.active--;
+            active--;
+
+            final long now = System.currentTimeMillis();
+            for (PriorityClass priorityClass : classes) {
+                if (maxConcurrent > 0 && active >= maxConcurrent) {
+                    break;
+                }
+
+                while (!priorityClass.queue.isEmpty() && hasCapacity(priorityClass)) {
+                    final Admission next = priorityClass.isOverloaded(now)
+                            ? priorityClass.queue.pollLast()
+                            : priorityClass.queue.pollFirst();
+
+                    if (!next.state.compareAndSet(WAITING, ADMITTED)) {
+                        continue;
+                    }
+
+                    priorityClass.active++;
+                    active++;
+                    priorityClass.waitTime.update(now - next.queuedAt, TimeUnit.MILLISECONDS);
+                    if (admitted == null) {
+                        admitted = new ArrayList<Admission>(1);
+                    }
+                    admitted.add(next);
+                }
+            }
+        }
+
+        if (admitted != null) {
+            for (Admission next : admitted) {
+                next.asyncContext.dispatch();
+            }
+        }
+    }
+
+    private synchronized boolean remove(Admission admission) {
+        return admission.priorityClass.queue.remove(admission);
+    }
+
+    /**
+     * Admission of a single request - queued or handled
+     */
+    final class Admission implements Permit, AsyncListener {
+        private final PriorityClass priorityClass;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        long queuedAt;
+        private AsyncContext asyncContext;
+
+        private Admission(PriorityClass priorityClass) {
+            this.priorityClass = priorityClass;
+        }
+
+        private void suspend(HttpServletRequest request) {
+            queuedAt = System.currentTimeMillis();
+            request.setAttribute(ATTR_ADMISSION, this);
+            asyncContext = request.startAsync();
+            asyncContext.setTimeout(priorityClass.getMaxWaitMs());
+            asyncContext.addListener(this);
+        }
+
+        private void reject() {
+            try {
+                ((HttpServletResponse) asyncContext.getResponse()).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } catch (IOException ex) {
+                log.debug("Failed to reject queued request", ex);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void release() {
+            if (state.compareAndSet(ADMITTED, DONE)) {
+                PriorityAdmissionController.this.release(this);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (state.compareAndSet(WAITING, DONE)) {
+                remove(this);
+                priorityClass.expired.mark();
+                log.warn("Request timed out in queue {}: {}", priorityClass,
+                        ((HttpServletRequest) asyncContext.getRequest()).getRequestURI());
+                reject();
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            if (state.compareAndSet(WAITING, DONE)) {
+                remove(this);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            onError(event);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {}
+    }
+
+    private static final class HeaderRule {
+        private final String header;
+        private final String value;
+        private final PriorityClass priorityClass;
+
+        private HeaderRule(String header, String value, PriorityClass priorityClass) {
+            this.header = header;
+            this.value = value;
+            this.priorityClass = priorityClass;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.vonhof.webi.qos;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Group of requests sharing concurrency limit and queue. When capacity frees up queued requests from classes with a
+ * higher priority are admitted first. Configure before adding it to a PriorityAdmissionController.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class PriorityClass {
+    private final String name;
+    private final int priority;
+    private final int maxConcurrent;
+
+    private int maxQueued = 1000;
+    private long maxWaitMs = 30000;
+    private long targetWaitMs = 100;
+
+    //State - guarded by the admission controller
+    int active = 0;
+    final ArrayDeque<PriorityAdmissionController.Admission> queue = new ArrayDeque<PriorityAdmissionController.Admission>();
+
+    Timer waitTime;
+    Meter rejected;
+    Meter expired;
+
+    /**
+     * @param name used for metrics
+     * @param priority classes with higher priority are admitted first
+     * @param maxConcurrent max requests handled at the same time - 0 or less for no limit besides the global one
+     */
+    public PriorityClass(String name, int priority, int maxConcurrent) {
+        this.name = name;
+        this.priority = priority;
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Max amount of queued requests. When the queue is full new requests are rejected - unless the queue is
+     * overloaded in which case the oldest queued request is shed instead.
+     * @param maxQueued
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    public long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    /**
+     * Queued requests are rejected after waiting this long
+     * @param maxWaitMs
+     */
+    public void setMaxWaitMs(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    public long getTargetWaitMs() {
+        return targetWaitMs;
+    }
+
+    /**
+     * The queue is overloaded while the oldest request has been waiting longer than this. Overloaded queues are served
+     * newest first so fresh requests still get a response in time while the stale ones expire.
+     * @param targetWaitMs
+     */
+    public void setTargetWaitMs(long targetWaitMs) {
+        this.targetWaitMs = targetWaitMs;
+    }
+
+    boolean hasCapacity() {
+        return maxConcurrent < 1 || active < maxConcurrent;
+    }
+
+    boolean isOverloaded(long now) {
+        final PriorityAdmissionController.Admission oldest = queue.peekFirst();
+        return oldest != null && now - oldest.queuedAt > targetWaitMs;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,84 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.babelshark.reflect.MethodInfo;
+import com.vonhof.babelshark.reflect.MethodInfo.Parameter;
+import net.sf.cglib.reflect.FastClass;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collection;
+
+/**
+ * Invokes a controller action. Invokers are created once per action when the controller is exposed.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public abstract class ActionInvoker {
+    private static final Logger log = LogManager.getLogger(ActionInvoker.class);
+
+    /**
+     * Invokes the action through java reflection
+     */
+    public static final Factory REFLECTION = new Factory() {
+        @Override
+        public ActionInvoker create(Class<?> controllerClass, final MethodInfo method) {
+            return new ActionInvoker() {
+                @Override
+                public Object invoke(Object controller, Object[] args) throws Exception {
+                    return method.invoke(controller, args);
+                }
+            };
+        }
+    };
+
+    /**
+     * Invokes the action through a generated class that calls the method directly. Falls back to reflection if
+     * the class can not be generated - e.g. for non-public controllers.
+     */
+    public static final Factory GENERATED = new Factory() {
+        @Override
+        public ActionInvoker create(Class<?> controllerClass, MethodInfo method) {
+            try {
+                final Collection<Parameter> parameters = method.getParameters().values();
+                final Class[] parameterTypes = new Class[parameters.size()];
+                int i = 0;
+                for(Parameter parameter:parameters) {
+                    parameterTypes[i++] = parameter.getType();
+                }
+
+                final FastClass fastClass = FastClass.create(controllerClass);
+                final int index = fastClass.getIndex(method.getName(), parameterTypes);
+                if (index > -1) {
+                    return new ActionInvoker() {
+                        @Override
+                        public Object invoke(Object controller, Object[] args) throws Exception {
+                            return fastClass.invoke(index, controller, args);
+                        }
+                    };
+                }
+            } catch (RuntimeException | LinkageError ex) {
+                log.trace("Can not generate invoker for {}:{} - Error: {}",
+                        controllerClass.getName(), method.getName(), ex.getMessage());
+            }
+
+            return REFLECTION.create(controllerClass, method);
+        }
+    };
+
+    /**
+     * Invoke action on controller
+     * @param controller
+     * @param args
+     * @return the value returned by the action
+     * @throws InvocationTargetException if the action threw an exception
+     * @throws Exception
+     */
+    public abstract Object invoke(Object controller, Object[] args) throws Exception;
+
+    /**
+     * Creates invokers for actions
+     */
+    public interface Factory {
+        ActionInvoker create(Class<?> controllerClass, MethodInfo method);
+    }
+}
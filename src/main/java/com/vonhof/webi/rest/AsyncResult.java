@@ -0,0 +1,110 @@
+package com.vonhof.webi.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of an asynchronous controller action. Return it from an action to release the request thread while waiting
+ * for slow backends - the response is written when the result is completed or failed, which can happen on any thread.
+ *
+ * The response is written with the thread local beans of the request bound. Work that continues the request on other
+ * threads - and needs request scoped beans - should be wrapped with Webi.wrap.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class AsyncResult<T> {
+    private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>(1);
+    private boolean done;
+    private T value;
+    private Throwable error;
+
+    /**
+     * Complete with value
+     * @param value
+     * @return false if the result was already done
+     */
+    public boolean complete(T value) {
+        return done(value, null);
+    }
+
+    /**
+     * Complete with error - the error is passed to the exception handler like errors thrown by synchronous actions
+     * @param error
+     * @return false if the result was already done
+     */
+    public boolean fail(Throwable error) {
+        return done(null, error);
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Wait for result to be done
+     * @param timeout max milliseconds to wait
+     * @return true if done
+     * @throws InterruptedException
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (!done && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return done;
+    }
+
+    /**
+     * @return value of completed result - null if not done or failed
+     */
+    public synchronized T getValue() {
+        return value;
+    }
+
+    /**
+     * @return cause of failure - null if not done or completed
+     */
+    public synchronized Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Call callback when result is done - right away if it already is
+     * @param callback
+     */
+    public void onDone(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.done(value, error);
+    }
+
+    private boolean done(T value, Throwable error) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.done = true;
+            this.value = value;
+            this.error = error;
+            notifyAll();
+        }
+        for (Callback<? super T> callback : callbacks) {
+            callback.done(value, error);
+        }
+        callbacks.clear();
+        return true;
+    }
+
+    public static interface Callback<T> {
+        /**
+         * @param value result value - null if failed
+         * @param error cause of failure - null if completed
+         */
+        public void done(T value, Throwable error);
+    }
+}
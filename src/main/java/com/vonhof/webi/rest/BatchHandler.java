@@ -0,0 +1,653 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.babelshark.BabelSharkInstance;
+import com.vonhof.babelshark.Input;
+import com.vonhof.babelshark.exception.MappingException;
+import com.vonhof.babelshark.node.SharkNode;
+import com.vonhof.webi.HttpException;
+import com.vonhof.webi.HttpMethod;
+import com.vonhof.webi.RequestHandler;
+import com.vonhof.webi.Webi;
+import com.vonhof.webi.WebiContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
+
+import javax.inject.Inject;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Handles many REST calls in one request. The body is an array of calls:
+ *
+ * [{"method":"GET", "path":"/users/1", "params":{"fields":"name"}, "body":null}, ...]
+ *
+ * Each call is dispatched through the REST service handler - paths are relative to it - and the response is an array
+ * with the status, content type and body of each call in the same order. Session resolution only runs once for the
+ * batch request - all calls share its session. Filters run for the batch request and again for the path of each call,
+ * so filters on sub paths apply to batched calls too.
+ *
+ * Calls are handled one at a time on the request thread unless an executor is given. Batching is opt-in - add a
+ * batch handler at PATH below the REST service handler to enable it:
+ *
+ * webi.add("/rest/" + BatchHandler.PATH, new BatchHandler(restHandler));
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class BatchHandler implements RequestHandler {
+    private static final Logger log = LogManager.getLogger(BatchHandler.class);
+    private static final String JSON = "application/json";
+
+    /**
+     * Conventional path of the batch endpoint - relative to the REST service handler
+     */
+    public static final String PATH = "webi/batch";
+
+    @Inject
+    private Webi webi;
+
+    @Inject
+    private BabelSharkInstance bs;
+
+    private final RESTServiceHandler restHandler;
+    private final ExecutorService executor;
+    private int maxCalls = 50;
+
+    public BatchHandler(RESTServiceHandler restHandler) {
+        this(restHandler, null);
+    }
+
+    /**
+     * @param restHandler handler the calls are dispatched to
+     * @param executor executor for handling calls in parallel - null to handle them one at a time. Use a bounded
+     *                 executor - a single batch request can submit up to max calls tasks.
+     */
+    public BatchHandler(RESTServiceHandler restHandler, ExecutorService executor) {
+        this.restHandler = restHandler;
+        this.executor = executor;
+    }
+
+    public int getMaxCalls() {
+        return maxCalls;
+    }
+
+    /**
+     * Max amount of calls in a batch
+     * @param maxCalls
+     */
+    public void setMaxCalls(int maxCalls) {
+        this.maxCalls = maxCalls;
+    }
+
+    @Override
+    public void handle(final WebiContext ctxt) throws IOException, ServletException {
+        if (!HttpMethod.POST.equals(ctxt.getMethod())) {
+            ctxt.sendError(405, "Batch requests must be POST");
+            return;
+        }
+
+        final Call[] calls;
+        try {
+            calls = bs.read(new Input(ctxt.getInputStream(), ctxt.getRequestType() != null ? ctxt.getRequestType() : JSON),
+                    Call[].class);
+        } catch (MappingException ex) {
+            ctxt.sendError(HttpException.BAD_REQUEST, "Invalid batch request: " + ex.getMessage());
+            return;
+        }
+
+        if (calls == null) {
+            ctxt.sendError(HttpException.BAD_REQUEST, "Invalid batch request: no calls");
+            return;
+        }
+
+        if (calls.length > maxCalls) {
+            ctxt.sendError(HttpException.BAD_REQUEST, "Batch requests can have at most " + maxCalls + " calls");
+            return;
+        }
+
+        ctxt.setHeader("Content-type", JSON);
+        final OutputStream out = ctxt.getOutputStream();
+        out.write('[');
+
+        if (executor == null) {
+            try {
+                for (int i = 0; i < calls.length; i++) {
+                    writeResult(out, i, handle(ctxt, calls[i]));
+                }
+            } finally {
+                webi.bindContext(ctxt);
+            }
+        } else {
+            final List<Future<BufferedResponse>> results = new ArrayList<Future<BufferedResponse>>(calls.length);
+            for (final Call call : calls) {
+                results.add(executor.submit(new Callable<BufferedResponse>() {
+                    @Override
+                    public BufferedResponse call() throws Exception {
+                        try {
+                            return handle(ctxt, call);
+                        } finally {
+                            webi.unbindContext();
+                        }
+                    }
+                }));
+            }
+
+            //Results are written in order as they become available
+            for (int i = 0; i < results.size(); i++) {
+                writeResult(out, i, get(ctxt, results.get(i)));
+            }
+        }
+
+        out.write(']');
+        ctxt.flushBuffer();
+    }
+
+    private BufferedResponse get(WebiContext ctxt, Future<BufferedResponse> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            log.error("Failed to handle batched call", ex.getCause());
+            final BufferedResponse out = new BufferedResponse(ctxt.getResponse());
+            out.setStatus(HttpException.INTERNAL_ERROR);
+            return out;
+        }
+    }
+
+    /**
+     * Handle single call with the REST handler - binding its context to the current thread
+     */
+    private BufferedResponse handle(WebiContext parent, Call call) throws IOException, ServletException {
+        final BufferedResponse response = new BufferedResponse(parent.getResponse());
+
+        String path = call.getPath();
+        final String method = call.getMethod() != null ? call.getMethod().toUpperCase() : "GET";
+        if (path == null || !isMethod(method)) {
+            response.setStatus(HttpException.BAD_REQUEST);
+            return response;
+        }
+
+        final Map<String, String[]> parms = new HashMap<String, String[]>();
+        final int queryStart = path.indexOf('?');
+        if (queryStart > -1) {
+            final MultiMap<String> query = new MultiMap<String>();
+            UrlEncoded.decodeTo(path.substring(queryStart + 1), query, "UTF-8", -1);
+            for (Map.Entry<String, List<String>> entry : query.entrySet()) {
+                parms.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+            }
+            path = path.substring(0, queryStart);
+        }
+        if (call.getParams() != null) {
+            for (Map.Entry<String, Object> entry : call.getParams().entrySet()) {
+                parms.put(entry.getKey(), toStrings(entry.getValue()));
+            }
+        }
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+
+        byte[] body = null;
+        if (call.getBody() != null) {
+            try {
+                body = bs.writeToByteArray(call.getBody(), "json");
+            } catch (MappingException ex) {
+                response.setStatus(HttpException.BAD_REQUEST);
+                return response;
+            }
+        }
+
+        final BatchedRequest request = new BatchedRequest(parent.getRequest(), method, path, parms, body);
+        final WebiContext ctxt = new WebiContext(parent, path, request, response, parms);
+
+        webi.bindContext(ctxt);
+        if (webi.applyFilters(ctxt)) {
+            restHandler.handle(ctxt);
+        }
+        return response;
+    }
+
+    private void writeResult(OutputStream out, int index, BufferedResponse response) throws IOException {
+        if (index > 0) {
+            out.write(',');
+        }
+        out.write(("{\"status\":" + response.getStatus() + ",\"type\":").getBytes("UTF-8"));
+        out.write(toJson(response.getContentType()));
+        out.write(",\"body\":".getBytes("UTF-8"));
+
+        final byte[] body = response.getBody();
+        final String type = response.getContentType();
+        if (body.length == 0) {
+            out.write("null".getBytes("UTF-8"));
+        } else if (type != null && type.contains("json")) {
+            out.write(body);
+        } else {
+            out.write(toJson(new String(body, "UTF-8")));
+        }
+        out.write('}');
+    }
+
+    private byte[] toJson(String value) throws IOException {
+        try {
+            return bs.writeToByteArray(value, "json");
+        } catch (MappingException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static boolean isMethod(String method) {
+        for (HttpMethod value : HttpMethod.values()) {
+            if (value.name().equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] toStrings(Object value) {
+        if (value == null) {
+            return new String[0];
+        }
+        if (value instanceof Collection) {
+            final List<String> out = new ArrayList<String>();
+            for (Object item : (Collection) value) {
+                out.add(String.valueOf(item));
+            }
+            return out.toArray(new String[out.size()]);
+        }
+        return new String[]{String.valueOf(value)};
+    }
+
+    /**
+     * A call in a batch request
+     */
+    public static class Call {
+        private String method;
+        private String path;
+        private Map<String, Object> params;
+        private SharkNode body;
+
+        public String getMethod() {
+            return method;
+        }
+
+        public void setMethod(String method) {
+            this.method = method;
+        }
+
+        /**
+         * Path relative to the REST handler - may include a query string
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        public Map<String, Object> getParams() {
+            return params;
+        }
+
+        public void setParams(Map<String, Object> params) {
+            this.params = params;
+        }
+
+        public SharkNode getBody() {
+            return body;
+        }
+
+        public void setBody(SharkNode body) {
+            this.body = body;
+        }
+    }
+
+    /**
+     * Request of a single call. Takes method, parameters and body from the call - everything else from the batch
+     * request. Conditional headers are ignored since they apply to the batch response.
+     */
+    private static final class BatchedRequest extends HttpServletRequestWrapper {
+        private final String method;
+        private final String uri;
+        private final Map<String, String[]> parms;
+        private final byte[] body;
+
+        private BatchedRequest(HttpServletRequest request, String method, String uri, Map<String, String[]> parms, byte[] body) {
+            super(request);
+            this.method = method;
+            this.uri = uri;
+            this.parms = parms;
+            this.body = body;
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public String getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getQueryString() {
+            return null;
+        }
+
+        @Override
+        public String getParameter(String name) {
+            final String[] values = parms.get(name);
+            return values != null && values.length > 0 ? values[0] : null;
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return Collections.unmodifiableMap(parms);
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(parms.keySet());
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return parms.get(name);
+        }
+
+        @Override
+        public String getContentType() {
+            return body != null ? JSON : null;
+        }
+
+        @Override
+        public int getContentLength() {
+            return body != null ? body.length : 0;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return getContentLength();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if ("Content-Type".equalsIgnoreCase(name)) {
+                return getContentType();
+            }
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                return String.valueOf(getContentLength());
+            }
+            if (name.toLowerCase().startsWith("if-")) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public long getDateHeader(String name) {
+            if (name.toLowerCase().startsWith("if-")) {
+                return -1;
+            }
+            return super.getDateHeader(name);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            final ByteArrayInputStream in = new ByteArrayInputStream(body != null ? body : new byte[0]);
+            return new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    //The body is in memory - all of it can be read right away
+                    try {
+                        if (in.available() > 0) {
+                            readListener.onDataAvailable();
+                        }
+                        readListener.onAllDataRead();
+                    } catch (IOException ex) {
+                        readListener.onError(ex);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            return new BufferedReader(new InputStreamReader(getInputStream(), "UTF-8"));
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Response of a single call - kept in memory until it is written to the batch response
+     */
+    private static final class BufferedResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private int status = 200;
+        private PrintWriter writer;
+
+        private BufferedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        private byte[] getBody() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return body.toByteArray();
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            this.status = sc;
+        }
+
+        @Override
+        public void sendError(int sc) {
+            this.status = sc;
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            this.status = sc;
+            setContentType("text/plain");
+            body.write(msg.getBytes("UTF-8"));
+        }
+
+        @Override
+        public void sendRedirect(String location) {
+            this.status = 302;
+            setHeader("Location", location);
+        }
+
+        @Override
+        public String getContentType() {
+            return headers.get("Content-Type");
+        }
+
+        @Override
+        public void setContentType(String type) {
+            headers.put("Content-Type", type);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            headers.put(name, String.valueOf(date));
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            setDateHeader(name, date);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            headers.put(name, String.valueOf(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            setIntHeader(name, value);
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public Collection<String> getHeaderNames() {
+            return headers.keySet();
+        }
+
+        @Override
+        public void setContentLength(int len) {
+
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        @Override
+        public void flushBuffer() {
+
+        }
+
+        @Override
+        public void resetBuffer() {
+            body.reset();
+        }
+
+        @Override
+        public void reset() {
+            body.reset();
+            headers.clear();
+            status = 200;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    body.write(b, off, len);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    //Writes go to memory - it is always possible to write
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException ex) {
+                        writeListener.onError(ex);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(body, "UTF-8"));
+            }
+            return writer;
+        }
+    }
+}
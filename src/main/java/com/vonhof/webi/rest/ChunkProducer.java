@@ -0,0 +1,24 @@
+package com.vonhof.webi.rest;
+
+import java.io.IOException;
+
+/**
+ * Controller return value that produces its output in chunks. Each chunk is serialized and sent to the client as it
+ * is written - so results never have to be held in memory in full.
+ *
+ * JSON responses are written as an array of chunks, NDJSON responses as one chunk per line.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface ChunkProducer<T> {
+
+    /**
+     * Write all chunks to the writer. Called after the controller method has returned.
+     * @param writer
+     * @throws Exception
+     */
+    public void produce(Writer<T> writer) throws Exception;
+
+    public static interface Writer<T> {
+        public void write(T chunk) throws IOException;
+    }
+}
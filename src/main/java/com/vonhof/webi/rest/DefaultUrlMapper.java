@@ -26,20 +26,59 @@ public class DefaultUrlMapper implements UrlMapper {
     private final Map<String, Object> controllers = new HashMap<String, Object>();
     private final Map<String,Map<String, EnumMap<HttpMethod,MethodInfo>>> actions = new HashMap<String, Map<String, EnumMap<HttpMethod, MethodInfo>>>();
 
+    /**
+     * Dispatch records by controller url and by "controller/action" url. Rebuilt on expose.
+     */
+    private final Map<String, Route> controllerRoutes = new HashMap<String, Route>();
+    private final Map<String, Route[]> actionRoutes = new HashMap<String, Route[]>();
+    private volatile RouteTable<Route> controllerTable = new RouteTable<Route>(controllerRoutes);
+    private volatile RouteTable<Route[]> actionTable = new RouteTable<Route[]>(actionRoutes);
+
+    private ActionInvoker.Factory invokerFactory = ActionInvoker.GENERATED;
+
+    /**
+     * Set how actions are invoked. Applies to controllers exposed after this is called.
+     * Defaults to ActionInvoker.GENERATED - use ActionInvoker.REFLECTION to invoke through java reflection.
+     * @param invokerFactory
+     */
+    public void setInvokerFactory(ActionInvoker.Factory invokerFactory) {
+        this.invokerFactory = invokerFactory;
+    }
+
+    public ActionInvoker.Factory getInvokerFactory() {
+        return invokerFactory;
+    }
+
     @Override
     public void expose(Object obj) {
         expose(obj, getObjectURL(obj));
     }
 
     @Override
-    public void expose(Object obj, String baseUrl) {
+    public synchronized void expose(Object obj, String baseUrl) {
         baseUrl = baseUrl.toLowerCase();
         controllers.put(baseUrl, obj);
         if (!actions.containsKey(baseUrl)) {
             actions.put(baseUrl, new HashMap<String, EnumMap<HttpMethod, MethodInfo>>());
         }
         Map<String, EnumMap<HttpMethod, MethodInfo>> ctrlActions = actions.get(baseUrl);
-        
+
+        final Route controllerRoute = Route.forController(obj, invokerFactory);
+        controllerRoutes.put(baseUrl, controllerRoute);
+
+        //Actions previously exposed at the same url are now invoked on this instance
+        for (Map.Entry<String, Route[]> entry : actionRoutes.entrySet()) {
+            if (!entry.getKey().startsWith(baseUrl + "/")) {
+                continue;
+            }
+            final Route[] routes = entry.getValue();
+            for (int i = 0; i < routes.length; i++) {
+                if (routes[i] != null) {
+                    routes[i] = controllerRoute.withAction(routes[i].getHttpMethod(), routes[i].getAction().getMethod());
+                }
+            }
+        }
+
         ClassInfo<?> classInfo = ClassInfo.from(obj.getClass());
         for (MethodInfo m : classInfo.getMethods()) {
             if (!m.isPublic() || m.hasAnnotation(Ignore.class) || m.hasAnnotation(Handler.class)) {
@@ -54,9 +93,19 @@ public class DefaultUrlMapper implements UrlMapper {
             }
             
             ctrlActions.get(url).put(httpMethod,m);
+
+            final String routeUrl = baseUrl + "/" + url;
+            if (!actionRoutes.containsKey(routeUrl)) {
+                actionRoutes.put(routeUrl, new Route[HttpMethod.values().length]);
+            }
+            actionRoutes.get(routeUrl)[httpMethod.ordinal()] = controllerRoute.withAction(httpMethod, m);
+
             log.info("Mapped {}/{} ({}) to {}:{}",baseUrl,url,httpMethod,
                     obj.getClass().getSimpleName(),m.getName());
         }
+
+        controllerTable = new RouteTable<Route>(controllerRoutes);
+        actionTable = new RouteTable<Route[]>(actionRoutes);
     }
 
     @Override
@@ -86,6 +135,24 @@ public class DefaultUrlMapper implements UrlMapper {
         return obj.getClass().getSimpleName().toLowerCase();
     }
 
+    @Override
+    public Route getRoute(String url, HttpMethod method) {
+        int end = url.length();
+        if (end > 0 && url.charAt(end - 1) == '/') {
+            end--;
+        }
+
+        final int firstSep = url.indexOf('/');
+        if (firstSep > 0 && firstSep < end) {
+            final Route[] routes = actionTable.get(url, 0, end);
+            if (routes != null && routes[method.ordinal()] != null) {
+                return routes[method.ordinal()];
+            }
+        }
+
+        return controllerTable.get(url, 0, firstSep > -1 ? firstSep : url.length());
+    }
+
     @Override
     public Object getObjectByURL(String url) {
         String[] parts = url.split("/");
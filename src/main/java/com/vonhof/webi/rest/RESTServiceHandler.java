@@ -1,7 +1,6 @@
 package com.vonhof.webi.rest;
 
 import com.vonhof.babelshark.*;
-import com.vonhof.babelshark.annotation.Ignore;
 import com.vonhof.babelshark.exception.MappingException;
 import com.vonhof.babelshark.node.ObjectNode;
 import com.vonhof.babelshark.node.SharkNode;
@@ -11,31 +10,37 @@ import com.vonhof.babelshark.reflect.ClassInfo;
 import com.vonhof.babelshark.reflect.MethodInfo;
 import com.vonhof.babelshark.reflect.MethodInfo.Parameter;
 import com.vonhof.webi.*;
-import com.vonhof.webi.WebiContext.ParmMap;
-import com.vonhof.webi.annotation.Body;
-import com.vonhof.webi.annotation.Handler;
-import com.vonhof.webi.annotation.Parm;
+import com.codahale.metrics.MetricRegistry;
+import com.vonhof.webi.annotation.Cached;
+import com.vonhof.webi.metrics.ActionMetrics;
+import com.vonhof.webi.metrics.EndpointMetrics;
+import com.vonhof.webi.trace.Trace;
 import com.vonhof.webi.bean.AfterAdd;
 import com.vonhof.webi.bean.AfterInit;
 import com.vonhof.webi.bean.BeanContext;
-import com.vonhof.webi.session.WebiSession;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
-import org.apache.commons.fileupload.FileItem;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * MVC request handling.
  * @author Henrik Hofmeister <@vonhofdk>
  */
-public class RESTServiceHandler implements RequestHandler, AfterAdd {
+public class RESTServiceHandler implements RequestHandler, AfterAdd, AfterInit {
+    private static final Logger log = LogManager.getLogger(RESTServiceHandler.class);
+
     public static final String DISABLE_METRICS = "DISABLE_METRICS";
+    public static final String NDJSON_MIME_TYPE = "application/x-ndjson";
+    private static final String NDJSON = "ndjson";
     
     @Inject
     protected Webi webi;
@@ -47,6 +52,9 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
     protected RESTListener listener;
     protected ExceptionHandler exceptionHandler = new DefaultExceptionHandler();
     protected List<String> okOrigins = new ArrayList<String>();
+    protected ResponseCache responseCache = new ResponseCache();
+    protected long asyncTimeout = 30000;
+    protected EndpointMetrics endpointMetrics = new EndpointMetrics();
 
     public RESTServiceHandler(UrlMapper urlMapper) {
         this.urlMapper = urlMapper;
@@ -85,6 +93,23 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
         okOrigins.add(host.toLowerCase());
     }
 
+    /**
+     * Cache of responses for actions annotated with Cached - shared by all REST service handlers in the bean context
+     * @return
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Latency metrics per action - registered when webi is initialized. Shared by all REST service handlers in the
+     * bean context.
+     * @return
+     */
+    public EndpointMetrics getEndpointMetrics() {
+        return endpointMetrics;
+    }
+
     public RESTListener getListener() {
         return listener;
     }
@@ -119,99 +144,408 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
             return;
         }
 
-        WebiContext.RequestLoadMetricEntry requestLoadMetrics = null;
-        if (ctxt.isLoadMetricsEnabled()) {
-            requestLoadMetrics = ctxt.startCall(String.format("REST: %s %s", ctxt.getMethod(), ctxt.getRequest().getRequestURI()), null);
+        if (webi != null && ctxt.getRequest().getAttribute(DISABLE_METRICS) == null) {
+            //Always traced if the client asked for metrics - otherwise only if sampled
+            ctxt.setTrace(webi.getTracer().begin(ctxt.isLoadMetricsEnabled()));
         }
 
+        final RequestState state = new RequestState();
+        boolean async = false;
+
         try {
+            final Route route = getRoute(ctxt);
+            final Route.Action action = route != null && route.hasAction() ? route.getAction() : null;
+            if (action != null) {
+                state.metrics = endpointMetrics.get(action);
+            }
+            state.span = ctxt.startSpan(action != null ? action.getName() : "REST");
+            state.cached = getCached(ctxt, route);
+            if (state.cached != null) {
+                state.cacheKey = responseCache.key(route, ctxt, state.cached);
+            }
+
             //Invoke REST method
-            output = invokeAction(ctxt);
+            output = invokeAction(ctxt, route, state);
+
+            if (output instanceof AsyncResult) {
+                if (ctxt.getRequest().isAsyncSupported()) {
+                    respondAsync(ctxt, (AsyncResult<?>) output, state);
+                    async = true;
+                } else {
+                    //E.g. calls in a batch request - wait on this thread
+                    output = awaitResult((AsyncResult<?>) output);
+                }
+            }
         } catch (Throwable ex) {
+            state.failed(ex);
             output = exceptionHandler.handle(ctxt,ex);
         } finally {
-            if (ctxt.getResponse().isCommitted() || ctxt.isHandled()) {
-                //Response is already send - exit
-                return;
+            if (!async) {
+                try {
+                    respond(ctxt, output, state);
+                } finally {
+                    finishTrace(ctxt);
+                }
             }
-            
-            ctxt.setHeader("Content-type", ctxt.getResponseType());
-            
-            final Output out = new Output(ctxt.getOutputStream(),ctxt.getOutputType());
+        }
+    }
 
-            if (ctxt.isLoadMetricsEnabled()) {
-                if (requestLoadMetrics != null) {
-                    ctxt.endCall(requestLoadMetrics);
-                }
+    /**
+     * Write output of action to response
+     * @param ctxt
+     * @param output
+     * @param state
+     * @throws IOException
+     */
+    private void respond(WebiContext ctxt, Object output, RequestState state) throws IOException {
+        ctxt.endSpan(state.span);
+
+        if (ctxt.getResponse().isCommitted() || ctxt.isHandled()) {
+            //Response is already send - exit
+            state.done();
+            return;
+        }
+
+        final long serializationStart = System.nanoTime();
+        ctxt.setHeader("Content-type", ctxt.getResponseType());
 
+        if (output instanceof ResponseCache.Entry) {
+            writeCached(ctxt, (ResponseCache.Entry) output);
+        } else if (state.cacheKey != null && !state.failed && !isStream(output) && ctxt.getResponse().getStatus() == 200) {
+            try {
+                writeCached(ctxt, responseCache.put(state.cacheKey, bs.writeToByteArray(output, ctxt.getOutputType()), state.cached));
+            } catch (MappingException ex) {
+                throw new IOException(ex);
+            }
+        } else {
+            if (ctxt.isLoadMetricsEnabled()) {
                 ctxt.setHeader("X-Wrapped-Metric", "true");
+                if (isStream(output)) {
+                    output = drain(output);
+                }
                 output = new LoadMetricWrappedOutput(output, ctxt.getLoadMetricEntries());
             }
-            
+
+            writeOutput(ctxt, output);
+        }
+
+        ctxt.flushBuffer();
+
+        if (state.metrics != null) {
+            state.metrics.serialization(System.nanoTime() - serializationStart);
+        }
+        state.done();
+    }
+
+    /**
+     * Suspend request until the result is done. The request thread is released - the response is written on a
+     * container thread with the thread local beans of the request bound once the result is done or the async timeout
+     * expires.
+     * @param ctxt
+     * @param result
+     * @param state
+     */
+    private void respondAsync(final WebiContext ctxt, final AsyncResult<?> result, final RequestState state) {
+        final AsyncContext async = ctxt.getRequest().startAsync();
+        async.setTimeout(asyncTimeout);
+
+        //Either the result or the timeout gets to write the response
+        final AtomicBoolean responded = new AtomicBoolean();
+        final AsyncFinish finish = new AsyncFinish(ctxt, async, state);
+        final Runnable boundFinish = webi != null ? webi.wrap(finish) : finish;
+
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (responded.compareAndSet(false, true)) {
+                    finish.error = new HttpException(HttpException.GATEWAY_TIMEOUT, "Timed out waiting for result");
+                    boundFinish.run();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                if (responded.compareAndSet(false, true)) {
+                    finish.error = event.getThrowable() != null ? event.getThrowable()
+                            : new HttpException(HttpException.INTERNAL_ERROR, "Async request failed");
+                    boundFinish.run();
+                }
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+
+            }
+        });
+
+        result.onDone(new AsyncResult.Callback<Object>() {
+            @Override
+            public void done(Object value, Throwable error) {
+                if (!responded.compareAndSet(false, true)) {
+                    return;
+                }
+                finish.value = value;
+                finish.error = error;
+                //AsyncContext.start needs a servlet context - use the server thread pool directly
+                ctxt.getJettyRequest().getHttpChannel().getConnector().getExecutor().execute(boundFinish);
+            }
+        });
+    }
+
+    private Object awaitResult(AsyncResult<?> result) throws Exception {
+        if (!result.await(asyncTimeout)) {
+            throw new HttpException(HttpException.GATEWAY_TIMEOUT, "Timed out waiting for result");
+        }
+        final Throwable error = result.getError();
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        }
+        if (error != null) {
+            throw new HttpException(HttpException.INTERNAL_ERROR, error);
+        }
+        return result.getValue();
+    }
+
+    private void finishAsync(WebiContext ctxt, AsyncContext async, Object value, Throwable error, RequestState state) {
+        try {
+            Object output = value;
+            if (error != null) {
+                state.failed(error);
+                output = exceptionHandler.handle(ctxt, error);
+            }
+            respond(ctxt, output, state);
+        } catch (Throwable ex) {
+            log.error("Failed to write async response", ex);
+        } finally {
             try {
-                bs.write(out,output);
-            } catch (MappingException ex) {
-                throw new IOException(ex);
+                finishTrace(ctxt);
+            } finally {
+                async.complete();
             }
-            
-            ctxt.flushBuffer();
         }
     }
 
+    /**
+     * Writes the response of a suspended request once its outcome is known
+     */
+    private final class AsyncFinish implements Runnable {
+        private final WebiContext ctxt;
+        private final AsyncContext async;
+        private final RequestState state;
+        private volatile Object value;
+        private volatile Throwable error;
+
+        private AsyncFinish(WebiContext ctxt, AsyncContext async, RequestState state) {
+            this.ctxt = ctxt;
+            this.async = async;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            finishAsync(ctxt, async, value, error, state);
+        }
+    }
+
+    private void finishTrace(WebiContext ctxt) {
+        final Trace trace = ctxt.getTrace();
+        if (trace != null) {
+            ctxt.setTrace(null);
+            webi.getTracer().finish(trace);
+        }
+    }
+
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
 
     /**
-     * Invoke action based on path and http method
-     * @param req
-     * @return
-     * @throws HttpException 
+     * Milliseconds to wait for async results before responding with 504
+     * @param asyncTimeout
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * Write cached response - or 304 if the client already has it
+     * @param ctxt
+     * @param entry
+     * @throws IOException
      */
-    private Object invokeAction(WebiContext req) throws HttpException {
+    private void writeCached(WebiContext ctxt, ResponseCache.Entry entry) throws IOException {
+        ctxt.setHeader("ETag", entry.getETag());
+        ctxt.setHeader("Cache-Control", entry.getCacheControl());
+
+        if (entry.matches(ctxt.getHeader("If-None-Match"))) {
+            ctxt.setStatus(304);
+            return;
+        }
+
+        ctxt.getResponse().setContentLength(entry.getContent().length);
+        ctxt.getOutputStream().write(entry.getContent());
+    }
+
+    /**
+     * Get response cache settings for request
+     * @param ctxt
+     * @param route
+     * @return null if the response should not be cached
+     */
+    private Cached getCached(WebiContext ctxt, Route route) {
+        if (route == null || !route.hasAction() || route.getAction().getCached() == null) {
+            return null;
+        }
+        if (!HttpMethod.GET.equals(ctxt.getMethod()) || ctxt.isLoadMetricsEnabled()
+                || NDJSON_MIME_TYPE.equals(ctxt.getOutputType())) {
+            return null;
+        }
+        return route.getAction().getCached();
+    }
+
+    private Route getRoute(WebiContext req) {
         String path = req.getPath();
         if (!path.isEmpty())
             path = path.substring(1);
+        return urlMapper.getRoute(path, req.getMethod());
+    }
+
+    /**
+     * Write output to response. Streams (Iterator and ChunkProducer outputs) are written chunk by chunk for JSON and
+     * NDJSON responses - other formats need the complete value so streams are drained into a list first.
+     * @param ctxt
+     * @param output
+     * @throws IOException
+     */
+    private void writeOutput(WebiContext ctxt, Object output) throws IOException {
+        final String outputType = ctxt.getOutputType();
+        final boolean ndjson = NDJSON_MIME_TYPE.equals(outputType);
+
+        if (ndjson || (isStream(output) && outputType != null && outputType.contains("json"))) {
+            final JsonChunkWriter writer = new JsonChunkWriter(ctxt.getOutputStream(), ndjson);
+            writer.start();
+            produce(output, writer, ndjson);
+            writer.end();
+            return;
+        }
+
+        if (isStream(output)) {
+            output = drain(output);
+        }
+
+        try {
+            bs.write(new Output(ctxt.getOutputStream(), outputType), output);
+        } catch (MappingException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private boolean isStream(Object output) {
+        return output instanceof Iterator || output instanceof ChunkProducer;
+    }
+
+    private List<Object> drain(Object output) throws IOException {
+        final List<Object> out = new ArrayList<Object>();
+        produce(output, new ChunkProducer.Writer<Object>() {
+            @Override
+            public void write(Object chunk) {
+                out.add(chunk);
+            }
+        }, false);
+        return out;
+    }
+
+    /**
+     * Pass each chunk of the output to the writer. Closes the output afterwards if it is closeable (e.g. a cursor).
+     * @param output
+     * @param writer
+     * @param splitCollections also split collections into chunks - otherwise non-stream output is a single chunk
+     * @throws IOException
+     */
+    private void produce(Object output, ChunkProducer.Writer<Object> writer, boolean splitCollections) throws IOException {
+        try {
+            if (output instanceof ChunkProducer) {
+                ((ChunkProducer<Object>) output).produce(writer);
+            } else if (output instanceof Iterator) {
+                final Iterator<?> it = (Iterator<?>) output;
+                while (it.hasNext()) {
+                    writer.write(it.next());
+                }
+            } else if (splitCollections && output instanceof Iterable) {
+                for (Object chunk : (Iterable<?>) output) {
+                    writer.write(chunk);
+                }
+            } else {
+                writer.write(output);
+            }
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        } finally {
+            if (output instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) output).close();
+                } catch (Exception ex) {
+                    //Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Invoke action of route. Returns the cached response instead if there is one for the cache key - before request
+     * handlers are still invoked for cached responses so access checks apply.
+     * @param req
+     * @param route
+     * @param state cache key and metrics of the request
+     * @return
+     * @throws HttpException 
+     */
+    private Object invokeAction(WebiContext req, Route route, RequestState state) throws HttpException {
         long startTime = System.currentTimeMillis();
         boolean success = false;
         ClassInfo targetClass = null;
         MethodInfo targetMethod = null;
         try {
             
-            //Get controller instance
-            Object obj = urlMapper.getObjectByURL(path);
-            if (obj == null) {
+            if (route == null) {
                 throw new HttpException(HttpException.NOT_FOUND, "Not found");
             }
 
-            final ClassInfo<?> info = ClassInfo.from(obj.getClass());
-            targetClass = info;
+            final Object obj = route.getController();
+            targetClass = route.getControllerClass();
 
-                    //Get handlers
-            List<MethodInfo> handlers = info.getMethodsByAnnotation(Handler.class);
-            
             //Invoke before request handlers
-            for(MethodInfo handler:handlers) {
-                Handler annotation = handler.getAnnotation(Handler.class);
-                if (annotation.value().equals(Handler.Type.BEFORE_REQUEST)) {
-                    invoke(obj, handler, req);
-                }
+            for(Route.Action handler:route.getBeforeHandlers()) {
+                invoke(obj, handler, req);
             }
             
-            //Get method
-            MethodInfo method = urlMapper.getMethodByURL(path, req.getMethod());
-            if (method == null) {
+            if (!route.hasAction()) {
                 throw new HttpException(HttpException.NOT_FOUND, "Not found");
             }
 
-            targetMethod = method;
+            if (state.cacheKey != null) {
+                final ResponseCache.Entry cachedResponse = responseCache.get(state.cacheKey);
+                if (cachedResponse != null) {
+                    success = true;
+                    return cachedResponse;
+                }
+            }
+
+            targetMethod = route.getAction().getMethod();
 
             //Invoke controller method
-            Object output =  invoke(obj, method, req);
+            Object output =  invoke(obj, route.getAction(), req, state.metrics);
             
             //Invoke after request handlers
-            for(MethodInfo handler:handlers) {
-                Handler annotation = handler.getAnnotation(Handler.class);
-                if (annotation.value().equals(Handler.Type.AFTER_REQUEST)) {
-                    invoke(obj, handler, req);
-                }
+            for(Route.Action handler:route.getAfterHandlers()) {
+                invoke(obj, handler, req);
             }
 
             success = true;
@@ -253,54 +587,78 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
             format = bs.getDefaultType();
         }
         //Set response type
+        if (NDJSON.equalsIgnoreCase(format)) {
+            ctxt.setResponseType(NDJSON_MIME_TYPE);
+            return;
+        }
         ctxt.setResponseType(bs.getMimeType(format,true));
     }
     
-    private Object invoke(Object obj,MethodInfo method,WebiContext req) throws Exception {
+    private Object invoke(Object obj,Route.Action action,WebiContext req) throws Exception {
+        return invoke(obj, action, req, null);
+    }
+
+    private Object invoke(Object obj,Route.Action action,WebiContext req,ActionMetrics metrics) throws Exception {
+        final long start = metrics != null ? System.nanoTime() : 0;
+
         //Resolve method argumetns from request
-        final Object[] callParms = getMethodArguments(req,method);
+        final Object[] callParms = getMethodArguments(req,action);
+
+        final long bound = metrics != null ? System.nanoTime() : 0;
 
         //Invoke method
-        Object output = method.invoke(obj, callParms);
+        Object output = action.getInvoker().invoke(obj, callParms);
+
+        if (metrics != null) {
+            metrics.binding(bound - start);
+            metrics.invocation(System.nanoTime() - bound);
+        }
 
         //Refine value before outputting
-        return refineValue(output,method.getReturnType());
+        return output != null ? output : action.getEmptyValue();
     }
 
     /**
-     * Converts HTTP request into a suitable argument list for the specified list of parameters 
+     * Converts HTTP request into a suitable argument list for the specified action
      * @param req
-     * @param method
+     * @param action
      * @return
      * @throws Exception 
      */
-    private Object[] getMethodArguments(WebiContext req,MethodInfo method) throws Exception {
-        List<Parameter> parms = new ArrayList<Parameter>(method.getParameters().values());
-        final Object[] out = new Object[parms.size()];
+    private Object[] getMethodArguments(WebiContext req,Route.Action action) throws Exception {
+        final Route.Argument[] arguments = action.getArguments();
+        final Object[] out = new Object[arguments.length];
         
-        Map<Integer,Parameter> bodyParms = new HashMap<Integer,Parameter>();
-        for (int i = 0; i < parms.size(); i++) {
-            if (parms.get(i).hasAnnotation(Body.class)) {
-                bodyParms.put(i,parms.get(i));
-            } else {
-                out[i] = getMethodArgument(req, parms.get(i));
+        for (Route.Argument argument : arguments) {
+            if (argument.getSource() != Route.Argument.Source.BODY) {
+                out[argument.getIndex()] = getMethodArgument(req, argument);
             }
         }
-        if (!bodyParms.isEmpty()) {
+        if (action.getBodyArguments() == 1) {
+            //Single body argument is read straight from the input stream
+            for (Route.Argument argument : arguments) {
+                if (argument.getSource() == Route.Argument.Source.BODY) {
+                    try {
+                        out[argument.getIndex()] = readBody(req, argument.getParameter().getClassInfo());
+                    } catch (MappingException e) {
+                        throw new HttpException(HttpException.BAD_REQUEST, e);
+                    }
+                    break;
+                }
+            }
+        } else if (action.getBodyArguments() > 1) {
             SharkNode body = readBody(req);
             try {
-                if (bodyParms.size() == 1) {
-                    Entry<Integer, Parameter> entry = bodyParms.entrySet().iterator().next();
-                    out[entry.getKey()] = body != null ? bs.read(body, entry.getValue().getClassInfo()) : null;
-                } else if (body.is(NodeType.MAP)) {
-                    ObjectNode obj = (ObjectNode) body;
-                    for (Entry<Integer, Parameter> entry : bodyParms.entrySet()) {
-                        final String name = entry.getValue().getName();
-                        SharkNode val = obj.get(name);
+                for (Route.Argument argument : arguments) {
+                    if (argument.getSource() != Route.Argument.Source.BODY) {
+                        continue;
+                    }
+                    if (body != null && body.is(NodeType.MAP)) {
+                        SharkNode val = ((ObjectNode) body).get(argument.getName());
                         if (val == null) {
-                            out[entry.getKey()] = null;
+                            out[argument.getIndex()] = null;
                         } else {
-                            out[entry.getKey()] = bs.read(val, entry.getValue().getClassInfo());
+                            out[argument.getIndex()] = bs.read(val, argument.getParameter().getClassInfo());
                         }
                     }
                 }
@@ -312,122 +670,81 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
     }
     
     /**
-     * Converts HTTP request into the specified method argument (Parameter) (From headers, GET parms etc.)
+     * Converts HTTP request into the specified method argument (From headers, GET parms etc.)
      * @param req
-     * @param p
+     * @param argument
      * @return
      * @throws Exception 
      */
-    private Object getMethodArgument(WebiContext req,Parameter p) throws Exception {
-        if (p.hasAnnotation(Ignore.class)) {
-            return null;
-        }
-        final Parm parmAnno = p.getAnnotation(Parm.class);
-        final Parm.Type parmType = parmAnno != null ? parmAnno.type() : Parm.Type.AUTO;
-        final String[] defaultValue = parmAnno != null ? parmAnno.defaultValue() : new String[0];
-        final boolean required  = parmAnno != null ? parmAnno.required() : false; 
+    private Object getMethodArgument(WebiContext req,Route.Argument argument) throws Exception {
+        final Class type = argument.getType();
+        final String name = argument.getName();
 
         Object value = null;
-        String name = p.getName();
         
-        switch (parmType) {
+        switch (argument.getSource()) {
+            case IGNORED:
+                return null;
             case PATH:
                 break;
             case HEADER:
                 String headerValue = req.getHeader(name);
-                if (ReflectUtils.isSimple(p.getType())) {
-                    value = ConvertUtils.convert(headerValue, p.getType());
+                if (argument.isSimple()) {
+                    value = ConvertUtils.convert(headerValue, type);
                 } else {
                     value = headerValue;
                 }
                 break;
             case INJECT:
-                value = webi.getBean(p.getType());
+                value = webi.getBean(type);
                 break;
             case SESSION:
                 value = req.getSession().get(name);
-                if (!ClassInfo.isAssignableFrom(value.getClass(), p.getType())) {
-                    value = req.getSession().get(p.getType().getName());
+                if (!ClassInfo.isAssignableFrom(value.getClass(), type)) {
+                    value = req.getSession().get(type.getName());
                 }
                 
+                break;
+            case INPUT_STREAM:
+                value = req.getInputStream();
+                break;
+            case OUTPUT_STREAM:
+                value = req.getOutputStream();
+                break;
+            case CONTEXT:
+                value = req;
+                break;
+            case UPLOAD:
+                value = req.getUpload(name);
+                break;
+            case TEXT_FILE:
+                value = new TextFile(req.getUpload(name));
+                break;
+            case WEBI_SESSION:
+                value = req.getSession();
+                break;
+            case PARAMETER_MAP:
+                value = req.getParameterMap();
                 break;
             default:
-                if (p.hasAnnotation(Body.class)) {
-                    //Is handled outside this method while there could be more than 1
-                    return null;
-                }
-                if (ClassInfo.inherits(p.getType(), InputStream.class)) {
-                    value = req.getInputStream();
-                    break;
-                }
-                if (ClassInfo.inherits(p.getType(), OutputStream.class)) {
-                    value = req.getOutputStream();
-                    break;
-                }
-                if (ClassInfo.inherits(p.getType(), WebiContext.class)) {
-                    value = req;
-                    break;
-                }
-                
-                if (ClassInfo.inherits(p.getType(), FileItem.class)) {
-                    value = req.getUpload(name);
-                    break;
-                }
-                
-                if (ClassInfo.inherits(p.getType(), TextFile.class)) {
-                    value = new TextFile(req.getUpload(name));
-                    break;
-                }
-                
-                if (ClassInfo.inherits(p.getType(), WebiSession.class)) {
-                    value = req.getSession();
-                    break;
-                }
-                
-                if (ClassInfo.inherits(p.getType(), ParmMap.class)) {
-                    value = req.getParameterMap();
-                    break;
-                }
-
                 String[] values = req.getParameterMap().getAll(name);
                 if (values == null) {
-                    values = defaultValue;
+                    values = argument.getDefaultValue();
                 }
 
-                value = readGETParm(p, values);
+                value = readGETParm(argument.getParameter(), values);
                 break;
         }
         
-        value = refineValue(value,p.getType());
+        if (value == null) {
+            value = argument.getEmptyValue();
+        }
         
-        if (required && isMissing(value))
-            throw new HttpException(HttpException.BAD_REQUEST,"Bad request - missing required parameter: "+p.getName());
+        if (argument.isRequired() && isMissing(value))
+            throw new HttpException(HttpException.BAD_REQUEST,"Bad request - missing required parameter: "+name);
         
         return value;
     }
-    /**
-     * Refine output value
-     * @param value
-     * @param type
-     * @return
-     */
-    private Object refineValue(Object value, Class type) {
-        if (value != null) 
-            return value;
-        //Make sure certain values never is null
-        if (ClassInfo.isString(type))
-            return "";
-        if (type.isArray())
-            return Array.newInstance(type.getComponentType(), 0);
-        if (ClassInfo.inherits(type, Set.class))
-            return Collections.EMPTY_SET;
-        if (ClassInfo.inherits(type, Map.class))
-            return Collections.EMPTY_MAP;
-        if (ClassInfo.inherits(type, Collection.class))
-            return Collections.EMPTY_LIST;
-        return value;
-    }
-    
     /**
      * Determine if parameter value is missing
      * @param value
@@ -468,6 +785,20 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
         return bs.read(new Input(req.getInputStream(), req.getRequestType()), SharkNode.class);
     }
 
+    /**
+     * Read body from request directly into the given type - without building an intermediate node tree.
+     * @param req
+     * @param type
+     * @return the value or null if the request has no body
+     * @throws Exception
+     */
+    protected Object readBody(WebiContext req, ClassInfo type) throws Exception {
+        if (req.getRequestType() == null || req.getRequest().getContentLength() == 0) {
+            return null;
+        }
+        return bs.read(new Input(req.getInputStream(), req.getRequestType()), type);
+    }
+
     /**
      * Read GET parameter into method parameter
      * @param p
@@ -482,11 +813,109 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
     @Override
     public void afterAdd(BeanContext context) {
         context.add(UrlMapper.class, urlMapper);
+
+        //Beans are bound by class - so all handlers share them and controllers injecting them see every handler
+        final ResponseCache sharedCache = context.getOriginal(ResponseCache.class);
+        if (sharedCache != null) {
+            responseCache = sharedCache;
+        } else {
+            context.add(ResponseCache.class, responseCache);
+        }
+        final EndpointMetrics sharedMetrics = context.getOriginal(EndpointMetrics.class);
+        if (sharedMetrics != null) {
+            endpointMetrics = sharedMetrics;
+        } else {
+            context.add(EndpointMetrics.class, endpointMetrics);
+        }
         for(Object controller : urlMapper.getControllers()) {
             context.add(controller);
         }
     }
 
+    /**
+     * Writes chunks as a JSON array or as NDJSON. Chunks are serialized one at a time and written to the response
+     * stream which flushes to the client whenever its buffer is full - so memory use is bounded by the largest chunk.
+     */
+    private final class JsonChunkWriter implements ChunkProducer.Writer<Object> {
+        private final OutputStream out;
+        private final boolean ndjson;
+        private boolean first = true;
+
+        private JsonChunkWriter(OutputStream out, boolean ndjson) {
+            this.out = out;
+            this.ndjson = ndjson;
+        }
+
+        private void start() throws IOException {
+            if (!ndjson) {
+                out.write('[');
+            }
+        }
+
+        @Override
+        public void write(Object chunk) throws IOException {
+            final byte[] bytes;
+            try {
+                bytes = bs.writeToByteArray(chunk, "json");
+            } catch (MappingException ex) {
+                throw new IOException(ex);
+            }
+
+            if (ndjson) {
+                out.write(bytes);
+                out.write('\n');
+            } else {
+                if (!first) {
+                    out.write(',');
+                }
+                out.write(bytes);
+            }
+            first = false;
+        }
+
+        private void end() throws IOException {
+            if (!ndjson) {
+                out.write(']');
+            }
+        }
+    }
+
+    @Override
+    public void afterInit() {
+        if (webi != null && webi.getMetricRegistry() != null) {
+            responseCache.setMetricRegistry(webi.getMetricRegistry());
+            endpointMetrics.init(webi.getMetricRegistry(), urlMapper);
+        } else {
+            //Still measure actions so they can be read from the metrics endpoint
+            endpointMetrics.init(new MetricRegistry(), urlMapper);
+        }
+    }
+
+    /**
+     * Per request state passed from invocation to writing the response
+     */
+    private static final class RequestState {
+        private final long startedAt = System.nanoTime();
+        private int span = -1;
+        private Cached cached;
+        private String cacheKey;
+        private ActionMetrics metrics;
+        private boolean failed;
+
+        private void failed(Throwable error) {
+            failed = true;
+            if (metrics != null) {
+                metrics.error(error);
+            }
+        }
+
+        private void done() {
+            if (metrics != null) {
+                metrics.total(System.nanoTime() - startedAt);
+            }
+        }
+    }
+
     public static class LoadMetricWrappedOutput {
         private final Object output;
 
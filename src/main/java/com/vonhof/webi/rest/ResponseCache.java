@@ -0,0 +1,249 @@
+package com.vonhof.webi.rest;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.vonhof.webi.WebiContext;
+import com.vonhof.webi.annotation.Cached;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of serialized responses for actions annotated with Cached. Entries expire after their TTL, can be invalidated
+ * by tag and the least recently used entries are evicted when the cache grows beyond its max size.
+ *
+ * Controllers can inject the cache to invalidate responses when the underlying data changes.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class ResponseCache {
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final Map<String, Set<String>> tags = new HashMap<String, Set<String>>();
+    private long size = 0;
+
+    private long maxSize = 16 * 1024 * 1024;
+
+    private Meter hits = new Meter();
+    private Meter misses = new Meter();
+    private Meter evictions = new Meter();
+
+    /**
+     * Register hit, miss and eviction meters
+     * @param registry
+     */
+    public void setMetricRegistry(MetricRegistry registry) {
+        hits = registry.meter("webi.cache.hits");
+        misses = registry.meter("webi.cache.misses");
+        evictions = registry.meter("webi.cache.evictions");
+    }
+
+    /**
+     * Make cache key for request. The base path is included since the cache is shared by all REST service handlers.
+     * Parameters are sorted by name so their order does not matter. Parameter and header
+     * values are url encoded so they can not be made to look like other parameters.
+     *
+     * Responses that are not shared are private to the user - keyed on the authenticated principal or the session.
+     * @param route
+     * @param ctxt
+     * @param cached
+     * @return null if the response is private but the user can not be identified - it must not be cached
+     */
+    public String key(Route route, WebiContext ctxt, Cached cached) {
+        String user = null;
+        if (!cached.shared()) {
+            final Principal principal = ctxt.getRequest().getUserPrincipal();
+            if (principal != null) {
+                user = "principal:" + principal.getName();
+            } else if (ctxt.getSession() != null && ctxt.getSession().getId() != null) {
+                user = "session:" + ctxt.getSession().getId();
+            } else {
+                return null;
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(route.getController().getClass().getName())
+                .append('#').append(route.getAction().getMethod().getName())
+                .append(' ').append(ctxt.getBase()).append(ctxt.getPath())
+                .append(' ').append(ctxt.getOutputType());
+
+        final Map<String, String[]> parms = ctxt.getRequest().getParameterMap();
+        final String[] names = parms.keySet().toArray(new String[parms.size()]);
+        Arrays.sort(names);
+        for (String name : names) {
+            sb.append('&').append(encode(name));
+            for (String value : parms.get(name)) {
+                sb.append('=').append(encode(value));
+            }
+        }
+
+        for (String header : cached.headers()) {
+            sb.append('\n').append(header).append(':').append(encode(ctxt.getHeader(header)));
+        }
+
+        if (user != null) {
+            sb.append('\n').append(user);
+        }
+        return sb.toString();
+    }
+
+    private static String encode(String value) {
+        if (value == null) {
+            return "null";
+        }
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Get cached response
+     * @param key
+     * @return the entry or null if it is not cached or has expired
+     */
+    public synchronized Entry get(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.mark();
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            remove(key);
+            evictions.mark();
+            misses.mark();
+            return null;
+        }
+        hits.mark();
+        return entry;
+    }
+
+    public synchronized Entry put(String key, byte[] content, Cached cached) {
+        final Entry entry = new Entry(content, cached.tags(), cached.shared(),
+                System.currentTimeMillis() + cached.ttl() * 1000L);
+        remove(key);
+        entries.put(key, entry);
+        size += content.length;
+        for (String tag : entry.tags) {
+            Set<String> keys = tags.get(tag);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                tags.put(tag, keys);
+            }
+            keys.add(key);
+        }
+        evict();
+        return entry;
+    }
+
+    /**
+     * Remove all responses with the given tag
+     * @param tag
+     */
+    public synchronized void invalidate(String tag) {
+        final Set<String> keys = tags.remove(tag);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys.toArray(new String[keys.size()])) {
+            remove(key);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        tags.clear();
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        final Entry old = entries.remove(key);
+        if (old == null) {
+            return;
+        }
+        size -= old.content.length;
+        for (String tag : old.tags) {
+            final Set<String> keys = tags.get(tag);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    tags.remove(tag);
+                }
+            }
+        }
+    }
+
+    private void evict() {
+        while (size > maxSize && !entries.isEmpty()) {
+            remove(entries.keySet().iterator().next());
+            evictions.mark();
+        }
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Max amount of bytes cached
+     * @param maxSize
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public static final class Entry {
+        private final byte[] content;
+        private final String[] tags;
+        private final boolean shared;
+        private final long expiresAt;
+        private final String etag;
+
+        private Entry(byte[] content, String[] tags, boolean shared, long expiresAt) {
+            this.content = content;
+            this.tags = tags;
+            this.shared = shared;
+            this.expiresAt = expiresAt;
+            this.etag = '"' + DigestUtils.md5Hex(content) + '"';
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getCacheControl() {
+            final long maxAge = Math.max(0, (expiresAt - System.currentTimeMillis()) / 1000);
+            return (shared ? "public" : "private") + ", max-age=" + maxAge;
+        }
+
+        /**
+         * Check if the client already has this response
+         * @param ifNoneMatch value of the If-None-Match header
+         * @return
+         */
+        public boolean matches(String ifNoneMatch) {
+            return ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"));
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
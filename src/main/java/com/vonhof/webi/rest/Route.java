@@ -0,0 +1,379 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.babelshark.ReflectUtils;
+import com.vonhof.babelshark.annotation.Ignore;
+import com.vonhof.babelshark.reflect.ClassInfo;
+import com.vonhof.babelshark.reflect.MethodInfo;
+import com.vonhof.babelshark.reflect.MethodInfo.Parameter;
+import com.vonhof.webi.HttpMethod;
+import com.vonhof.webi.WebiContext;
+import com.vonhof.webi.WebiContext.ParmMap;
+import com.vonhof.webi.annotation.Body;
+import com.vonhof.webi.annotation.Cached;
+import com.vonhof.webi.annotation.Handler;
+import com.vonhof.webi.annotation.Parm;
+import com.vonhof.webi.session.WebiSession;
+import org.apache.commons.fileupload.FileItem;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable dispatch record for a controller action. Everything the REST handler needs to know about the controller,
+ * the action and its arguments is resolved when the controller is exposed - so no reflection metadata is queried
+ * while handling requests.
+ *
+ * A route without an action represents a controller that was found for a path where no action was - before request
+ * handlers still run for those.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class Route {
+    private final Object controller;
+    private final ClassInfo<?> controllerClass;
+    private final HttpMethod httpMethod;
+    private final Action action;
+    private final Action[] beforeHandlers;
+    private final Action[] afterHandlers;
+    private final ActionInvoker.Factory invokerFactory;
+
+    public Route(Object controller, HttpMethod httpMethod, MethodInfo method) {
+        this(controller, httpMethod, method, ActionInvoker.GENERATED);
+    }
+
+    public Route(Object controller, HttpMethod httpMethod, MethodInfo method, ActionInvoker.Factory invokerFactory) {
+        this(controller, ClassInfo.from(controller.getClass()), httpMethod, method, invokerFactory);
+    }
+
+    private Route(Object controller, ClassInfo<?> controllerClass, HttpMethod httpMethod, MethodInfo method,
+                  ActionInvoker.Factory invokerFactory) {
+        this(controller, controllerClass, httpMethod,
+                method != null ? new Action(controller.getClass(), method, invokerFactory) : null,
+                getHandlers(controller.getClass(), controllerClass, Handler.Type.BEFORE_REQUEST, invokerFactory),
+                getHandlers(controller.getClass(), controllerClass, Handler.Type.AFTER_REQUEST, invokerFactory),
+                invokerFactory);
+    }
+
+    private Route(Object controller, ClassInfo<?> controllerClass, HttpMethod httpMethod,
+                  Action action, Action[] beforeHandlers, Action[] afterHandlers,
+                  ActionInvoker.Factory invokerFactory) {
+        this.controller = controller;
+        this.controllerClass = controllerClass;
+        this.httpMethod = httpMethod;
+        this.action = action;
+        this.beforeHandlers = beforeHandlers;
+        this.afterHandlers = afterHandlers;
+        this.invokerFactory = invokerFactory;
+    }
+
+    /**
+     * Make route for a controller without an action
+     * @param controller
+     * @param invokerFactory used to create invokers for the actions of this controller
+     * @return
+     */
+    public static Route forController(Object controller, ActionInvoker.Factory invokerFactory) {
+        return new Route(controller, null, null, invokerFactory);
+    }
+
+    /**
+     * Make route for another action on the same controller - reuses the resolved handlers
+     * @param httpMethod
+     * @param method
+     * @return
+     */
+    public Route withAction(HttpMethod httpMethod, MethodInfo method) {
+        return new Route(controller, controllerClass, httpMethod,
+                new Action(controller.getClass(), method, invokerFactory),
+                beforeHandlers, afterHandlers, invokerFactory);
+    }
+
+    public Object getController() {
+        return controller;
+    }
+
+    public ClassInfo<?> getControllerClass() {
+        return controllerClass;
+    }
+
+    public HttpMethod getHttpMethod() {
+        return httpMethod;
+    }
+
+    public boolean hasAction() {
+        return action != null;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public Action[] getBeforeHandlers() {
+        return beforeHandlers;
+    }
+
+    public Action[] getAfterHandlers() {
+        return afterHandlers;
+    }
+
+    private static Action[] getHandlers(Class<?> type, ClassInfo<?> classInfo, Handler.Type handlerType,
+                                        ActionInvoker.Factory invokerFactory) {
+        List<Action> out = new ArrayList<Action>();
+        for(MethodInfo handler:classInfo.getMethodsByAnnotation(Handler.class)) {
+            Handler annotation = handler.getAnnotation(Handler.class);
+            if (annotation.value().equals(handlerType)) {
+                out.add(new Action(type, handler, invokerFactory));
+            }
+        }
+        return out.toArray(new Action[out.size()]);
+    }
+
+    /**
+     * Get the value used instead of null for the type. Strings, arrays and collections are never null.
+     * @param type
+     * @return
+     */
+    static Object emptyValueOf(Class type) {
+        if (ClassInfo.isString(type))
+            return "";
+        if (type.isArray())
+            return Array.newInstance(type.getComponentType(), 0);
+        if (ClassInfo.inherits(type, Set.class))
+            return Collections.EMPTY_SET;
+        if (ClassInfo.inherits(type, Map.class))
+            return Collections.EMPTY_MAP;
+        if (ClassInfo.inherits(type, Collection.class))
+            return Collections.EMPTY_LIST;
+        return null;
+    }
+
+    /**
+     * A method that can be invoked on the controller and its argument binding plan
+     */
+    public static final class Action {
+        private final MethodInfo method;
+        private final String name;
+        private final ActionInvoker invoker;
+        private final Class returnType;
+        private final Object emptyValue;
+        private final Argument[] arguments;
+        private final int bodyArguments;
+        private final Cached cached;
+
+        public Action(Class<?> controllerClass, MethodInfo method, ActionInvoker.Factory invokerFactory) {
+            this.method = method;
+            final String className = controllerClass.getSimpleName();
+            //Strip proxy class suffix
+            final int proxySuffix = className.indexOf("$$");
+            this.name = (proxySuffix > 0 ? className.substring(0, proxySuffix) : className) + "." + method.getName();
+            this.invoker = invokerFactory.create(controllerClass, method);
+            this.returnType = method.getReturnType();
+            this.emptyValue = emptyValueOf(returnType);
+
+            List<Argument> out = new ArrayList<Argument>();
+            int bodies = 0;
+            for(Parameter parameter:method.getParameters().values()) {
+                Argument argument = new Argument(out.size(), parameter);
+                if (argument.getSource() == Argument.Source.BODY) {
+                    bodies++;
+                }
+                out.add(argument);
+            }
+            this.arguments = out.toArray(new Argument[out.size()]);
+            this.bodyArguments = bodies;
+            this.cached = method.getAnnotation(Cached.class);
+        }
+
+        public MethodInfo getMethod() {
+            return method;
+        }
+
+        /**
+         * Name of the action in traces and metrics - controller class and method name
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+
+        public ActionInvoker getInvoker() {
+            return invoker;
+        }
+
+        public Class getReturnType() {
+            return returnType;
+        }
+
+        /**
+         * Value returned instead of null - see emptyValueOf
+         * @return
+         */
+        public Object getEmptyValue() {
+            return emptyValue;
+        }
+
+        public Argument[] getArguments() {
+            return arguments;
+        }
+
+        /**
+         * Amount of arguments read from the request body
+         * @return
+         */
+        public int getBodyArguments() {
+            return bodyArguments;
+        }
+
+        /**
+         * Response cache settings of the action
+         * @return null if responses should not be cached
+         */
+        public Cached getCached() {
+            return cached;
+        }
+    }
+
+    /**
+     * Describes where the value of a method argument comes from
+     */
+    public static final class Argument {
+        private final int index;
+        private final Parameter parameter;
+        private final String name;
+        private final Class type;
+        private final Object emptyValue;
+        private final Source source;
+        private final String[] defaultValue;
+        private final boolean required;
+        private final boolean simple;
+
+        public Argument(int index, Parameter parameter) {
+            this.index = index;
+            this.parameter = parameter;
+            this.name = parameter.getName();
+            this.type = parameter.getType();
+            this.emptyValue = emptyValueOf(type);
+
+            final Parm parmAnno = parameter.getAnnotation(Parm.class);
+            final Parm.Type parmType = parmAnno != null ? parmAnno.type() : Parm.Type.AUTO;
+            this.defaultValue = parmAnno != null ? parmAnno.defaultValue() : new String[0];
+            this.required = parmAnno != null ? parmAnno.required() : false;
+            this.simple = ReflectUtils.isSimple(type);
+            this.source = getSource(parameter, parmType);
+        }
+
+        private static Source getSource(Parameter p, Parm.Type parmType) {
+            if (p.hasAnnotation(Body.class)) {
+                return Source.BODY;
+            }
+            if (p.hasAnnotation(Ignore.class)) {
+                return Source.IGNORED;
+            }
+            switch (parmType) {
+                case PATH:
+                    return Source.PATH;
+                case HEADER:
+                    return Source.HEADER;
+                case INJECT:
+                    return Source.INJECT;
+                case SESSION:
+                    return Source.SESSION;
+            }
+
+            final Class type = p.getType();
+            if (ClassInfo.inherits(type, InputStream.class)) {
+                return Source.INPUT_STREAM;
+            }
+            if (ClassInfo.inherits(type, OutputStream.class)) {
+                return Source.OUTPUT_STREAM;
+            }
+            if (ClassInfo.inherits(type, WebiContext.class)) {
+                return Source.CONTEXT;
+            }
+            if (ClassInfo.inherits(type, FileItem.class)) {
+                return Source.UPLOAD;
+            }
+            if (ClassInfo.inherits(type, TextFile.class)) {
+                return Source.TEXT_FILE;
+            }
+            if (ClassInfo.inherits(type, WebiSession.class)) {
+                return Source.WEBI_SESSION;
+            }
+            if (ClassInfo.inherits(type, ParmMap.class)) {
+                return Source.PARAMETER_MAP;
+            }
+            return Source.PARAMETER;
+        }
+
+        /**
+         * Position in the argument list
+         * @return
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public Parameter getParameter() {
+            return parameter;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class getType() {
+            return type;
+        }
+
+        /**
+         * Value used instead of null - see emptyValueOf
+         * @return
+         */
+        public Object getEmptyValue() {
+            return emptyValue;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        public String[] getDefaultValue() {
+            return defaultValue;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        /**
+         * True if the type can be converted directly from a string
+         * @return
+         */
+        public boolean isSimple() {
+            return simple;
+        }
+
+        public static enum Source {
+            IGNORED,
+            PATH,
+            HEADER,
+            INJECT,
+            SESSION,
+            BODY,
+            INPUT_STREAM,
+            OUTPUT_STREAM,
+            CONTEXT,
+            UPLOAD,
+            TEXT_FILE,
+            WEBI_SESSION,
+            PARAMETER_MAP,
+            PARAMETER
+        }
+    }
+}
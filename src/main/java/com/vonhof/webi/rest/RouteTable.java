@@ -0,0 +1,62 @@
+package com.vonhof.webi.rest;
+
+import java.util.Map;
+
+/**
+ * Immutable open addressing hash table with case insensitive keys. Values are looked up directly from a region of
+ * the request path so no substrings or lower case copies are made while handling requests.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+final class RouteTable<V> {
+    private final String[] keys;
+    private final Object[] values;
+    private final int mask;
+
+    RouteTable(Map<String, V> entries) {
+        int capacity = 4;
+        while (capacity < entries.size() * 2) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+
+        for (Map.Entry<String, V> entry : entries.entrySet()) {
+            final String key = entry.getKey().toLowerCase();
+            int i = hash(key, 0, key.length()) & mask;
+            while (keys[i] != null && !keys[i].equals(key)) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = entry.getValue();
+        }
+    }
+
+    /**
+     * Get value for the part of the path between start and end - ignoring case
+     * @param path
+     * @param start
+     * @param end
+     * @return
+     */
+    V get(String path, int start, int end) {
+        final int length = end - start;
+        int i = hash(path, start, end) & mask;
+        String key;
+        while ((key = keys[i]) != null) {
+            if (key.length() == length && key.regionMatches(true, 0, path, start, length)) {
+                return (V) values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private static int hash(String str, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(str.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -36,6 +36,15 @@ public interface UrlMapper {
      * @return 
      */
     public Object getObjectByURL(String path);
+
+    /**
+     * Get dispatch record for path and http method. Returns a route without an action if only the controller
+     * could be found and null if neither could.
+     * @param path
+     * @param method
+     * @return
+     */
+    public Route getRoute(String path, HttpMethod method);
     
     /**
      * Get all registered paths and methods
@@ -16,6 +16,7 @@ import com.vonhof.webi.annotation.Body;
 import com.vonhof.webi.annotation.InternalMethod;
 import com.vonhof.webi.annotation.Parm;
 import com.vonhof.webi.annotation.Path;
+import com.vonhof.webi.metrics.EndpointMetrics;
 import com.vonhof.webi.session.WebiSession;
 
 import javax.inject.Inject;
@@ -40,6 +41,17 @@ public class WebiController {
     @Inject
     private UrlMapper urlMapper;
 
+    @Inject
+    private EndpointMetrics endpointMetrics;
+
+    /**
+     * Latency and error counts of all actions
+     * @return
+     */
+    public Map<String, Object> metrics() {
+        return endpointMetrics.snapshot();
+    }
+
     public ObjectNode service(WebiContext ctxt) {
         ObjectNode out = new ObjectNode();
         out.put("url",ctxt.getBase());
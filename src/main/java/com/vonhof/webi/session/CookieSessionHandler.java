@@ -1,21 +1,21 @@
 package com.vonhof.webi.session;
 
+import com.vonhof.webi.Webi;
 import com.vonhof.webi.WebiContext;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 import javax.servlet.http.Cookie;
 
-import org.apache.commons.codec.digest.DigestUtils;
-
 /**
  * Default implementation of a session handler. Uses cookies
  *
+ * Sessions expire when they have not been used for max age seconds. Session ids are random - ids sent by clients
+ * that do not belong to an existing session are replaced.
+ *
  * @author Henrik Hofmeister <@vonhofdk>
  */
-public class CookieSessionHandler<T extends WebiSession> implements SessionHandler {
-    private final Map<String, T> sessions = new HashMap<String, T>();
+public class CookieSessionHandler<T extends WebiSession> implements SessionHandler, Webi.ShutdownHandler {
+    private final SessionStore<T> sessions = new SessionStore<T>();
 
     private final String cookieName;
     private final String basePath;
@@ -53,9 +53,9 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
             for (Cookie c : cookies) {
                 String name = c.getName();
                 if (name.equalsIgnoreCase(cookieName)) {
-                    cookieValue = c.getValue();
-                    T session = sessions.get(cookieValue);
+                    T session = sessions.get(c.getValue());
                     if (session != null) {
+                        cookieValue = c.getValue();
                         out = session;
                     }
 
@@ -64,11 +64,10 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
             }
         }
 
-        if (cookieValue == null) {
-            cookieValue = DigestUtils.md5Hex(new Date().toString());
-        }
         if (out == null) {
+            cookieValue = sessions.newId();
             out = newSession(cookieValue);
+            out.setId(cookieValue);
             out.setMaxAge(maxAge);
             add(cookieValue, out);
         }
@@ -91,11 +90,33 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
     }
 
     public void add(String sessionKey, T session) {
-        sessions.put(sessionKey, session);
+        sessions.add(sessionKey, session);
     }
 
     public void remove(String sessionKey) {
         sessions.remove(sessionKey);
     }
 
+    /**
+     * Get session store - use to configure limits and persistence
+     * @return
+     */
+    public SessionStore<T> getSessionStore() {
+        return sessions;
+    }
+
+    /**
+     * Persist sessions so they survive restarts. Loads previously persisted sessions.
+     * @param persistence
+     * @throws IOException
+     */
+    public void setPersistence(SessionPersistence<T> persistence) throws IOException {
+        sessions.setPersistence(persistence);
+    }
+
+    @Override
+    public void onShutdown(boolean graceful) throws Exception {
+        sessions.close();
+    }
+
 }
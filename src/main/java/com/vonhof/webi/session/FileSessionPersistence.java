@@ -0,0 +1,114 @@
+package com.vonhof.webi.session;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores each session as a serialized file in a directory named after its (url encoded) key. Session values must be
+ * serializable.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class FileSessionPersistence<T extends WebiSession> implements SessionPersistence<T> {
+    private static final Logger log = LogManager.getLogger(FileSessionPersistence.class);
+
+    private static final String EXTENSION = ".session";
+
+    private final File dir;
+
+    public FileSessionPersistence(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public Map<String, T> load() throws IOException {
+        final Map<String, T> out = new HashMap<String, T>();
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return out;
+        }
+
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            final String key = URLDecoder.decode(name.substring(0, name.length() - EXTENSION.length()), "UTF-8");
+            try {
+                out.put(key, read(file));
+            } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+                //E.g. truncated files or sessions of classes that have changed - they can never be read
+                log.warn("Deleting unreadable session file {}: {}", file, ex.toString());
+                if (!file.delete()) {
+                    log.warn("Could not delete session file {}", file);
+                }
+            }
+        }
+        return out;
+    }
+
+    private T read(File file) throws IOException, ClassNotFoundException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final Object session = new ObjectInputStream(new BufferedInputStream(in)).readObject();
+            if (!(session instanceof WebiSession)) {
+                throw new InvalidObjectException("Not a session: " + file);
+            }
+            return (T) session;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void save(String key, T session) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create session dir: " + dir);
+        }
+
+        //Write to temp file first so a crash never leaves a partial session behind
+        final File file = getFile(key);
+        final File tmp = new File(dir, file.getName() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            synchronized (session) {
+                out.writeObject(session);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not write session file: " + file);
+            }
+        }
+    }
+
+    @Override
+    public void remove(String key) throws IOException {
+        final File file = getFile(key);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete session file: " + file);
+        }
+    }
+
+    private File getFile(String key) throws IOException {
+        return new File(dir, URLEncoder.encode(key, "UTF-8") + EXTENSION);
+    }
+}
@@ -0,0 +1,37 @@
+package com.vonhof.webi.session;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates unguessable session ids from a SecureRandom
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class SessionIdGenerator {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SecureRandom random = new SecureRandom();
+    private final int length;
+
+    public SessionIdGenerator() {
+        this(16);
+    }
+
+    /**
+     * @param length amount of random bytes in each id
+     */
+    public SessionIdGenerator(int length) {
+        this.length = length;
+    }
+
+    public String generate() {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+
+        final char[] out = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,24 @@
+package com.vonhof.webi.session;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Persists sessions of a SessionStore so they survive a restart. Sessions are saved periodically after they have been
+ * added or used and when the store is closed, and removed when they expire. Sessions are identified by their key in the
+ * store.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface SessionPersistence<T extends WebiSession> {
+
+    /**
+     * Load all persisted sessions
+     * @return sessions by key
+     * @throws IOException
+     */
+    public Map<String, T> load() throws IOException;
+
+    public void save(String key, T session) throws IOException;
+
+    public void remove(String key) throws IOException;
+}
@@ -0,0 +1,326 @@
+package com.vonhof.webi.session;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent session store. Sessions expire when they have not been used for their max age (or the idle timeout of
+ * the store if they have none).
+ *
+ * Expiry uses a timer wheel - each session sits in the bucket of the tick where it might expire. Using a session only
+ * updates its last access time - when its bucket comes up the session is either removed or moved to the bucket of its
+ * new expiry time. When the store is full the sessions closest to expiry are evicted.
+ *
+ * Sessions are marked dirty when added or used, and dirty sessions are saved to the persistence backend (if any) every
+ * persist interval and when the store is closed.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class SessionStore<T extends WebiSession> {
+    private static final Logger log = LogManager.getLogger(SessionStore.class);
+
+    private static final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread out = new Thread(runnable, "webi-sessions");
+            out.setDaemon(true);
+            return out;
+        }
+    });
+
+    private final ConcurrentHashMap<String, Entry<T>> sessions = new ConcurrentHashMap<String, Entry<T>>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final SessionIdGenerator idGenerator = new SessionIdGenerator();
+
+    private final long tickMs;
+    private final ConcurrentLinkedQueue<Entry<T>>[] wheel;
+    private volatile long currentTick;
+    private final ScheduledFuture<?> expiry;
+
+    private int maxSessions = 100000;
+    private long idleTimeout = 3600000;
+    private long persistInterval = 10000;
+    private volatile long lastPersist = System.currentTimeMillis();
+    private volatile SessionPersistence<T> persistence;
+
+    public SessionStore() {
+        this(1000, 512);
+    }
+
+    /**
+     * @param tickMs precision of expiry
+     * @param wheelSize amount of buckets in the timer wheel. Sessions expiring further away than tickMs * wheelSize
+     *                  are checked once per revolution.
+     */
+    public SessionStore(long tickMs, int wheelSize) {
+        this.tickMs = tickMs;
+        this.wheel = new ConcurrentLinkedQueue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<Entry<T>>();
+        }
+        this.currentTick = System.currentTimeMillis() / tickMs;
+
+        this.expiry = timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                final long now = System.currentTimeMillis();
+                try {
+                    expire(now);
+                } catch (Throwable ex) {
+                    log.error("Failed to expire sessions", ex);
+                }
+                if (persistence != null && now - lastPersist >= persistInterval) {
+                    lastPersist = now;
+                    persist();
+                }
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make new unique session id
+     * @return
+     */
+    public String newId() {
+        return idGenerator.generate();
+    }
+
+    /**
+     * Get session and mark it as used
+     * @param id
+     * @return the session or null if it does not exist or has expired
+     */
+    public T get(String id) {
+        final Entry<T> entry = sessions.get(id);
+        if (entry == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        if (entry.isExpired(now)) {
+            remove(entry);
+            return null;
+        }
+        entry.lastAccess = now;
+        entry.dirty = true;
+        return entry.session;
+    }
+
+    public void add(String id, T session) {
+        put(id, session).dirty = true;
+    }
+
+    private Entry<T> put(String id, T session) {
+        final Entry<T> entry = new Entry<T>(id, session, session.getMaxAge() > 0 ? session.getMaxAge() * 1000L : idleTimeout);
+        final Entry<T> old = sessions.put(id, entry);
+        if (old != null) {
+            old.removed = true;
+        } else if (size.incrementAndGet() > maxSessions) {
+            evict();
+        }
+        schedule(entry);
+        return entry;
+    }
+
+    public void remove(String id) {
+        final Entry<T> entry = sessions.get(id);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Save all sessions that have been added or used since they were last saved
+     */
+    void persist() {
+        final SessionPersistence<T> persistence = this.persistence;
+        if (persistence == null) {
+            return;
+        }
+        for (Entry<T> entry : sessions.values()) {
+            if (!entry.dirty) {
+                continue;
+            }
+            //Clear before saving so a session used while it is being saved is saved again next time
+            entry.dirty = false;
+            try {
+                persistence.save(entry.id, entry.session);
+                if (entry.removed) {
+                    //Removed while saving - do not leave it behind
+                    persistence.remove(entry.id);
+                }
+            } catch (IOException ex) {
+                entry.dirty = true;
+                log.warn("Failed to persist session", ex);
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private void remove(Entry<T> entry) {
+        if (!sessions.remove(entry.id, entry)) {
+            return;
+        }
+        entry.removed = true;
+        size.decrementAndGet();
+
+        if (persistence != null) {
+            try {
+                persistence.remove(entry.id);
+            } catch (IOException ex) {
+                log.warn("Failed to remove persisted session", ex);
+            }
+        }
+    }
+
+    private void schedule(Entry<T> entry) {
+        //Never schedule into the bucket currently being expired - it would be checked again right away
+        final long tick = Math.max(currentTick + 1, entry.getExpiresAt() / tickMs + 1);
+        wheel[(int) (tick % wheel.length)].add(entry);
+    }
+
+    /**
+     * Remove the sessions closest to expiry until the store is within its size limit
+     */
+    private void evict() {
+        final long tick = currentTick;
+        for (int i = 1; i <= wheel.length && size.get() > maxSessions; i++) {
+            final ConcurrentLinkedQueue<Entry<T>> bucket = wheel[(int) ((tick + i) % wheel.length)];
+            Entry<T> entry;
+            while (size.get() > maxSessions && (entry = bucket.poll()) != null) {
+                if (!entry.removed) {
+                    remove(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Advance wheel to the given time - expiring sessions in the passed buckets
+     * @param now
+     */
+    void expire(long now) {
+        final long targetTick = now / tickMs;
+        //Buckets are only visited once per revolution so there is no reason to visit more
+        final long fromTick = Math.max(currentTick + 1, targetTick - wheel.length + 1);
+
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            currentTick = tick;
+            final ConcurrentLinkedQueue<Entry<T>> bucket = wheel[(int) (tick % wheel.length)];
+            final int count = bucket.size();
+            for (int i = 0; i < count; i++) {
+                final Entry<T> entry = bucket.poll();
+                if (entry == null) {
+                    break;
+                }
+                if (entry.removed) {
+                    continue;
+                }
+                if (entry.isExpired(now)) {
+                    remove(entry);
+                } else {
+                    schedule(entry);
+                }
+            }
+        }
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Max amount of sessions in the store - when exceeded the sessions closest to expiry are evicted
+     * @param maxSessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Milliseconds a session without a max age can be idle before it expires
+     * @param idleTimeout
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getPersistInterval() {
+        return persistInterval;
+    }
+
+    /**
+     * Milliseconds between saving sessions that have been added or used to the persistence backend
+     * @param persistInterval
+     */
+    public void setPersistInterval(long persistInterval) {
+        this.persistInterval = persistInterval;
+    }
+
+    public SessionPersistence<T> getPersistence() {
+        return persistence;
+    }
+
+    /**
+     * Persist sessions using the given backend. Loads previously persisted sessions into the store.
+     * @param persistence
+     * @throws IOException
+     */
+    public void setPersistence(SessionPersistence<T> persistence) throws IOException {
+        this.persistence = null;
+        if (persistence != null) {
+            for (Map.Entry<String, T> session : persistence.load().entrySet()) {
+                put(session.getKey(), session.getValue());
+            }
+        }
+        this.persistence = persistence;
+    }
+
+    /**
+     * Stop expiring sessions and save unsaved sessions to the persistence backend
+     */
+    public void close() {
+        expiry.cancel(false);
+        persist();
+    }
+
+    private static final class Entry<T> {
+        private final String id;
+        private final T session;
+        private final long timeout;
+        private volatile long lastAccess;
+        private volatile boolean removed;
+        private volatile boolean dirty;
+
+        private Entry(String id, T session, long timeout) {
+            this.id = id;
+            this.session = session;
+            this.timeout = timeout;
+            this.lastAccess = System.currentTimeMillis();
+        }
+
+        private long getExpiresAt() {
+            return lastAccess + timeout;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= getExpiresAt();
+        }
+    }
+}
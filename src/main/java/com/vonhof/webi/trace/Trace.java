@@ -0,0 +1,158 @@
+package com.vonhof.webi.trace;
+
+import com.vonhof.babelshark.node.SharkNode;
+
+/**
+ * Timed spans of a single request. Spans are kept in preallocated arrays used as a ring buffer - recording a span
+ * allocates nothing and when more spans are recorded than fit the oldest are overwritten.
+ *
+ * Spans are identified by their sequence number in the trace and record their parent by sequence number - the parent
+ * of a span is the span that was open when it was started. A trace is only used by one thread at a time.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class Trace {
+    private final String[] names;
+    private final SharkNode[] details;
+    private final long[] starts;
+    private final long[] durations;
+    private final int[] parents;
+    private final int mask;
+
+    private int count;
+    private int current = -1;
+    private long startedAt;
+    private long startedAtNanos;
+
+    /**
+     * @param capacity max amount of spans kept - rounded up to a power of 2
+     */
+    public Trace(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        names = new String[size];
+        details = new SharkNode[size];
+        starts = new long[size];
+        durations = new long[size];
+        parents = new int[size];
+        mask = size - 1;
+        reset();
+    }
+
+    /**
+     * Start span as a child of the currently open span
+     * @param name
+     * @param detail optional details
+     * @return the span
+     */
+    public int start(String name, SharkNode detail) {
+        final int span = add(name, detail, System.nanoTime(), -1);
+        current = span;
+        return span;
+    }
+
+    /**
+     * End span. If it is the currently open span its parent becomes the open span again.
+     * @param span
+     */
+    public void end(int span) {
+        if (span < 0 || span >= count) {
+            return;
+        }
+        if (span >= getFirst()) {
+            final int slot = span & mask;
+            durations[slot] = System.nanoTime() - starts[slot];
+            if (current == span) {
+                current = parents[slot];
+            }
+        } else if (current == span) {
+            //Overwritten - parent is unknown
+            current = -1;
+        }
+    }
+
+    /**
+     * Add completed span as a child of the currently open span
+     * @param name
+     * @param durationNanos
+     * @param detail optional details
+     */
+    public void add(String name, long durationNanos, SharkNode detail) {
+        add(name, detail, System.nanoTime() - durationNanos, durationNanos);
+    }
+
+    private int add(String name, SharkNode detail, long start, long duration) {
+        final int span = count++;
+        final int slot = span & mask;
+        names[slot] = name;
+        details[slot] = detail;
+        starts[slot] = start;
+        durations[slot] = duration;
+        parents[slot] = current;
+        return span;
+    }
+
+    /**
+     * Clear trace so it can be reused
+     */
+    public void reset() {
+        final int size = Math.min(count, names.length);
+        for (int i = 0; i < size; i++) {
+            names[i] = null;
+            details[i] = null;
+        }
+        count = 0;
+        current = -1;
+        startedAt = System.currentTimeMillis();
+        startedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Sequence number of the oldest span still kept
+     * @return
+     */
+    public int getFirst() {
+        return Math.max(0, count - names.length);
+    }
+
+    /**
+     * Amount of spans recorded - including overwritten spans
+     * @return
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public String getName(int span) {
+        return names[span & mask];
+    }
+
+    public SharkNode getDetails(int span) {
+        return details[span & mask];
+    }
+
+    /**
+     * @param span
+     * @return parent span or -1 if the span has no parent
+     */
+    public int getParent(int span) {
+        return parents[span & mask];
+    }
+
+    /**
+     * @param span
+     * @return duration in nanoseconds or -1 if the span was not ended
+     */
+    public long getDurationNanos(int span) {
+        return durations[span & mask];
+    }
+
+    /**
+     * @param span
+     * @return wall clock time the span started in milliseconds
+     */
+    public long getStartedAt(int span) {
+        return startedAt + (starts[span & mask] - startedAtNanos) / 1000000;
+    }
+}
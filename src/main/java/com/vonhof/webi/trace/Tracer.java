@@ -0,0 +1,130 @@
+package com.vonhof.webi.trace;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts and finishes request traces. Requests are traced when the client asks for it or when sampled - finished
+ * traces update a timer per span name in the metric registry (webi.trace.[span name]) and are reused.
+ *
+ * Span names become metric names so they should not contain ids or other values that vary per request.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class Tracer {
+    private final MetricRegistry registry;
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final ArrayBlockingQueue<Trace> pool;
+
+    private volatile double sampleRate = 0;
+    private int capacity = 256;
+    private int maxSpanNames = 1000;
+
+    /**
+     * @param registry metric registry or null to not export spans
+     */
+    public Tracer(MetricRegistry registry) {
+        this(registry, 64);
+    }
+
+    /**
+     * @param registry metric registry or null to not export spans
+     * @param maxPooled max amount of unused traces kept for reuse
+     */
+    public Tracer(MetricRegistry registry, int maxPooled) {
+        this.registry = registry;
+        this.pool = new ArrayBlockingQueue<Trace>(maxPooled);
+    }
+
+    /**
+     * Start trace for request
+     * @param requested true if the client asked for the trace - it is then always traced
+     * @return trace or null if the request is not traced
+     */
+    public Trace begin(boolean requested) {
+        if (!requested && (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return null;
+        }
+        final Trace trace = pool.poll();
+        if (trace == null) {
+            return new Trace(capacity);
+        }
+        trace.reset();
+        return trace;
+    }
+
+    /**
+     * Export the spans of the trace to the metric registry and return the trace to the pool. The trace must not be used
+     * afterwards.
+     * @param trace
+     */
+    public void finish(Trace trace) {
+        if (registry != null) {
+            for (int span = trace.getFirst(); span < trace.getCount(); span++) {
+                final long duration = trace.getDurationNanos(span);
+                if (duration < 0) {
+                    continue;
+                }
+                final Timer timer = getTimer(trace.getName(span));
+                if (timer != null) {
+                    timer.update(duration, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        trace.reset();
+        pool.offer(trace);
+    }
+
+    private Timer getTimer(String name) {
+        if (name == null) {
+            return null;
+        }
+        Timer timer = timers.get(name);
+        if (timer == null && timers.size() < maxSpanNames) {
+            timer = registry.timer(MetricRegistry.name("webi.trace", name));
+            timers.putIfAbsent(name, timer);
+        }
+        return timer;
+    }
+
+    public double getSamplePercent() {
+        return sampleRate * 100;
+    }
+
+    /**
+     * Percentage of requests traced without the client asking for it
+     * @param percent 0 - 100
+     */
+    public void setSamplePercent(double percent) {
+        this.sampleRate = Math.max(0, Math.min(100, percent)) / 100;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Max amount of spans kept per trace - when exceeded the oldest spans are dropped
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        pool.clear();
+    }
+
+    public int getMaxSpanNames() {
+        return maxSpanNames;
+    }
+
+    /**
+     * Max amount of distinct span names exported to the metric registry
+     * @param maxSpanNames
+     */
+    public void setMaxSpanNames(int maxSpanNames) {
+        this.maxSpanNames = maxSpanNames;
+    }
+}
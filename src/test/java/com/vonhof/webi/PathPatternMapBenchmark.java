@@ -0,0 +1,93 @@
+package com.vonhof.webi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares PathPatternMap lookups with a linear scan over the same patterns. Run as a plain java program.
+ */
+public class PathPatternMapBenchmark {
+    private static final int LOOKUPS = 2000000;
+
+    public static void main(String[] args) {
+        for (int patterns : new int[]{10, 100, 1000}) {
+            run(patterns);
+        }
+    }
+
+    private static void run(int patternCount) {
+        final Random random = new Random(patternCount);
+        final PathPatternMap<String> map = new PathPatternMap<String>();
+        final Map<PathPattern, String> linear = new LinkedHashMap<PathPattern, String>();
+
+        for (int i = 0; i < patternCount; i++) {
+            String path = String.format("/%s/%s/", "module" + (i % 17), "service" + i);
+            map.put(path, path);
+            linear.put(new PathPattern(path), path);
+        }
+
+        final List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 1024; i++) {
+            int n = random.nextInt(patternCount);
+            paths.add(String.format("/module%s/service%s/action%s/", n % 17, n, i));
+        }
+
+        //Warm up
+        long sink = lookupTrie(map, paths, LOOKUPS) + lookupLinear(linear, paths, LOOKUPS / 10);
+
+        long start = System.nanoTime();
+        sink += lookupTrie(map, paths, LOOKUPS);
+        long trieNs = (System.nanoTime() - start) / LOOKUPS;
+
+        final int linearLookups = Math.max(1000, LOOKUPS / patternCount);
+        start = System.nanoTime();
+        sink += lookupLinear(linear, paths, linearLookups);
+        long linearNs = (System.nanoTime() - start) / linearLookups;
+
+        System.out.println(String.format("%5d patterns: trie %4d ns/lookup, linear scan %6d ns/lookup (%d)",
+                patternCount, trieNs, linearNs, sink % 10));
+    }
+
+    private static long lookupTrie(PathPatternMap<String> map, List<String> paths, int count) {
+        long found = 0;
+        for (int i = 0; i < count; i++) {
+            PathPatternMap.Match<String> match = map.match(paths.get(i & 1023));
+            if (match != null) {
+                found += match.getValues().size();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The algorithm PathPatternMap used before patterns were compiled
+     */
+    private static long lookupLinear(Map<PathPattern, String> map, List<String> paths, int count) {
+        long found = 0;
+        for (int i = 0; i < count; i++) {
+            String path = paths.get(i & 1023);
+            PathPattern best = null;
+            int longest = 0;
+            for (PathPattern key : map.keySet()) {
+                int length = key.toString().length();
+                if (key.matches(path) && longest < length) {
+                    best = key;
+                    longest = length;
+                }
+            }
+            List<String> all = new ArrayList<String>();
+            for (Map.Entry<PathPattern, String> entry : map.entrySet()) {
+                if (entry.getKey().matches(path)) {
+                    all.add(entry.getValue());
+                }
+            }
+            if (best != null) {
+                found += all.size();
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,69 @@
+package com.vonhof.webi;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+
+public class PathPatternMapTest {
+
+    @Test
+    public void finds_longest_matching_pattern() {
+        PathPatternMap<String> map = new PathPatternMap<String>();
+        map.put("/", "root");
+        map.put("/rest/", "rest");
+        map.put("/rest/admin/", "admin");
+        map.put("/restricted/", "restricted");
+
+        assertEquals("root", map.get("/index.html"));
+        assertEquals("rest", map.get("/rest/user/list"));
+        assertEquals("admin", map.get("/rest/admin/list"));
+        assertEquals("restricted", map.get("/restricted/file"));
+        assertEquals("root", map.get("/res"));
+        assertEquals("/rest/admin/", map.getPattern("/rest/admin/").toString());
+        assertNull(new PathPatternMap<String>().get("/rest/"));
+    }
+
+    @Test
+    public void returns_all_matches_in_insertion_order() {
+        PathPatternMap<String> map = new PathPatternMap<String>();
+        map.put("/rest/admin/", "admin");
+        map.put("/", "root");
+        map.put("/other/", "other");
+        map.put("/rest/", "rest");
+
+        assertEquals(Arrays.asList("admin", "root", "rest"), map.getAll("/rest/admin/users"));
+        assertEquals(Arrays.asList("root", "rest"), map.getAll("/rest/users"));
+        assertEquals(Collections.singletonList("root"), map.getAll("/"));
+        assertTrue(new PathPatternMap<String>().getAll("/").isEmpty());
+    }
+
+    @Test
+    public void replaces_existing_pattern_and_keeps_order() {
+        PathPatternMap<String> map = new PathPatternMap<String>();
+        map.put("/a/", "first");
+        map.put("/", "root");
+        map.put("/a/", "second");
+
+        assertEquals("second", map.get("/a/b"));
+        assertEquals(Arrays.asList("second", "root"), map.getAll("/a/b"));
+        assertEquals(2, map.entrySet().size());
+    }
+
+    @Test
+    public void trims_context_like_path_pattern() {
+        PathPatternMap<String> map = new PathPatternMap<String>();
+        map.put("/rest/", "rest");
+        map.put("/rest/v2/", "v2");
+
+        for (String path : Arrays.asList("/rest/user/list", "/rest/v2/user", "/rest/", "/other/")) {
+            PathPattern pattern = map.getPattern(path);
+            String expected = pattern != null ? pattern.trim(path) : path;
+            assertEquals(expected, map.trimContext(path));
+        }
+        assertEquals("/user/list", map.match("/rest/user/list").trim("/rest/user/list"));
+    }
+}
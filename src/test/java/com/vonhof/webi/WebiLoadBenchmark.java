@@ -0,0 +1,124 @@
+package com.vonhof.webi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.servlet.ServletException;
+
+/**
+ * Compares request throughput and latency of the pooled and the executor mode of Webi with handlers calling a
+ * simulated blocking backend. Run as a plain java program.
+ */
+public class WebiLoadBenchmark {
+    private static final int PORT = 8089;
+    private static final int CLIENTS = 400;
+    private static final int REQUESTS_PER_CLIENT = 50;
+    private static final int BACKEND_CAPACITY = 200;
+    private static final int BACKEND_LATENCY_MS = 20;
+
+    public static void main(String[] args) throws Exception {
+        run("pooled (100 threads)", new Webi(null, PORT, 100, 0, BACKEND_CAPACITY, 30000));
+        run("executor", new Webi(null, PORT, Executors.newCachedThreadPool(), 0, BACKEND_CAPACITY, 30000));
+    }
+
+    private static void run(String name, final Webi webi) throws Exception {
+        final Semaphore backend = new Semaphore(BACKEND_CAPACITY);
+        webi.add("/", new RequestHandler() {
+            @Override
+            public void handle(WebiContext req) throws IOException, ServletException {
+                try {
+                    //Simulates a database or remote service call
+                    backend.acquire();
+                    try {
+                        Thread.sleep(BACKEND_LATENCY_MS);
+                    } finally {
+                        backend.release();
+                    }
+                } catch (InterruptedException e) {
+                    throw new ServletException(e);
+                }
+                req.getResponse().getOutputStream().write("ok".getBytes("UTF-8"));
+            }
+        });
+
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    webi.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.start();
+        Thread.sleep(1000);
+
+        //Warm up
+        load(CLIENTS / 4, REQUESTS_PER_CLIENT / 5);
+
+        long start = System.nanoTime();
+        long[] latencies = load(CLIENTS, REQUESTS_PER_CLIENT);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        webi.stop();
+        server.join();
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-22s %6d req/s, p50 %5.1f ms, p99 %6.1f ms",
+                name,
+                latencies.length * 1000L / Math.max(1, elapsedMs),
+                latencies[latencies.length / 2] / 1000000.0,
+                latencies[(int) (latencies.length * 0.99)] / 1000000.0));
+    }
+
+    private static long[] load(int clients, final int requests) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long[] out = new long[requests];
+                    for (int r = 0; r < requests; r++) {
+                        long start = System.nanoTime();
+                        request();
+                        out[r] = System.nanoTime() - start;
+                    }
+                    return out;
+                }
+            }));
+        }
+
+        long[] latencies = new long[clients * requests];
+        int offset = 0;
+        for (Future<long[]> future : futures) {
+            long[] result = future.get();
+            System.arraycopy(result, 0, latencies, offset, result.length);
+            offset += result.length;
+        }
+        executor.shutdown();
+        return latencies;
+    }
+
+    private static void request() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + PORT + "/").openConnection();
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            while (in.read() > -1) {
+                //Drain response so the connection is reused
+            }
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.vonhof.webi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+/**
+ * Webi server on a free local port for tests
+ */
+public class WebiTestServer {
+    private final Webi webi;
+    private final int port;
+    private Thread thread;
+
+    public WebiTestServer() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+        webi = new Webi(port, 20, 0, 20);
+    }
+
+    public Webi getWebi() {
+        return webi;
+    }
+
+    public WebiTestServer start() throws Exception {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    webi.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return this;
+            } catch (IOException ex) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start");
+    }
+
+    public void stop() throws Exception {
+        webi.stop(false);
+        thread.join(10000);
+    }
+
+    public HttpURLConnection open(String path) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        conn.setReadTimeout(10000);
+        return conn;
+    }
+
+    public static HttpURLConnection post(HttpURLConnection conn, String contentType, String body) throws IOException {
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", contentType);
+        final OutputStream out = conn.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        return conn;
+    }
+
+    /**
+     * Read response body - also for error responses
+     */
+    public static String read(HttpURLConnection conn) throws IOException {
+        final InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package com.vonhof.webi.bean;
 
+import net.sf.cglib.proxy.MethodProxy;
 import org.junit.Test;
 
 import javax.inject.Inject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
@@ -93,6 +99,88 @@ public class BeanContextTest {
         assertEquals(mainBean.getValue(), beanUser.getSimpleLocalBean().getValue());
     }
 
+    @Test
+    public void wrapped_tasks_run_with_thread_locals_of_caller() throws Throwable {
+        final BeanContext bc = new BeanContext();
+        bc.setLocal(new SimpleLocalBean("request"));
+        final SimpleLocalBean proxy = bc.get(SimpleLocalBean.class);
+
+        final String[] seen = new String[1];
+        final Runnable task = bc.wrap(new Runnable() {
+            @Override
+            public void run() {
+                seen[0] = proxy.getValue();
+            }
+        });
+
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join();
+        assertEquals("request", seen[0]);
+
+        //Beans of the thread running the task are restored afterwards
+        bc.setLocal(new SimpleLocalBean("other"));
+        task.run();
+        assertEquals("request", seen[0]);
+        assertEquals("other", proxy.getValue());
+    }
+
+    @Test
+    public void local_beans_are_bound_per_thread() throws Throwable {
+        final BeanContext bc = new BeanContext();
+        final LocalBean<SimpleLocalBean> local = bc.getLocalBean(SimpleLocalBean.class);
+        assertSame(local, bc.getLocalBean(SimpleLocalBean.class));
+
+        final SimpleLocalBean mainBean = new SimpleLocalBean("main");
+        local.set(mainBean);
+        final SimpleLocalBean proxy = bc.get(SimpleLocalBean.class);
+
+        ThrowingThread thread = new ThrowingThread() {
+
+            @Override
+            public void runThrows() throws Throwable {
+                assertNull(local.get());
+                local.set(new SimpleLocalBean("threaded"));
+                assertEquals("threaded", proxy.getValue());
+            }
+        };
+
+        thread.start();
+        thread.join();
+        thread.done();
+
+        assertSame(mainBean, local.get());
+        assertEquals("main", proxy.getValue());
+    }
+
+    @Test
+    public void clears_thread_locals_of_current_thread() throws Throwable {
+        final BeanContext bc = new BeanContext();
+        final LocalBean<SimpleLocalBean> local = bc.getLocalBean(SimpleLocalBean.class);
+        local.set(new SimpleLocalBean("main"));
+
+        ThrowingThread thread = new ThrowingThread() {
+
+            @Override
+            public void runThrows() throws Throwable {
+                local.set(new SimpleLocalBean("threaded"));
+                bc.clearThreadLocals();
+                assertNull(local.get());
+            }
+        };
+
+        thread.start();
+        thread.join();
+        thread.done();
+        assertEquals("main", local.get().getValue());
+
+        bc.clearThreadLocals();
+        assertNull(local.get());
+
+        local.set(new SimpleLocalBean("next"));
+        assertEquals("next", bc.get(SimpleLocalBean.class).getValue());
+    }
+
     @Test
     public void can_inject_variables_into_bean() throws Throwable {
 
@@ -117,6 +205,47 @@ public class BeanContextTest {
         assertTrue(beanContainer.getSimpleBean().isState());
     }
 
+    @Test
+    public void can_intercept_bean_invocations() throws Throwable {
+
+        final BeanContext bc = new BeanContext();
+
+        final List<String> calls = new ArrayList<>();
+
+        bc.addInjectInterceptor(new BeanInvocationInterceptor() {
+            @Override
+            public boolean shouldApply(Class obj) {
+                return obj.equals(SimpleBean.class);
+            }
+
+            @Override
+            public void before(Object obj, Method method, Object[] args, MethodProxy methodProxy, Map<String, Object> scope) {
+                calls.add("before:" + method.getName());
+            }
+
+            @Override
+            public void after(Object obj, Method method, Object[] args, MethodProxy methodProxy, Object result, Throwable thrownException, long timeTaken, Map<String, Object> scope) {
+                calls.add("after:" + method.getName());
+            }
+        });
+
+        final SimpleBeanContainer beanContainer = new SimpleBeanContainer();
+        final SimpleBeanUser beanUser = new SimpleBeanUser();
+
+        SimpleBean simpleBean = new SimpleBean();
+        bc.add(simpleBean);
+        bc.add(new SimpleLocalBean("main"));
+
+        bc.injectOnly(beanContainer);
+        bc.injectOnly(beanUser);
+
+        beanContainer.getSimpleBean().setState(true);
+        assertEquals("main", beanUser.getSimpleLocalBean().getValue());
+
+        assertTrue(simpleBean.isState());
+        assertEquals(Arrays.asList("before:setState", "after:setState"), calls);
+    }
+
     public static class SimpleBean {
         private boolean state;
 
@@ -0,0 +1,90 @@
+package com.vonhof.webi.bean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ThreadLocalScopeTest {
+
+    @Test
+    public void isolates_slots_per_thread() throws Throwable {
+        final ThreadLocalScope scope = new ThreadLocalScope();
+        final int first = scope.allocate();
+        final int second = scope.allocate();
+        scope.set(first, "main");
+
+        BeanContextTest.ThrowingThread thread = new BeanContextTest.ThrowingThread() {
+            @Override
+            public void runThrows() throws Throwable {
+                assertNull(scope.get(first));
+                scope.set(first, "threaded");
+                scope.set(second, "threaded second");
+                assertEquals("threaded", scope.get(first));
+            }
+        };
+        thread.start();
+        thread.join();
+        thread.done();
+
+        assertEquals("main", scope.get(first));
+        assertNull(scope.get(second));
+    }
+
+    @Test
+    public void grows_for_slots_allocated_later() throws Exception {
+        final ThreadLocalScope scope = new ThreadLocalScope();
+        final int first = scope.allocate();
+        scope.set(first, "first");
+
+        final int second = scope.allocate();
+        assertNull(scope.get(second));
+        scope.set(second, "second");
+        assertEquals("first", scope.get(first));
+        assertEquals("second", scope.get(second));
+    }
+
+    @Test
+    public void clears_all_slots_of_current_thread() throws Throwable {
+        final ThreadLocalScope scope = new ThreadLocalScope();
+        final int first = scope.allocate();
+        final int second = scope.allocate();
+        scope.set(first, "first");
+        scope.set(second, "second");
+
+        BeanContextTest.ThrowingThread thread = new BeanContextTest.ThrowingThread() {
+            @Override
+            public void runThrows() throws Throwable {
+                scope.set(first, "threaded");
+                scope.clear();
+                assertNull(scope.get(first));
+            }
+        };
+        thread.start();
+        thread.join();
+        thread.done();
+        assertEquals("first", scope.get(first));
+
+        scope.clear();
+        assertNull(scope.get(first));
+        assertNull(scope.get(second));
+    }
+
+    @Test
+    public void restores_snapshots() throws Exception {
+        final ThreadLocalScope scope = new ThreadLocalScope();
+        final int slot = scope.allocate();
+        assertNull(scope.snapshot());
+
+        scope.set(slot, "before");
+        final Object[] snapshot = scope.snapshot();
+        scope.set(slot, "after");
+        assertEquals("before", snapshot[slot]);
+
+        scope.restore(snapshot);
+        assertEquals("before", scope.get(slot));
+
+        scope.restore(null);
+        assertNull(scope.get(slot));
+    }
+}
@@ -0,0 +1,104 @@
+package com.vonhof.webi.file;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class CompileCacheTest {
+
+    @Test
+    public void compiles_once_for_concurrent_requests() throws Throwable {
+        final CompileCache<String> cache = new CompileCache<String>(0);
+        final AtomicInteger compilations = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Callable<String> compilation = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                compilations.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "compiled";
+            }
+        };
+
+        final String[] results = new String[2];
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[0] = cache.get("/app.js", "v1", compilation);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[1] = cache.get("/app.js", "v1", compilation);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        second.start();
+        Thread.sleep(50);
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertEquals(1, compilations.get());
+        assertEquals("compiled", results[0]);
+        assertEquals("compiled", results[1]);
+    }
+
+    @Test
+    public void serves_stale_value_while_recompiling() throws Throwable {
+        final CompileCache<String> cache = new CompileCache<String>(0);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        assertEquals("v1", cache.get("/app.js", "v1", value("v1", null)));
+
+        assertEquals("v1", cache.get("/app.js", "v2", value("v2", release)));
+        assertEquals("v1", cache.get("/app.js", "v2", value("other", null)));
+
+        release.countDown();
+        for (int i = 0; i < 100 && !"v2".equals(cache.getIfPresent("/app.js")); i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("v2", cache.get("/app.js", "v2", value("other", null)));
+    }
+
+    @Test
+    public void recompiles_changed_values_while_waiting_unless_serving_stale() throws Throwable {
+        final CompileCache<String> cache = new CompileCache<String>(0, false);
+
+        assertEquals("v1", cache.get("/style.css", "v1", value("v1", null)));
+        assertEquals("v2", cache.get("/style.css", "v2", value("v2", null)));
+    }
+
+    private Callable<String> value(final String value, final CountDownLatch release) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (release != null) {
+                    release.await();
+                }
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,137 @@
+package com.vonhof.webi.file;
+
+import com.vonhof.webi.Webi;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+
+public class FileRequestHandlerTest {
+
+    private static Webi webi;
+    private static Thread server;
+    private static int port;
+    private static File dir;
+    private static byte[] css;
+    private static byte[] gzippedJs;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "webi-files-" + System.nanoTime());
+        dir.mkdirs();
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append(".rule-").append(i).append(" { color: red; }\n");
+        }
+        css = sb.toString().getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(new File(dir, "app.css"), css);
+
+        FileUtils.writeStringToFile(new File(dir, "app.js"), sb.toString());
+        gzippedJs = new byte[600];
+        Arrays.fill(gzippedJs, (byte) 7);
+        FileUtils.writeByteArrayToFile(new File(dir, "app.js.gz"), gzippedJs);
+
+        final ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+
+        webi = new Webi(port, 10, 0, 10);
+        final FileRequestHandler handler = FileRequestHandler.getStandardFileHandler();
+        handler.setDocumentRoot(dir.getAbsolutePath() + "/");
+        webi.add("/", handler);
+
+        server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    webi.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.start();
+        waitForServer();
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        webi.stop(false);
+        server.join(10000);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void compresses_full_responses() throws Exception {
+        final HttpURLConnection conn = open("app.css");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        conn.disconnect();
+    }
+
+    @Test
+    public void serves_ranges_uncompressed() throws Exception {
+        final HttpURLConnection conn = open("app.css");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        conn.setRequestProperty("Range", "bytes=100-1099");
+
+        assertEquals(206, conn.getResponseCode());
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        assertEquals("bytes 100-1099/" + css.length, conn.getHeaderField("Content-Range"));
+        assertNotNull(conn.getHeaderField("ETag"));
+        assertArrayEquals(Arrays.copyOfRange(css, 100, 1100), read(conn));
+    }
+
+    @Test
+    public void serves_precompressed_files_as_is() throws Exception {
+        final HttpURLConnection conn = open("app.js");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertArrayEquals(gzippedJs, read(conn));
+    }
+
+    private static HttpURLConnection open(String path) throws Exception {
+        final HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/" + path).openConnection();
+        conn.setReadTimeout(5000);
+        return conn;
+    }
+
+    private static byte[] read(HttpURLConnection conn) throws Exception {
+        final InputStream in = conn.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+            conn.disconnect();
+        }
+    }
+
+    private static void waitForServer() throws Exception {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (Exception ex) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start");
+    }
+}
@@ -0,0 +1,77 @@
+package com.vonhof.webi.file;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+
+public class StaticFileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void caches_small_files_and_their_variants() throws Throwable {
+        final File dir = folder.getRoot();
+        final File file = new File(dir, "app.js");
+        FileUtils.writeStringToFile(file, "var a = 1;");
+        FileUtils.writeStringToFile(new File(dir, "app.js.gz"), "gz");
+
+        final StaticFileCache cache = new StaticFileCache();
+        final StaticFile staticFile = cache.get(file, false);
+
+        assertEquals("var a = 1;", new String(staticFile.getContent(), "UTF-8"));
+        assertNotNull(staticFile.getGzip());
+        assertNull(staticFile.getBrotli());
+        assertFalse(staticFile.getETag().equals(staticFile.getGzip().getETag()));
+
+        assertSame(staticFile, cache.get(file, false));
+        assertTrue(cache.isFresh(file));
+    }
+
+    @Test
+    public void rereads_changed_files_when_checked() throws Throwable {
+        final File file = new File(folder.getRoot(), "style.css");
+        FileUtils.writeStringToFile(file, "a{}");
+
+        final StaticFileCache cache = new StaticFileCache();
+        final StaticFile first = cache.get(file, false);
+
+        FileUtils.writeStringToFile(file, "a{color:red}");
+        file.setLastModified(first.getLastModified() + 2000);
+
+        final StaticFile second = cache.get(file, true);
+        assertNotSame(first, second);
+        assertEquals("a{color:red}", new String(second.getContent(), "UTF-8"));
+
+        assertTrue(file.delete());
+        assertNull(cache.get(file, true));
+    }
+
+    @Test
+    public void streams_large_files_and_evicts_least_recently_used() throws Throwable {
+        final File dir = folder.getRoot();
+        final File large = new File(dir, "large.bin");
+        final File a = new File(dir, "a.txt");
+        final File b = new File(dir, "b.txt");
+        FileUtils.writeByteArrayToFile(large, new byte[100]);
+        FileUtils.writeByteArrayToFile(a, new byte[30]);
+        FileUtils.writeByteArrayToFile(b, new byte[30]);
+
+        final StaticFileCache cache = new StaticFileCache();
+        cache.setMaxFileSize(50);
+        cache.setMaxSize(50);
+
+        assertNull(cache.get(large, false).getContent());
+        assertNotNull(cache.get(a, false).getContent());
+        assertNotNull(cache.get(b, false).getContent());
+
+        assertFalse(cache.isFresh(a));
+        assertTrue(cache.isFresh(b));
+    }
+}
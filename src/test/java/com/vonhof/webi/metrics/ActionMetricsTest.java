@@ -0,0 +1,50 @@
+package com.vonhof.webi.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.vonhof.webi.HttpException;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class ActionMetricsTest {
+
+    private ActionMetrics metrics(MetricRegistry registry) {
+        return new ActionMetrics("webi.endpoint.test.action.GET", registry,
+                registry.timer("total"), registry.timer("binding"),
+                registry.timer("invocation"), registry.timer("serialization"));
+    }
+
+    @Test
+    public void records_phases_in_millis() {
+        final ActionMetrics metrics = metrics(new MetricRegistry());
+        metrics.binding(1000000);
+        metrics.invocation(5000000);
+        metrics.invocation(5000000);
+        metrics.total(8000000);
+
+        final Map<String, Object> snapshot = metrics.snapshot();
+        final Map<String, Object> invocation = (Map<String, Object>) snapshot.get("invocation");
+        assertEquals(2L, invocation.get("count"));
+        assertEquals(5.0, (Double) invocation.get("p50"), 0.001);
+        assertEquals(1L, ((Map<String, Object>) snapshot.get("binding")).get("count"));
+        assertEquals(0L, ((Map<String, Object>) snapshot.get("serialization")).get("count"));
+    }
+
+    @Test
+    public void counts_errors_by_code() {
+        final MetricRegistry registry = new MetricRegistry();
+        final ActionMetrics metrics = metrics(registry);
+        metrics.error(new HttpException(HttpException.NOT_FOUND, "Not found"));
+        metrics.error(new HttpException(HttpException.NOT_FOUND, "Not found"));
+        metrics.error(new IllegalStateException());
+
+        final Map<String, Long> errors = (Map<String, Long>) metrics.snapshot().get("errors");
+        assertEquals(2, errors.size());
+        assertEquals(2L, (long) errors.get("404"));
+        assertEquals(1L, (long) errors.get("500"));
+        assertEquals(2L, registry.counter("webi.endpoint.test.action.GET.errors.404").getCount());
+    }
+}
@@ -0,0 +1,149 @@
+package com.vonhof.webi.qos;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.*;
+
+
+public class PriorityAdmissionControllerTest {
+
+    @Test
+    public void queues_requests_over_the_limit_until_capacity_frees_up() throws Throwable {
+        final PriorityAdmissionController controller = new PriorityAdmissionController(1, null);
+
+        final FakeRequest first = new FakeRequest();
+        final FakeRequest second = new FakeRequest();
+
+        AdmissionController.Permit permit = controller.admit("/api", first.request(), first.response());
+        assertNotNull(permit);
+
+        assertNull(controller.admit("/api", second.request(), second.response()));
+        assertTrue(second.async);
+        assertFalse(second.dispatched);
+
+        permit.release();
+        assertTrue(second.dispatched);
+
+        AdmissionController.Permit secondPermit = controller.admit("/api", second.request(), second.response());
+        assertNotNull(secondPermit);
+        secondPermit.release();
+
+        assertNotNull(controller.admit("/api", new FakeRequest().request(), new FakeRequest().response()));
+    }
+
+    @Test
+    public void admits_higher_priority_classes_first() throws Throwable {
+        final PriorityAdmissionController controller = new PriorityAdmissionController(1, null);
+        controller.add("X-Health", null, new PriorityClass("health", 10, 0));
+
+        final FakeRequest bulk = new FakeRequest();
+        final FakeRequest health = new FakeRequest();
+        health.headers.put("X-Health", "1");
+
+        AdmissionController.Permit permit = controller.admit("/api", new FakeRequest().request(), new FakeRequest().response());
+        assertNull(controller.admit("/api", bulk.request(), bulk.response()));
+        assertNull(controller.admit("/health", health.request(), health.response()));
+
+        permit.release();
+
+        assertTrue(health.dispatched);
+        assertFalse(bulk.dispatched);
+    }
+
+    @Test
+    public void rejects_requests_when_queue_is_full() throws Throwable {
+        final PriorityAdmissionController controller = new PriorityAdmissionController(1, null);
+        controller.getDefaultClass().setMaxQueued(1);
+
+        final FakeRequest queued = new FakeRequest();
+        final FakeRequest rejected = new FakeRequest();
+
+        assertNotNull(controller.admit("/api", new FakeRequest().request(), new FakeRequest().response()));
+        assertNull(controller.admit("/api", queued.request(), queued.response()));
+        assertNull(controller.admit("/api", rejected.request(), rejected.response()));
+
+        assertEquals(0, queued.status);
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejected.status);
+        assertFalse(rejected.async);
+    }
+
+    @Test
+    public void replaces_gauges_of_previous_controller() throws Throwable {
+        final MetricRegistry registry = new MetricRegistry();
+        new PriorityAdmissionController(1, registry);
+        final PriorityAdmissionController controller = new PriorityAdmissionController(1, registry);
+        controller.getDefaultClass().setMaxQueued(1);
+
+        assertNotNull(controller.admit("/api", new FakeRequest().request(), new FakeRequest().response()));
+        assertNull(controller.admit("/api", new FakeRequest().request(), new FakeRequest().response()));
+
+        final String prefix = MetricRegistry.name("webi.qos", controller.getDefaultClass().getName());
+        assertEquals(1, registry.getGauges().get(MetricRegistry.name(prefix, "active")).getValue());
+        assertEquals(1, registry.getGauges().get(MetricRegistry.name(prefix, "queued")).getValue());
+    }
+
+    /**
+     * Just enough of the servlet api for the admission controller
+     */
+    private static class FakeRequest implements InvocationHandler {
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final Map<String, String> headers = new HashMap<>();
+        private boolean async;
+        private boolean dispatched;
+        private int status;
+
+        public HttpServletRequest request() {
+            return make(HttpServletRequest.class);
+        }
+
+        public HttpServletResponse response() {
+            return make(HttpServletResponse.class);
+        }
+
+        private <T> T make(Class<T> type) {
+            return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{type}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getAttribute":
+                    return attributes.get(args[0]);
+                case "setAttribute":
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                case "removeAttribute":
+                    attributes.remove(args[0]);
+                    return null;
+                case "getHeader":
+                    return headers.get(args[0]);
+                case "getRequestURI":
+                    return "/";
+                case "startAsync":
+                    async = true;
+                    return make(AsyncContext.class);
+                case "getRequest":
+                    return request();
+                case "getResponse":
+                    return response();
+                case "dispatch":
+                    dispatched = true;
+                    return null;
+                case "sendError":
+                    status = (Integer) args[0];
+                    return null;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.babelshark.reflect.ClassInfo;
+import com.vonhof.babelshark.reflect.MethodInfo;
+
+/**
+ * Compares the reflective and generated action invokers. Run as a plain java program.
+ */
+public class ActionInvokerBenchmark {
+    private static final int CALLS = 20000000;
+
+    public static void main(String[] args) throws Exception {
+        MethodInfo method = null;
+        for (MethodInfo m : ClassInfo.from(Controller.class).getMethods()) {
+            if (m.getName().equals("find")) {
+                method = m;
+            }
+        }
+        final Controller controller = new Controller();
+        final Object[] callArgs = new Object[]{"user", 42, Boolean.TRUE};
+
+        final ActionInvoker reflection = ActionInvoker.REFLECTION.create(Controller.class, method);
+        final ActionInvoker generated = ActionInvoker.GENERATED.create(Controller.class, method);
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println(String.format("reflection: %3d ns/call, generated: %3d ns/call",
+                    run(reflection, controller, callArgs), run(generated, controller, callArgs)));
+        }
+    }
+
+    private static long run(ActionInvoker invoker, Controller controller, Object[] args) throws Exception {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            sink += ((String) invoker.invoke(controller, args)).length();
+        }
+        long nsPerCall = (System.nanoTime() - start) / CALLS;
+        if (sink == 0) {
+            throw new IllegalStateException();
+        }
+        return nsPerCall;
+    }
+
+    public static class Controller {
+        public String find(String name, int limit, boolean active) {
+            return active ? name : "";
+        }
+    }
+}
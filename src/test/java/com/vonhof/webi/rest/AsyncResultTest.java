@@ -0,0 +1,54 @@
+package com.vonhof.webi.rest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class AsyncResultTest {
+
+    @Test
+    public void calls_callbacks_when_done() {
+        final List<Object> values = new ArrayList<Object>();
+        final AsyncResult<String> result = new AsyncResult<String>();
+        final AsyncResult.Callback<Object> callback = new AsyncResult.Callback<Object>() {
+            @Override
+            public void done(Object value, Throwable error) {
+                values.add(value);
+            }
+        };
+
+        result.onDone(callback);
+        assertTrue(values.isEmpty());
+
+        assertTrue(result.complete("done"));
+        assertFalse(result.fail(new Exception()));
+        assertTrue(result.isDone());
+
+        //Callbacks added later are called right away
+        result.onDone(callback);
+        assertEquals(2, values.size());
+        assertEquals("done", values.get(0));
+        assertEquals("done", values.get(1));
+    }
+
+    @Test
+    public void passes_errors_to_callbacks() {
+        final Throwable[] errors = new Throwable[1];
+        final AsyncResult<String> result = new AsyncResult<String>();
+        result.onDone(new AsyncResult.Callback<String>() {
+            @Override
+            public void done(String value, Throwable error) {
+                errors[0] = error;
+            }
+        });
+
+        final Exception error = new Exception("failed");
+        assertTrue(result.fail(error));
+        assertFalse(result.complete("done"));
+        assertSame(error, errors[0]);
+    }
+}
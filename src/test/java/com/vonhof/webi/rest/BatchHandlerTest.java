@@ -0,0 +1,192 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.webi.Filter;
+import com.vonhof.webi.HttpException;
+import com.vonhof.webi.HttpMethod;
+import com.vonhof.webi.WebiContext;
+import com.vonhof.webi.WebiTestServer;
+import com.vonhof.webi.annotation.Body;
+import com.vonhof.webi.annotation.Parm;
+import com.vonhof.webi.annotation.Path;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class BatchHandlerTest {
+
+    private static WebiTestServer server;
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        server = new WebiTestServer();
+        final RESTServiceHandler rest = server.getWebi().add("/rest/", new RESTServiceHandler());
+        rest.expose(new TestService());
+        server.getWebi().add("/rest/" + BatchHandler.PATH, new BatchHandler(rest));
+        server.getWebi().add("/plain/", new RESTServiceHandler()).expose(new TestService());
+        server.getWebi().add("/test/secret", new Filter() {
+            @Override
+            public boolean apply(WebiContext input) {
+                try {
+                    input.sendError(403, "Forbidden");
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                return false;
+            }
+        });
+
+        executor = Executors.newFixedThreadPool(4);
+        final RESTServiceHandler parallel = server.getWebi().add("/parallel/", new RESTServiceHandler());
+        parallel.expose(new TestService());
+        server.getWebi().add("/parallel/" + BatchHandler.PATH, new BatchHandler(parallel, executor)).setMaxCalls(3);
+
+        server.start();
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        server.stop();
+        executor.shutdown();
+    }
+
+    private static HttpURLConnection batch(String path, String calls) throws Exception {
+        return WebiTestServer.post(server.open(path + BatchHandler.PATH), "application/json", calls);
+    }
+
+    @Test
+    public void handles_calls_with_rest_handler() throws Exception {
+        final HttpURLConnection conn = batch("/rest/", "[{\"path\":\"test/hello?name=batch\"}]");
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(WebiTestServer.read(conn).contains("hello batch"));
+    }
+
+    @Test
+    public void is_only_available_when_added() throws Exception {
+        assertEquals(404, batch("/plain/", "[{\"path\":\"test/hello\"}]").getResponseCode());
+    }
+
+    @Test
+    public void applies_filters_to_each_call() throws Exception {
+        assertEquals(403, server.open("/rest/test/secret").getResponseCode());
+
+        final HttpURLConnection conn = batch("/rest/", "[" +
+                "{\"path\":\"test/secret\"}," +
+                "{\"path\":\"test/hello?name=open\"}" +
+                "]");
+        assertEquals(200, conn.getResponseCode());
+
+        final String response = WebiTestServer.read(conn);
+        assertFalse(response, response.contains("top secret"));
+        final int forbidden = response.replace(" ", "").indexOf("\"status\":403");
+        assertTrue(response, forbidden > -1 && response.contains("hello open"));
+    }
+
+    @Test
+    public void handles_calls_one_at_a_time_in_order() throws Exception {
+        final HttpURLConnection conn = batch("/rest/", "[" +
+                "{\"method\":\"GET\", \"path\":\"test/hello\", \"params\":{\"name\":\"first\"}}," +
+                "{\"method\":\"POST\", \"path\":\"test/echo\", \"body\":{\"value\":\"second\"}}," +
+                "{\"method\":\"GET\", \"path\":\"test/hello?name=third\"}" +
+                "]");
+        assertEquals(200, conn.getResponseCode());
+
+        final String response = WebiTestServer.read(conn);
+        final int first = response.indexOf("hello first");
+        final int second = response.indexOf("second");
+        final int third = response.indexOf("hello third");
+        assertTrue(response, first > -1 && first < second && second < third);
+    }
+
+    @Test
+    public void returns_status_of_each_call() throws Exception {
+        final HttpURLConnection conn = batch("/rest/", "[" +
+                "{\"path\":\"test/hello?name=ok\"}," +
+                "{\"path\":\"test/fail\"}," +
+                "{\"method\":\"NOPE\", \"path\":\"test/hello\"}" +
+                "]");
+        assertEquals(200, conn.getResponseCode());
+
+        final String response = WebiTestServer.read(conn).replace(" ", "");
+        final int ok = response.indexOf("\"status\":200");
+        final int failed = response.indexOf("\"status\":418");
+        final int invalid = response.indexOf("\"status\":400");
+        assertTrue(response, ok > -1 && ok < failed && failed < invalid);
+    }
+
+    @Test
+    public void handles_calls_in_parallel_with_executor() throws Exception {
+        //The first call only finishes if the second is handled at the same time
+        final HttpURLConnection conn = batch("/parallel/", "[" +
+                "{\"path\":\"test/await\"}," +
+                "{\"path\":\"test/release\"}" +
+                "]");
+        assertEquals(200, conn.getResponseCode());
+
+        final String response = WebiTestServer.read(conn);
+        final int awaited = response.indexOf("awaited");
+        final int released = response.indexOf("released");
+        assertTrue(response, awaited > -1 && awaited < released);
+    }
+
+    @Test
+    public void rejects_batches_over_max_calls() throws Exception {
+        final HttpURLConnection conn = batch("/parallel/", "[" +
+                "{\"path\":\"test/hello\"}," +
+                "{\"path\":\"test/hello\"}," +
+                "{\"path\":\"test/hello\"}," +
+                "{\"path\":\"test/hello\"}" +
+                "]");
+        assertEquals(400, conn.getResponseCode());
+        assertTrue(WebiTestServer.read(conn).contains("at most 3 calls"));
+    }
+
+    @Test
+    public void only_accepts_post() throws Exception {
+        assertEquals(405, server.open("/rest/" + BatchHandler.PATH).getResponseCode());
+    }
+
+    @Path("test")
+    public static class TestService {
+        private volatile CountDownLatch latch = new CountDownLatch(1);
+
+        public String hello(@Parm("name") String name) {
+            return "hello " + name;
+        }
+
+        @Path(value = "echo", method = HttpMethod.POST)
+        public Map<String, Object> echo(@Body Map<String, Object> body) {
+            return body;
+        }
+
+        public String secret() {
+            return "top secret";
+        }
+
+        public String fail() throws Exception {
+            throw new HttpException(418, "failed");
+        }
+
+        public String await() throws Exception {
+            final boolean released = latch.await(5, TimeUnit.SECONDS);
+            latch = new CountDownLatch(1);
+            return released ? "awaited" : "timed out";
+        }
+
+        public String release() {
+            latch.countDown();
+            return "released";
+        }
+    }
+}
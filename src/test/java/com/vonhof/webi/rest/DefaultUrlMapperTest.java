@@ -0,0 +1,82 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.webi.HttpMethod;
+import com.vonhof.webi.annotation.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class DefaultUrlMapperTest {
+
+    private DefaultUrlMapper mapper;
+    private Products products;
+
+    @Path("products")
+    public static class Products {
+
+        public void list() {}
+
+        @Path(value = "list", method = HttpMethod.POST)
+        public void create() {}
+
+        @Path("Top-Rated")
+        public void topRated() {}
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mapper = new DefaultUrlMapper();
+        products = new Products();
+        mapper.expose(products);
+    }
+
+    @Test
+    public void routes_static_actions_before_parameterised_paths() throws Exception {
+        final Route route = mapper.getRoute("products/list", HttpMethod.GET);
+        assertSame(products, route.getController());
+        assertTrue(route.hasAction());
+        assertEquals("list", route.getAction().getMethod().getName());
+
+        final Route param = mapper.getRoute("products/123", HttpMethod.GET);
+        assertSame(products, param.getController());
+        assertFalse(param.hasAction());
+
+        final Route nested = mapper.getRoute("products/list/123", HttpMethod.GET);
+        assertSame(products, nested.getController());
+        assertFalse(nested.hasAction());
+    }
+
+    @Test
+    public void routes_by_http_method() throws Exception {
+        assertEquals("list", mapper.getRoute("products/list", HttpMethod.GET).getAction().getMethod().getName());
+        assertEquals("create", mapper.getRoute("products/list", HttpMethod.POST).getAction().getMethod().getName());
+
+        final Route mismatch = mapper.getRoute("products/list", HttpMethod.DELETE);
+        assertSame(products, mismatch.getController());
+        assertFalse(mismatch.hasAction());
+    }
+
+    @Test
+    public void ignores_trailing_slashes() throws Exception {
+        assertEquals("list", mapper.getRoute("products/list/", HttpMethod.GET).getAction().getMethod().getName());
+
+        final Route controller = mapper.getRoute("products/", HttpMethod.GET);
+        assertSame(products, controller.getController());
+        assertFalse(controller.hasAction());
+        assertSame(controller, mapper.getRoute("products", HttpMethod.GET));
+    }
+
+    @Test
+    public void ignores_case() throws Exception {
+        assertEquals("topRated", mapper.getRoute("Products/top-rated", HttpMethod.GET).getAction().getMethod().getName());
+        assertEquals("topRated", mapper.getRoute("PRODUCTS/TOP-RATED", HttpMethod.GET).getAction().getMethod().getName());
+    }
+
+    @Test
+    public void returns_null_for_unknown_controllers() throws Exception {
+        assertNull(mapper.getRoute("orders/list", HttpMethod.GET));
+        assertNull(mapper.getRoute("", HttpMethod.GET));
+    }
+}
@@ -0,0 +1,357 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.webi.Filter;
+import com.vonhof.webi.HttpMethod;
+import com.vonhof.webi.Webi;
+import com.vonhof.webi.WebiContext;
+import com.vonhof.webi.WebiTestServer;
+import com.vonhof.webi.annotation.Body;
+import com.vonhof.webi.annotation.Cached;
+import com.vonhof.webi.annotation.Parm;
+import com.vonhof.webi.annotation.Path;
+import com.vonhof.webi.bean.BeanScope;
+import com.vonhof.webi.session.CookieSessionHandler;
+import com.vonhof.webi.session.SessionHandler;
+import com.vonhof.webi.session.WebiSession;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.inject.Inject;
+import java.io.Closeable;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class RESTServiceHandlerTest {
+
+    private static WebiTestServer server;
+    private static RESTServiceHandler handler;
+    private static RESTServiceHandler anonymous;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        server = new WebiTestServer();
+        server.getWebi().add((SessionHandler) new CookieSessionHandler<WebiSession>("/rest/", "sid"));
+        server.getWebi().add("/", new Filter() {
+            @Override
+            public boolean apply(WebiContext input) {
+                final String user = input.getParameterMap().get("user");
+                if (user != null) {
+                    server.getWebi().getBeanContext().setLocal(new RequestUser(user));
+                }
+                return true;
+            }
+        });
+        handler = server.getWebi().add("/rest/", new RESTServiceHandler());
+        handler.setAsyncTimeout(500);
+        handler.expose(new TestService());
+        handler.expose(new WebiController());
+        //No session handler
+        anonymous = server.getWebi().add("/anon/", new RESTServiceHandler());
+        anonymous.expose(new TestService());
+        anonymous.expose(new OtherService());
+        server.start();
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void caches_private_responses_per_session() throws Exception {
+        final HttpURLConnection first = server.open("/rest/test/whoami");
+        final String firstResponse = WebiTestServer.read(first);
+        final String cookie = first.getHeaderField("Set-Cookie").split(";")[0];
+
+        final HttpURLConnection again = server.open("/rest/test/whoami");
+        again.setRequestProperty("Cookie", cookie);
+        assertEquals(firstResponse, WebiTestServer.read(again));
+
+        final String otherResponse = WebiTestServer.read(server.open("/rest/test/whoami"));
+        assertFalse(firstResponse.equals(otherResponse));
+    }
+
+    @Test
+    public void does_not_cache_private_responses_without_user() throws Exception {
+        final String first = WebiTestServer.read(server.open("/anon/test/whoami"));
+        assertFalse(first.equals(WebiTestServer.read(server.open("/anon/test/whoami"))));
+    }
+
+    @Test
+    public void shares_cache_and_metrics_between_handlers() throws Exception {
+        assertSame(handler.getResponseCache(), anonymous.getResponseCache());
+        assertSame(handler.getEndpointMetrics(), anonymous.getEndpointMetrics());
+
+        //Actions of other handlers show up in the metrics endpoint
+        assertTrue(WebiTestServer.read(server.open("/rest/webi/metrics")).contains("other.ping"));
+    }
+
+    @Test
+    public void shares_shared_responses_between_sessions() throws Exception {
+        final String first = WebiTestServer.read(server.open("/rest/test/counter"));
+        assertEquals(first, WebiTestServer.read(server.open("/rest/test/counter")));
+    }
+
+    @Test
+    public void keeps_parameters_apart_in_cache_keys() throws Exception {
+        assertTrue(WebiTestServer.read(server.open("/rest/test/parms?a=1&b=2")).contains("a=1 b=2"));
+        //Same parameter string if names and values were not encoded
+        assertFalse(WebiTestServer.read(server.open("/rest/test/parms?a=1%26b%3D2")).contains("a=1 b=2"));
+    }
+
+    @Test
+    public void responds_when_async_result_is_done() throws Exception {
+        final HttpURLConnection conn = server.open("/rest/test/later");
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(WebiTestServer.read(conn).contains("later"));
+    }
+
+    @Test
+    public void binds_request_beans_in_continuations() throws Exception {
+        final HttpURLConnection conn = server.open("/rest/test/continued?user=henrik");
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(WebiTestServer.read(conn).contains("continued for henrik"));
+    }
+
+    @Test
+    public void clears_request_beans_after_requests() throws Exception {
+        HttpURLConnection conn = server.open("/rest/test/user?user=henrik");
+        assertTrue(WebiTestServer.read(conn).contains("henrik"));
+
+        //Requests are handled by pooled threads - none may see the bean bound by an earlier request
+        for (int i = 0; i < 50; i++) {
+            conn = server.open("/rest/test/user");
+            assertTrue(WebiTestServer.read(conn).contains("nobody"));
+        }
+    }
+
+    @Test
+    public void times_out_async_results() throws Exception {
+        assertEquals(504, server.open("/rest/test/never").getResponseCode());
+
+        //The request thread and context are released for the next request
+        assertEquals(200, server.open("/rest/test/later").getResponseCode());
+    }
+
+    @Test
+    public void streams_iterators_as_json_array() throws Exception {
+        final HttpURLConnection conn = server.open("/rest/test/items?format=json");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("[\"a\",\"b\",\"c\"]", WebiTestServer.read(conn).replaceAll("\\s", ""));
+    }
+
+    @Test
+    public void streams_iterators_as_ndjson() throws Exception {
+        final HttpURLConnection conn = server.open("/rest/test/items?format=ndjson");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(RESTServiceHandler.NDJSON_MIME_TYPE, conn.getContentType().split(";")[0]);
+        assertEquals("\"a\"\n\"b\"\n\"c\"\n", WebiTestServer.read(conn));
+    }
+
+    @Test
+    public void streams_chunk_producers() throws Exception {
+        assertEquals("[1,2,3]", WebiTestServer.read(server.open("/rest/test/numbers?format=json")).replaceAll("\\s", ""));
+        assertEquals("1\n2\n3\n", WebiTestServer.read(server.open("/rest/test/numbers?format=ndjson")));
+    }
+
+    @Test
+    public void streams_empty_iterators() throws Exception {
+        assertEquals("[]", WebiTestServer.read(server.open("/rest/test/nothing?format=json")).trim());
+        assertEquals("", WebiTestServer.read(server.open("/rest/test/nothing?format=ndjson")));
+    }
+
+    @Test
+    public void closes_iterators_that_fail() throws Exception {
+        TestService.brokenClosed.set(false);
+        try {
+            WebiTestServer.read(server.open("/rest/test/broken?format=json"));
+        } catch (Exception ex) {
+            //Response is cut short
+        }
+        assertTrue(TestService.brokenClosed.get());
+    }
+
+    @Test
+    public void reads_pojo_body() throws Exception {
+        final HttpURLConnection conn = WebiTestServer.post(server.open("/rest/test/greet"), "application/json",
+                "{\"name\":\"henrik\",\"count\":2}");
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(WebiTestServer.read(conn).contains("henrik henrik"));
+    }
+
+    @Test
+    public void reads_list_body() throws Exception {
+        final HttpURLConnection conn = WebiTestServer.post(server.open("/rest/test/total"), "application/json",
+                "[{\"name\":\"a\",\"count\":2},{\"name\":\"b\",\"count\":3}]");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("5", WebiTestServer.read(conn).trim());
+    }
+
+    @Path("test")
+    public static class TestService {
+        private static final AtomicBoolean brokenClosed = new AtomicBoolean();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Inject
+        private Webi webi;
+
+        @Inject
+        private RequestUser user;
+
+        @Cached(ttl = 60)
+        public String whoami(WebiSession session) {
+            return session.getId() + " " + calls.incrementAndGet();
+        }
+
+        @Cached(ttl = 60, shared = true)
+        public int counter() {
+            return calls.incrementAndGet();
+        }
+
+        @Cached(ttl = 60, shared = true)
+        public String parms(@Parm("a") String a, @Parm("b") String b) {
+            return "a=" + a + " b=" + b;
+        }
+
+        public AsyncResult<String> later() {
+            final AsyncResult<String> out = new AsyncResult<String>();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    out.complete("later");
+                }
+            }).start();
+            return out;
+        }
+
+        public String user() {
+            final RequestUser bound = webi.getBeanContext().getLocalBean(RequestUser.class).get();
+            return bound != null ? bound.getName() : "nobody";
+        }
+
+        public AsyncResult<String> continued() {
+            final AsyncResult<String> out = new AsyncResult<String>();
+            new Thread(webi.wrap(new Runnable() {
+                @Override
+                public void run() {
+                    out.complete("continued for " + user.getName());
+                }
+            })).start();
+            return out;
+        }
+
+        public AsyncResult<String> never() {
+            return new AsyncResult<String>();
+        }
+
+        public Iterator<String> items() {
+            return Arrays.asList("a", "b", "c").iterator();
+        }
+
+        public ChunkProducer<Integer> numbers() {
+            return new ChunkProducer<Integer>() {
+                @Override
+                public void produce(Writer<Integer> writer) throws Exception {
+                    for (int i = 1; i <= 3; i++) {
+                        writer.write(i);
+                    }
+                }
+            };
+        }
+
+        public Iterator<String> nothing() {
+            return Collections.<String>emptyList().iterator();
+        }
+
+        public Iterator<String> broken() {
+            return new BrokenIterator();
+        }
+
+        @Path(value = "greet", method = HttpMethod.POST)
+        public String greet(@Body Greeting greeting) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < greeting.count; i++) {
+                sb.append(i > 0 ? " " : "").append(greeting.name);
+            }
+            return sb.toString();
+        }
+
+        @Path(value = "total", method = HttpMethod.POST)
+        public int total(@Body List<Greeting> greetings) {
+            int out = 0;
+            for (Greeting greeting : greetings) {
+                out += greeting.count;
+            }
+            return out;
+        }
+    }
+
+    @Path("other")
+    public static class OtherService {
+        public String ping() {
+            return "pong";
+        }
+    }
+
+    @BeanScope(value = BeanScope.Type.LOCAL, ignored = true)
+    public static class RequestUser {
+        private final String name;
+
+        public RequestUser() {
+            this(null);
+        }
+
+        public RequestUser(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static class Greeting {
+        public String name;
+        public int count;
+    }
+
+    /**
+     * Fails after the first item - like a cursor losing its connection
+     */
+    private static class BrokenIterator implements Iterator<String>, Closeable {
+        private boolean first = true;
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!first) {
+                throw new IllegalStateException("Cursor failed");
+            }
+            first = false;
+            return "first";
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            TestService.brokenClosed.set(true);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.webi.annotation.Cached;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ResponseCacheTest {
+
+    @Cached(ttl = 60, tags = "products")
+    public void products() {}
+
+    @Cached(ttl = 0)
+    public void expired() {}
+
+    private Cached cached(String method) throws Exception {
+        return getClass().getMethod(method).getAnnotation(Cached.class);
+    }
+
+    @Test
+    public void returns_cached_responses() throws Exception {
+        final ResponseCache cache = new ResponseCache();
+        assertNull(cache.get("a"));
+
+        final ResponseCache.Entry entry = cache.put("a", "[1,2,3]".getBytes(), cached("products"));
+        assertSame(entry, cache.get("a"));
+        assertTrue(entry.matches(entry.getETag()));
+        assertFalse(entry.matches("\"other\""));
+        assertTrue(entry.getCacheControl().startsWith("private, max-age="));
+    }
+
+    @Test
+    public void expires_responses() throws Exception {
+        final ResponseCache cache = new ResponseCache();
+        cache.put("a", "[]".getBytes(), cached("expired"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidates_by_tag() throws Exception {
+        final ResponseCache cache = new ResponseCache();
+        cache.put("a", "[1]".getBytes(), cached("products"));
+        cache.put("b", "[2]".getBytes(), cached("products"));
+        cache.put("c", "[3]".getBytes(), cached("expired"));
+
+        cache.invalidate("products");
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evicts_least_recently_used() throws Exception {
+        final ResponseCache cache = new ResponseCache();
+        cache.setMaxSize(8);
+        cache.put("a", "1234".getBytes(), cached("products"));
+        cache.put("b", "1234".getBytes(), cached("products"));
+        cache.get("a");
+        cache.put("c", "1234".getBytes(), cached("products"));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+}
@@ -0,0 +1,52 @@
+package com.vonhof.webi.rest;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class RouteTableTest {
+
+    @Test
+    public void looks_up_regions_of_paths() throws Exception {
+        final Map<String, String> entries = new HashMap<String, String>();
+        entries.put("products", "controller");
+        entries.put("products/list", "action");
+        final RouteTable<String> table = new RouteTable<String>(entries);
+
+        final String path = "products/list/123";
+        assertEquals("controller", table.get(path, 0, 8));
+        assertEquals("action", table.get(path, 0, 13));
+        assertNull(table.get(path, 0, path.length()));
+        assertNull(table.get(path, 9, 13));
+    }
+
+    @Test
+    public void ignores_case() throws Exception {
+        final Map<String, String> entries = new HashMap<String, String>();
+        entries.put("Products", "controller");
+        final RouteTable<String> table = new RouteTable<String>(entries);
+
+        assertEquals("controller", table.get("products", 0, 8));
+        assertEquals("controller", table.get("PRODUCTS", 0, 8));
+    }
+
+    @Test
+    public void keeps_all_entries_when_full() throws Exception {
+        final Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("c" + i, "v" + i);
+        }
+        final RouteTable<String> table = new RouteTable<String>(entries);
+
+        for (int i = 0; i < 100; i++) {
+            final String key = "c" + i;
+            assertEquals("v" + i, table.get(key, 0, key.length()));
+        }
+        assertNull(table.get("c100", 0, 4));
+        assertNull(new RouteTable<String>(new HashMap<String, String>()).get("c", 0, 1));
+    }
+}
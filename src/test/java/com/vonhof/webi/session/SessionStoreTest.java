@@ -0,0 +1,126 @@
+package com.vonhof.webi.session;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+
+public class SessionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WebiSession session(String id) {
+        WebiSession out = new WebiSession();
+        out.setId(id);
+        return out;
+    }
+
+    @Test
+    public void expires_idle_sessions() {
+        final SessionStore<WebiSession> store = new SessionStore<WebiSession>(10, 16);
+        store.setIdleTimeout(100);
+        store.add("a", session("a"));
+        store.add("b", session("b"));
+
+        final long now = System.currentTimeMillis();
+        store.expire(now + 50);
+        assertEquals(2, store.size());
+
+        store.expire(now + 200);
+        assertEquals(0, store.size());
+        assertNull(store.get("a"));
+        store.close();
+    }
+
+    @Test
+    public void evicts_sessions_closest_to_expiry() {
+        final SessionStore<WebiSession> store = new SessionStore<WebiSession>(10, 1024);
+        store.setMaxSessions(2);
+
+        WebiSession shortLived = session("short");
+        shortLived.setMaxAge(1);
+        store.add("short", shortLived);
+        store.add("a", session("a"));
+        store.add("b", session("b"));
+
+        assertEquals(2, store.size());
+        assertNull(store.get("short"));
+        assertNotNull(store.get("a"));
+        assertNotNull(store.get("b"));
+        store.close();
+    }
+
+    @Test
+    public void generates_unique_ids() {
+        final SessionStore<WebiSession> store = new SessionStore<WebiSession>();
+        final String id = store.newId();
+        assertEquals(32, id.length());
+        assertFalse(id.equals(store.newId()));
+        store.close();
+    }
+
+    @Test
+    public void restores_persisted_sessions() throws Exception {
+        final File dir = folder.getRoot();
+        final SessionStore<WebiSession> store = new SessionStore<WebiSession>();
+        store.setPersistence(new FileSessionPersistence<WebiSession>(dir));
+        WebiSession session = session("a");
+        session.put("user", "henrik");
+        store.add("a", session);
+        store.close();
+
+        final SessionStore<WebiSession> restored = new SessionStore<WebiSession>();
+        restored.setPersistence(new FileSessionPersistence<WebiSession>(dir));
+        assertEquals("henrik", restored.get("a").get("user"));
+
+        restored.remove("a");
+        assertEquals(0, dir.listFiles().length);
+        restored.close();
+    }
+
+    @Test
+    public void persists_used_sessions_by_key() throws Exception {
+        final File dir = folder.getRoot();
+        final SessionStore<WebiSession> store = new SessionStore<WebiSession>();
+        store.setPersistence(new FileSessionPersistence<WebiSession>(dir));
+        store.add("a", new WebiSession());
+        store.add("b/c", new WebiSession());
+        store.persist();
+        assertEquals(2, dir.listFiles().length);
+
+        //Changes made while the session is used are saved without closing the store
+        store.get("a").put("user", "henrik");
+        store.persist();
+
+        final SessionStore<WebiSession> restored = new SessionStore<WebiSession>();
+        restored.setPersistence(new FileSessionPersistence<WebiSession>(dir));
+        assertEquals("henrik", restored.get("a").get("user"));
+        assertNotNull(restored.get("b/c"));
+        restored.close();
+        store.close();
+    }
+
+    @Test
+    public void deletes_unreadable_session_files() throws Exception {
+        final File dir = folder.getRoot();
+        final SessionStore<WebiSession> store = new SessionStore<WebiSession>();
+        store.setPersistence(new FileSessionPersistence<WebiSession>(dir));
+        store.add("a", session("a"));
+        store.close();
+        Files.write(new File(dir, "truncated.session").toPath(), new byte[]{(byte) 0xac, (byte) 0xed});
+        Files.write(new File(dir, "other.session").toPath(), "not a session".getBytes("UTF-8"));
+
+        final SessionStore<WebiSession> restored = new SessionStore<WebiSession>();
+        restored.setPersistence(new FileSessionPersistence<WebiSession>(dir));
+        assertEquals(1, restored.size());
+        assertNotNull(restored.get("a"));
+        assertEquals(1, dir.listFiles().length);
+        restored.close();
+    }
+}
@@ -0,0 +1,60 @@
+package com.vonhof.webi.trace;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TraceTest {
+
+    @Test
+    public void records_nesting_by_parent() {
+        final Trace trace = new Trace(16);
+        final int request = trace.start("request", null);
+        final int query = trace.start("query", null);
+        trace.end(query);
+        trace.add("render", 1000, null);
+        trace.end(request);
+
+        assertEquals(3, trace.getCount());
+        assertEquals(-1, trace.getParent(request));
+        assertEquals(request, trace.getParent(query));
+        assertEquals(request, trace.getParent(2));
+        assertEquals(1000, trace.getDurationNanos(2));
+        assertTrue(trace.getDurationNanos(request) >= trace.getDurationNanos(query));
+    }
+
+    @Test
+    public void overwrites_oldest_spans_when_full() {
+        final Trace trace = new Trace(4);
+        final int request = trace.start("request", null);
+        for (int i = 0; i < 10; i++) {
+            trace.add("span" + i, i, null);
+        }
+        trace.end(request);
+
+        assertEquals(11, trace.getCount());
+        assertEquals(7, trace.getFirst());
+        assertEquals("span9", trace.getName(10));
+        assertEquals(request, trace.getParent(10));
+    }
+
+    @Test
+    public void exports_spans_and_reuses_traces() {
+        final MetricRegistry registry = new MetricRegistry();
+        final Tracer tracer = new Tracer(registry);
+        assertNull(tracer.begin(false));
+
+        final Trace trace = tracer.begin(true);
+        trace.end(trace.start("request", null));
+        tracer.finish(trace);
+
+        assertEquals(1, registry.timer("webi.trace.request").getCount());
+        assertEquals(0, trace.getCount());
+        assertSame(trace, tracer.begin(true));
+
+        tracer.setSamplePercent(100);
+        assertNotNull(tracer.begin(false));
+    }
+}